@@ -0,0 +1,317 @@
+package org.freemp.malevich;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.os.Build.VERSION_CODES;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.TreeMap;
+
+/**
+ * Bitmaps evicted from the memory cache, kept for reuse with inBitmap so decodes don't allocate.
+ * Bitmaps are bucketed by config and allocation size, a decode takes the smallest one that fits
+ * with a lookup in a sorted map. The pool holds at most its byte size and drops the bitmaps
+ * that were put least recently when it is full.
+ */
+public class BitmapPool {
+    private static final String TAG = "BitmapPool";
+
+    // A bitmap is not used for a decode that needs less than this part of it
+    private static final int MAX_SIZE_MULTIPLE = 4;
+
+    private final int mMaxSize;
+    private final boolean debug;
+    private int mSize;
+
+    private final HashMap<Config, TreeMap<Integer, ArrayDeque<Bitmap>>> mBuckets =
+            new HashMap<Config, TreeMap<Integer, ArrayDeque<Bitmap>>>();
+    // Bitmaps in the order they were put, the first one is dropped first
+    private final LinkedHashSet<Bitmap> mLru = new LinkedHashSet<Bitmap>();
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mPutCount;
+    private int mEvictionCount;
+
+    /**
+     * @param maxSize The maximum size of the pool in bytes
+     */
+    public BitmapPool(int maxSize, boolean debug) {
+        mMaxSize = maxSize;
+        this.debug = debug;
+    }
+
+    /**
+     * Adds a bitmap that is no longer used. Immutable, recycled and too large bitmaps are ignored.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || !bitmap.isMutable() || bitmap.isRecycled() || mLru.contains(bitmap)) {
+            return;
+        }
+        final int size = getAllocationSize(bitmap);
+        if (size > mMaxSize) {
+            return;
+        }
+        final TreeMap<Integer, ArrayDeque<Bitmap>> sizes = getSizes(bitmap.getConfig());
+        ArrayDeque<Bitmap> bucket = sizes.get(size);
+        if (bucket == null) {
+            bucket = new ArrayDeque<Bitmap>();
+            sizes.put(size, bucket);
+        }
+        bucket.add(bitmap);
+        mLru.add(bitmap);
+        mSize += size;
+        mPutCount++;
+        trimToSize(mMaxSize);
+    }
+
+    /**
+     * Takes a bitmap that {@code options} can decode into. From KitKat that is any allocation
+     * large enough for the sampled size, the decoder reconfigures it. Before KitKat the dimensions
+     * and config must match exactly and the inSampleSize must be 1.
+     *
+     * @param options Options with the out* dimensions, inSampleSize and inPreferredConfig set
+     * @return The bitmap, removed from the pool, or null
+     */
+    public synchronized Bitmap get(BitmapFactory.Options options) {
+        final Config config = options.inPreferredConfig != null
+                ? options.inPreferredConfig : Config.ARGB_8888;
+        if (!Malevich.Utils.hasKitKat() && options.inSampleSize > 1) {
+            mMissCount++;
+            return null;
+        }
+        // Sampled sizes are rounded up, as the JPEG decoder does
+        final int sample = Math.max(1, options.inSampleSize);
+        return take(ceilDiv(options.outWidth, sample), ceilDiv(options.outHeight, sample), config);
+    }
+
+    /**
+     * Takes a bitmap to draw into, for example for a {@link Transformation}, or creates one if
+     * there is none that fits. The bitmap is cleared.
+     *
+     * @return A mutable bitmap of exactly this size and config
+     */
+    public Bitmap get(int width, int height, Config config) {
+        final Bitmap bitmap;
+        synchronized (this) {
+            bitmap = take(width, height, config);
+        }
+        if (bitmap == null) {
+            return Bitmap.createBitmap(width, height, config);
+        }
+        if (bitmap.getWidth() != width || bitmap.getHeight() != height
+                || bitmap.getConfig() != config) {
+            reconfigure(bitmap, width, height, config);
+        }
+        bitmap.eraseColor(Color.TRANSPARENT);
+        return bitmap;
+    }
+
+    /**
+     * Fills the pool with new bitmaps of a size that is decoded often, like the cells of a grid,
+     * so the first screen already decodes into pooled bitmaps. Allocates, so call it off the UI
+     * thread.
+     *
+     * @param count How many bitmaps to add, fewer if the pool gets full
+     */
+    public void preFill(int width, int height, Config config, int count) {
+        for (int i = 0; i < count; i++) {
+            synchronized (this) {
+                if (mSize + width * height * getBytesPerPixel(config) > mMaxSize) {
+                    return;
+                }
+            }
+            put(Bitmap.createBitmap(width, height, config));
+        }
+    }
+
+    /**
+     * Drops all bitmaps.
+     */
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public synchronized int maxSize() {
+        return mMaxSize;
+    }
+
+    public synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int missCount() {
+        return mMissCount;
+    }
+
+    public synchronized int putCount() {
+        return mPutCount;
+    }
+
+    public synchronized int evictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        final int accesses = mHitCount + mMissCount;
+        final int hitPercent = accesses != 0 ? (100 * mHitCount / accesses) : 0;
+        return String.format("BitmapPool[size=%d,maxSize=%d,bitmaps=%d,hits=%d,misses=%d,"
+                        + "hitRate=%d%%,puts=%d,evictions=%d]", mSize, mMaxSize, mLru.size(),
+                mHitCount, mMissCount, hitPercent, mPutCount, mEvictionCount);
+    }
+
+    /**
+     * Return the byte usage per pixel of a bitmap based on its configuration.
+     * @param config The bitmap configuration.
+     * @return The byte usage per pixel.
+     */
+    static int getBytesPerPixel(Config config) {
+        if (config == Config.ARGB_8888) {
+            return 4;
+        } else if (config == Config.RGB_565) {
+            return 2;
+        } else if (config == Config.ARGB_4444) {
+            return 2;
+        } else if (config == Config.ALPHA_8) {
+            return 1;
+        }
+        return 1;
+    }
+
+    /**
+     * Takes a bitmap for this size and config and counts the hit or miss.
+     */
+    private Bitmap take(int width, int height, Config config) {
+        Bitmap bitmap;
+        if (Malevich.Utils.hasKitKat()) {
+            // Any allocation that is large enough, the bitmap is reconfigured
+            final int needed = width * height * getBytesPerPixel(config);
+            bitmap = takeBestFit(config, needed);
+            if (bitmap == null) {
+                for (Config other : mBuckets.keySet()) {
+                    if (other != config && (bitmap = takeBestFit(other, needed)) != null) {
+                        break;
+                    }
+                }
+            }
+        } else {
+            bitmap = takeExact(width, height, config);
+        }
+        if (bitmap != null) {
+            mHitCount++;
+        } else {
+            mMissCount++;
+        }
+        return bitmap;
+    }
+
+    /**
+     * The smallest bitmap of {@code config} with at least {@code needed} bytes.
+     */
+    private Bitmap takeBestFit(Config config, int needed) {
+        final TreeMap<Integer, ArrayDeque<Bitmap>> sizes = mBuckets.get(config);
+        if (sizes == null) {
+            return null;
+        }
+        final Integer size = sizes.ceilingKey(needed);
+        if (size == null || size > (long) needed * MAX_SIZE_MULTIPLE) {
+            return null;
+        }
+        return take(sizes, size, sizes.get(size).peekLast());
+    }
+
+    /**
+     * A bitmap with exactly these dimensions and config, before KitKat.
+     */
+    private Bitmap takeExact(int width, int height, Config config) {
+        final TreeMap<Integer, ArrayDeque<Bitmap>> sizes = mBuckets.get(config);
+        if (sizes == null) {
+            return null;
+        }
+        final int size = width * height * getBytesPerPixel(config);
+        final ArrayDeque<Bitmap> bucket = sizes.get(size);
+        if (bucket == null) {
+            return null;
+        }
+        for (Bitmap bitmap : bucket) {
+            if (bitmap.getWidth() == width && bitmap.getHeight() == height) {
+                return take(sizes, size, bitmap);
+            }
+        }
+        return null;
+    }
+
+    private Bitmap take(TreeMap<Integer, ArrayDeque<Bitmap>> sizes, int size, Bitmap bitmap) {
+        final ArrayDeque<Bitmap> bucket = sizes.get(size);
+        bucket.remove(bitmap);
+        if (bucket.isEmpty()) {
+            sizes.remove(size);
+        }
+        mLru.remove(bitmap);
+        mSize -= size;
+        return bitmap;
+    }
+
+    private void trimToSize(int maxSize) {
+        final int evictionCount = mEvictionCount;
+        final Iterator<Bitmap> iterator = mLru.iterator();
+        while (mSize > maxSize && iterator.hasNext()) {
+            final Bitmap bitmap = iterator.next();
+            iterator.remove();
+            final int size = getAllocationSize(bitmap);
+            final TreeMap<Integer, ArrayDeque<Bitmap>> sizes = mBuckets.get(bitmap.getConfig());
+            final ArrayDeque<Bitmap> bucket = sizes.get(size);
+            bucket.remove(bitmap);
+            if (bucket.isEmpty()) {
+                sizes.remove(size);
+            }
+            mSize -= size;
+            mEvictionCount++;
+        }
+        if (debug && mEvictionCount != evictionCount && maxSize > 0) {
+            Log.d(TAG, "trimToSize - " + this);
+        }
+    }
+
+    private TreeMap<Integer, ArrayDeque<Bitmap>> getSizes(Config config) {
+        TreeMap<Integer, ArrayDeque<Bitmap>> sizes = mBuckets.get(config);
+        if (sizes == null) {
+            sizes = new TreeMap<Integer, ArrayDeque<Bitmap>>();
+            mBuckets.put(config, sizes);
+        }
+        return sizes;
+    }
+
+    /**
+     * The bucket size of a bitmap. From KitKat it is the allocation, which decodes into the
+     * bitmap may use. Before, only the exact dimensions are reused, so they decide the size.
+     */
+    @TargetApi(VERSION_CODES.KITKAT)
+    private static int getAllocationSize(Bitmap bitmap) {
+        if (Malevich.Utils.hasKitKat()) {
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getWidth() * bitmap.getHeight() * getBytesPerPixel(bitmap.getConfig());
+    }
+
+    @TargetApi(VERSION_CODES.KITKAT)
+    private static void reconfigure(Bitmap bitmap, int width, int height, Config config) {
+        bitmap.reconfigure(width, height, config);
+    }
+
+    private static int ceilDiv(int value, int divisor) {
+        return (value + divisor - 1) / divisor;
+    }
+}
@@ -0,0 +1,583 @@
+package org.freemp.malevich;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A {@link LruCache} for many threads. Reads never lock: entries live in a
+ * {@link ConcurrentHashMap} and a hit only records the entry in a small per-thread-stripe buffer.
+ * The access order is a linked list that only writers touch under one lock. They replay the
+ * recorded hits first, readers replay them only if they get the lock without waiting. So a get on
+ * the UI thread never waits for a worker that is evicting.
+ * <p>
+ * Recording is lossy, a hit is dropped if its buffer is full, which makes the order approximate
+ * under heavy reading. Hit and miss counters are striped like the buffers.
+ * <p>
+ * With TinyLFU admission the cache keeps frequently used entries when many entries are used
+ * once, like during a long scroll. New entries wait in a small window. Entries leaving the window
+ * only replace the eldest entry of the main area if a {@link FrequencySketch} counted more recent
+ * uses for them. The main area is a probation part and a protected part of 80% for entries used
+ * again while in probation.
+ * <p>
+ * {@link #sizeOf}, {@link #entryRemoved} and {@link #create} have the contract of
+ * {@link LruCache}, entryRemoved is called without the lock.
+ */
+public class ConcurrentLruCache<K, V> {
+
+    // Power of two, enough for the UI thread and the workers to rarely share a stripe
+    private static final int STRIPES = 4;
+    private static final int BUFFER_SIZE = 32;
+
+    // The window is 1% of the size, but at least holds the newest entries, which may be on screen
+    private static final int WINDOW_PERCENT = 1;
+    private static final int MIN_WINDOW_ENTRIES = 16;
+    private static final int PROTECTED_PERCENT = 80;
+
+    private static final class Node<K, V> {
+        final K key;
+        final V value;
+        final int size;
+        // Guarded by mLock, queue is null once the entry is removed
+        Node<K, V> prev;
+        Node<K, V> next;
+        AccessQueue<K, V> queue;
+
+        Node(K key, V value, int size) {
+            this.key = key;
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Entries from the least to the most recently used, with the sum of their sizes.
+     */
+    private static final class AccessQueue<K, V> {
+        Node<K, V> head;
+        Node<K, V> tail;
+        int size;
+        int count;
+
+        void link(Node<K, V> node) {
+            node.queue = this;
+            node.prev = tail;
+            node.next = null;
+            if (tail != null) {
+                tail.next = node;
+            } else {
+                head = node;
+            }
+            tail = node;
+            size += node.size;
+            count++;
+        }
+
+        void unlink(Node<K, V> node) {
+            if (node.prev != null) {
+                node.prev.next = node.next;
+            } else {
+                head = node.next;
+            }
+            if (node.next != null) {
+                node.next.prev = node.prev;
+            } else {
+                tail = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+            node.queue = null;
+            size -= node.size;
+            count--;
+        }
+    }
+
+    private final ConcurrentHashMap<K, Node<K, V>> mMap = new ConcurrentHashMap<K, Node<K, V>>();
+    private final ReentrantLock mLock = new ReentrantLock();
+
+    // Recorded hits by stripe, slot i of stripe s is at s * BUFFER_SIZE + i
+    private final AtomicReferenceArray<Node<K, V>> mReadBuffer =
+            new AtomicReferenceArray<Node<K, V>>(STRIPES * BUFFER_SIZE);
+    private final AtomicIntegerArray mReadCounts = new AtomicIntegerArray(STRIPES);
+    private final AtomicIntegerArray mHitCounts = new AtomicIntegerArray(STRIPES);
+    private final AtomicIntegerArray mMissCounts = new AtomicIntegerArray(STRIPES);
+
+    // Guarded by mLock. Without TinyLFU all entries are in the window.
+    private final AccessQueue<K, V> mWindow = new AccessQueue<K, V>();
+    private final AccessQueue<K, V> mProbation = new AccessQueue<K, V>();
+    private final AccessQueue<K, V> mProtected = new AccessQueue<K, V>();
+    private final FrequencySketch mSketch;
+
+    private volatile int mSize;
+    private volatile int mMaxSize;
+
+    // Guarded by mLock
+    private int mPutCount;
+    private int mCreateCount;
+    private int mEvictionCount;
+
+    /**
+     * @param maxSize for caches that do not override {@link #sizeOf}, this is
+     *     the maximum number of entries in the cache. For all other caches,
+     *     this is the maximum sum of the sizes of the entries in this cache.
+     */
+    public ConcurrentLruCache(int maxSize) {
+        this(maxSize, false);
+    }
+
+    /**
+     * @param maxSize See {@link #ConcurrentLruCache(int)}
+     * @param tinyLfu True to admit entries by frequency instead of evicting least recently used
+     */
+    public ConcurrentLruCache(int maxSize, boolean tinyLfu) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mMaxSize = maxSize;
+        mSketch = tinyLfu ? new FrequencySketch() : null;
+    }
+
+    /**
+     * Sets the size of the cache.
+     *
+     * @param maxSize The new maximum size.
+     */
+    public void resize(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mMaxSize = maxSize;
+        trimToSize(maxSize);
+    }
+
+    /**
+     * Returns the value for {@code key} if it exists in the cache or can be
+     * created by {@code #create}. If a value was returned, it is recorded as
+     * used. This returns null if a value is not cached and cannot be created.
+     * Never waits for the lock.
+     */
+    public final V get(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+
+        final int stripe = stripe();
+        final Node<K, V> node = mMap.get(key);
+        if (node != null) {
+            mHitCounts.incrementAndGet(stripe);
+            recordAccess(stripe, node);
+            return node.value;
+        }
+        mMissCounts.incrementAndGet(stripe);
+
+        final V createdValue = create(key);
+        if (createdValue == null) {
+            return null;
+        }
+
+        final Node<K, V> created = new Node<K, V>(key, createdValue, safeSizeOf(key, createdValue));
+        Node<K, V> evicted;
+        final Node<K, V> existing;
+        mLock.lock();
+        try {
+            mCreateCount++;
+            existing = mMap.putIfAbsent(key, created);
+            if (existing == null) {
+                add(created);
+                evicted = evict(mMaxSize);
+            } else {
+                evicted = null;
+            }
+        } finally {
+            mLock.unlock();
+        }
+
+        if (existing != null) {
+            // There was a conflict, keep the value in the cache
+            entryRemoved(false, key, createdValue, existing.value);
+            return existing.value;
+        }
+        notifyEvicted(evicted);
+        return createdValue;
+    }
+
+    /**
+     * Caches {@code value} for {@code key}. The value is moved to the head of
+     * the queue.
+     *
+     * @return the previous value mapped by {@code key}.
+     */
+    public final V put(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+
+        final Node<K, V> node = new Node<K, V>(key, value, safeSizeOf(key, value));
+        final Node<K, V> previous;
+        final Node<K, V> evicted;
+        mLock.lock();
+        try {
+            drainReadBuffer();
+            mPutCount++;
+            previous = mMap.put(key, node);
+            if (previous != null) {
+                previous.queue.unlink(previous);
+                mSize -= previous.size;
+            }
+            add(node);
+            evicted = evict(mMaxSize);
+        } finally {
+            mLock.unlock();
+        }
+
+        if (previous != null) {
+            entryRemoved(false, key, previous.value, value);
+        }
+        notifyEvicted(evicted);
+        return previous != null ? previous.value : null;
+    }
+
+    /**
+     * Remove the eldest entries until the total of remaining entries is at or
+     * below the requested size.
+     *
+     * @param maxSize the maximum size of the cache before returning. May be -1
+     *            to evict even 0-sized elements.
+     */
+    public void trimToSize(int maxSize) {
+        final Node<K, V> evicted;
+        mLock.lock();
+        try {
+            drainReadBuffer();
+            evicted = evict(maxSize);
+        } finally {
+            mLock.unlock();
+        }
+        notifyEvicted(evicted);
+    }
+
+    /**
+     * Removes the entry for {@code key} if it exists.
+     *
+     * @return the previous value mapped by {@code key}.
+     */
+    public final V remove(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+
+        final Node<K, V> previous;
+        mLock.lock();
+        try {
+            previous = mMap.remove(key);
+            if (previous != null) {
+                previous.queue.unlink(previous);
+                mSize -= previous.size;
+            }
+        } finally {
+            mLock.unlock();
+        }
+
+        if (previous != null) {
+            entryRemoved(false, key, previous.value, null);
+            return previous.value;
+        }
+        return null;
+    }
+
+    /**
+     * Called for entries that have been evicted or removed, see
+     * {@link LruCache#entryRemoved}. Called without the lock: other threads
+     * may access the cache while this method is executing.
+     */
+    protected void entryRemoved(boolean evicted, K key, V oldValue, V newValue) {}
+
+    /**
+     * Called after a cache miss to compute a value for the corresponding key,
+     * see {@link LruCache#create}. The default implementation returns null.
+     */
+    protected V create(K key) {
+        return null;
+    }
+
+    /**
+     * Returns the size of the entry for {@code key} and {@code value} in
+     * user-defined units.  The default implementation returns 1 so that size
+     * is the number of entries and max size is the maximum number of entries.
+     *
+     * <p>An entry's size must not change while it is in the cache.
+     */
+    protected int sizeOf(K key, V value) {
+        return 1;
+    }
+
+    /**
+     * Clear the cache, calling {@link #entryRemoved} on each removed entry.
+     */
+    public final void evictAll() {
+        trimToSize(-1); // -1 will evict 0-sized elements
+    }
+
+    /**
+     * For caches that do not override {@link #sizeOf}, this returns the number
+     * of entries in the cache. For all other caches, this returns the sum of
+     * the sizes of the entries in this cache.
+     */
+    public final int size() {
+        return mSize;
+    }
+
+    /**
+     * For caches that do not override {@link #sizeOf}, this returns the maximum
+     * number of entries in the cache. For all other caches, this returns the
+     * maximum sum of the sizes of the entries in this cache.
+     */
+    public final int maxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * Returns the number of times {@link #get} returned a value that was
+     * already present in the cache.
+     */
+    public final int hitCount() {
+        return sum(mHitCounts);
+    }
+
+    /**
+     * Returns the number of times {@link #get} returned null or required a new
+     * value to be created.
+     */
+    public final int missCount() {
+        return sum(mMissCounts);
+    }
+
+    /**
+     * Returns the number of times {@link #create(Object)} returned a value.
+     */
+    public final int createCount() {
+        mLock.lock();
+        try {
+            return mCreateCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of times {@link #put} was called.
+     */
+    public final int putCount() {
+        mLock.lock();
+        try {
+            return mPutCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of values that have been evicted.
+     */
+    public final int evictionCount() {
+        mLock.lock();
+        try {
+            return mEvictionCount;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns a copy of the current contents of the cache, ordered from least
+     * recently accessed to most recently accessed.
+     */
+    public final Map<K, V> snapshot() {
+        final LinkedHashMap<K, V> snapshot = new LinkedHashMap<K, V>();
+        mLock.lock();
+        try {
+            drainReadBuffer();
+            putAll(snapshot, mProbation);
+            putAll(snapshot, mProtected);
+            putAll(snapshot, mWindow);
+        } finally {
+            mLock.unlock();
+        }
+        return snapshot;
+    }
+
+    @Override public final String toString() {
+        final int hitCount = hitCount();
+        final int accesses = hitCount + missCount();
+        final int hitPercent = accesses != 0 ? (100 * hitCount / accesses) : 0;
+        return String.format("ConcurrentLruCache[maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]",
+                mMaxSize, hitCount, accesses - hitCount, hitPercent);
+    }
+
+    /**
+     * Records a hit in the buffer of the stripe. A full buffer is replayed if the lock is free,
+     * otherwise the hit is dropped.
+     */
+    private void recordAccess(int stripe, Node<K, V> node) {
+        final int index = mReadCounts.getAndIncrement(stripe);
+        if (index < BUFFER_SIZE) {
+            mReadBuffer.lazySet(stripe * BUFFER_SIZE + index, node);
+            return;
+        }
+        if (mLock.tryLock()) {
+            try {
+                drainReadBuffer();
+            } finally {
+                mLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Moves the recorded entries to the most recently used end. Called with the lock held.
+     */
+    private void drainReadBuffer() {
+        for (int stripe = 0; stripe < STRIPES; stripe++) {
+            if (mReadCounts.get(stripe) == 0) {
+                continue;
+            }
+            // Slots are cleared even past the count, a late reader may have set them
+            for (int i = 0; i < BUFFER_SIZE; i++) {
+                final Node<K, V> node = mReadBuffer.getAndSet(stripe * BUFFER_SIZE + i, null);
+                if (node != null && node.queue != null) {
+                    onAccess(node);
+                }
+            }
+            mReadCounts.set(stripe, 0);
+        }
+    }
+
+    /**
+     * Adds a new entry to the window. Called with the lock held.
+     */
+    private void add(Node<K, V> node) {
+        mWindow.link(node);
+        mSize += node.size;
+        if (mSketch != null) {
+            mSketch.ensureCapacity(mMap.size());
+            mSketch.increment(node.key);
+        }
+    }
+
+    /**
+     * Moves a used entry to the most recently used end of its queue, or from probation to the
+     * protected part. Called with the lock held.
+     */
+    private void onAccess(Node<K, V> node) {
+        final AccessQueue<K, V> queue = node.queue;
+        if (mSketch != null) {
+            mSketch.increment(node.key);
+        }
+        if (queue == mProbation) {
+            mProbation.unlink(node);
+            mProtected.link(node);
+            // The eldest protected entries get another chance in probation
+            final int maxProtected = (int) ((long) mMaxSize * PROTECTED_PERCENT / 100);
+            while (mProtected.size > maxProtected && mProtected.count > 1) {
+                final Node<K, V> demoted = mProtected.head;
+                mProtected.unlink(demoted);
+                mProbation.link(demoted);
+            }
+        } else if (node != queue.tail) {
+            queue.unlink(node);
+            queue.link(node);
+        }
+    }
+
+    /**
+     * Removes entries until the size is at most {@code maxSize}. Without TinyLFU these are the
+     * least recently used. With it, each entry that left the window competes with the eldest
+     * entry in probation and the one used less often is removed. Called with the lock held.
+     *
+     * @return The evicted nodes, chained by next, to be passed to {@link #notifyEvicted}
+     */
+    private Node<K, V> evict(int maxSize) {
+        // The newest candidate competes first, so candidates and victims only meet at the end
+        Node<K, V> candidate = null;
+        int candidates = 0;
+        if (mSketch != null) {
+            final int maxWindow = (int) ((long) mMaxSize * WINDOW_PERCENT / 100);
+            while (mWindow.size > maxWindow && mWindow.count > MIN_WINDOW_ENTRIES) {
+                final Node<K, V> node = mWindow.head;
+                mWindow.unlink(node);
+                mProbation.link(node);
+                candidate = node;
+                candidates++;
+            }
+        }
+
+        Node<K, V> evicted = null;
+        while (true) {
+            if (mSize < 0 || (mMap.isEmpty() && mSize != 0)) {
+                throw new IllegalStateException(getClass().getName()
+                        + ".sizeOf() is reporting inconsistent results!");
+            }
+            if (mSize <= maxSize) {
+                return evicted;
+            }
+            Node<K, V> victim = mProbation.head != null ? mProbation.head
+                    : mProtected.head != null ? mProtected.head : mWindow.head;
+            if (victim == null) {
+                return evicted;
+            }
+            if (victim == candidate) {
+                // Only this candidate is left in probation
+                candidate = null;
+            } else if (candidate != null
+                    && mSketch.frequency(candidate.key) <= mSketch.frequency(victim.key)) {
+                // Not admitted
+                victim = candidate;
+                candidate = --candidates > 0 ? candidate.prev : null;
+            }
+            mMap.remove(victim.key, victim);
+            victim.queue.unlink(victim);
+            mSize -= victim.size;
+            mEvictionCount++;
+            victim.next = evicted;
+            evicted = victim;
+        }
+    }
+
+    private void notifyEvicted(Node<K, V> evicted) {
+        while (evicted != null) {
+            final Node<K, V> next = evicted.next;
+            evicted.next = null;
+            entryRemoved(true, evicted.key, evicted.value, null);
+            evicted = next;
+        }
+    }
+
+    private static <K, V> void putAll(Map<K, V> map, AccessQueue<K, V> queue) {
+        for (Node<K, V> node = queue.head; node != null; node = node.next) {
+            map.put(node.key, node.value);
+        }
+    }
+
+    private int safeSizeOf(K key, V value) {
+        final int result = sizeOf(key, value);
+        if (result < 0) {
+            throw new IllegalStateException("Negative size: " + key + "=" + value);
+        }
+        return result;
+    }
+
+    private static int stripe() {
+        return (int) Thread.currentThread().getId() & (STRIPES - 1);
+    }
+
+    private static int sum(AtomicIntegerArray counts) {
+        int sum = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            sum += counts.get(i);
+        }
+        return sum;
+    }
+}
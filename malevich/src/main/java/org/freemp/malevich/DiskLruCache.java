@@ -35,7 +35,10 @@ import java.io.Reader;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
@@ -163,6 +166,23 @@ public final class DiskLruCache implements Closeable {
             = new LinkedHashMap<String, Entry>(0, 0.75f, true);
     private int redundantOpCount;
 
+    /*
+     * With TinyLFU admission new entries wait in a small window. When they
+     * leave it and the cache is full, each one only replaces the eldest entry
+     * if the sketch counted more recent reads for it, otherwise it is removed
+     * itself. Null for plain LRU.
+     *
+     * The window is kept in the order of insertion and the other readable
+     * entries in the order of access, so the victim is always at the head.
+     */
+    private static final int WINDOW_PERCENT = 1;
+    private static final int MIN_WINDOW_ENTRIES = 16;
+    private FrequencySketch sketch;
+    private final LinkedHashMap<String, Entry> window = new LinkedHashMap<String, Entry>();
+    private final LinkedHashMap<String, Entry> mainEntries
+            = new LinkedHashMap<String, Entry>(0, 0.75f, true);
+    private long windowSize;
+
     /**
      * To differentiate between old and current snapshots, each entry is given
      * a sequence number each time an edit is committed. A snapshot is stale if
@@ -306,6 +326,17 @@ public final class DiskLruCache implements Closeable {
      */
     public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize)
             throws IOException {
+        return open(directory, appVersion, valueCount, maxSize, false);
+    }
+
+    /**
+     * Opens the cache in {@code directory}, like {@link #open(File, int, int, long)}.
+     *
+     * @param tinyLfu true to admit new entries by how often their keys are
+     *     read instead of always evicting the least recently used entry
+     */
+    public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize,
+            boolean tinyLfu) throws IOException {
         if (maxSize <= 0) {
             throw new IllegalArgumentException("maxSize <= 0");
         }
@@ -315,10 +346,17 @@ public final class DiskLruCache implements Closeable {
 
         // prefer to pick up where we left off
         DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+        if (tinyLfu) {
+            cache.sketch = new FrequencySketch();
+        }
         if (cache.journalFile.exists()) {
             try {
                 cache.readJournal();
                 cache.processJournal();
+                if (tinyLfu) {
+                    // Sized at once instead of doubling with every new entry
+                    cache.sketch.ensureCapacity(cache.lruEntries.size());
+                }
                 cache.journalWriter = new BufferedWriter(new FileWriter(cache.journalFile, true),
                         IO_BUFFER_SIZE);
                 return cache;
@@ -332,6 +370,9 @@ public final class DiskLruCache implements Closeable {
         // create a new empty cache
         directory.mkdirs();
         cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+        if (tinyLfu) {
+            cache.sketch = new FrequencySketch();
+        }
         cache.rebuildJournal();
         return cache;
     }
@@ -408,6 +449,9 @@ public final class DiskLruCache implements Closeable {
                 for (int t = 0; t < valueCount; t++) {
                     size += entry.lengths[t];
                 }
+                if (sketch != null && entry.readable) {
+                    mainEntries.put(entry.key, entry);
+                }
             } else {
                 entry.currentEditor = null;
                 for (int t = 0; t < valueCount; t++) {
@@ -471,8 +515,25 @@ public final class DiskLruCache implements Closeable {
      * the head of the LRU queue.
      */
     public synchronized Snapshot get(String key) throws IOException {
+        return get(key, true);
+    }
+
+    /**
+     * Like {@link #get}, but not counted as a use of {@code key} for the
+     * TinyLFU admission. For probes and for reading back an entry that was
+     * just written, after the read that missed was counted.
+     */
+    public synchronized Snapshot getUncounted(String key) throws IOException {
+        return get(key, false);
+    }
+
+    private Snapshot get(String key, boolean counted) throws IOException {
         checkNotClosed();
         validateKey(key);
+        if (sketch != null && counted) {
+            // Misses count too, a key that is read again is worth admitting
+            sketch.increment(key);
+        }
         Entry entry = lruEntries.get(key);
         if (entry == null) {
             return null;
@@ -497,6 +558,9 @@ public final class DiskLruCache implements Closeable {
             return null;
         }
 
+        if (sketch != null && !entry.inWindow) {
+            mainEntries.get(key);
+        }
         redundantOpCount++;
         journalWriter.append(READ + ' ' + key + '\n');
         if (journalRebuildRequired()) {
@@ -578,6 +642,12 @@ public final class DiskLruCache implements Closeable {
             }
         }
 
+        if (success && !entry.readable && sketch != null) {
+            sketch.ensureCapacity(lruEntries.size());
+            entry.inWindow = true;
+            window.put(entry.key, entry);
+        }
+
         for (int i = 0; i < valueCount; i++) {
             File dirty = entry.getDirtyFile(i);
             if (success) {
@@ -588,6 +658,9 @@ public final class DiskLruCache implements Closeable {
                     long newLength = clean.length();
                     entry.lengths[i] = newLength;
                     size = size - oldLength + newLength;
+                    if (entry.inWindow) {
+                        windowSize = windowSize - oldLength + newLength;
+                    }
                 }
             } else {
                 deleteIfExists(dirty);
@@ -636,6 +709,10 @@ public final class DiskLruCache implements Closeable {
             return false;
         }
 
+        if (entry.inWindow) {
+            leaveWindow(entry);
+        }
+        mainEntries.remove(key);
         for (int i = 0; i < valueCount; i++) {
             File file = entry.getCleanFile(i);
             if (!file.delete()) {
@@ -696,6 +773,10 @@ public final class DiskLruCache implements Closeable {
     }
 
     private void trimToSize() throws IOException {
+        if (sketch != null) {
+            trimToSizeAdmitting();
+            return;
+        }
         while (size > maxSize) {
 //            Map.Entry<String, Entry> toEvict = lruEntries.eldest();
             final Map.Entry<String, Entry> toEvict = lruEntries.entrySet().iterator().next();
@@ -703,6 +784,65 @@ public final class DiskLruCache implements Closeable {
         }
     }
 
+    /**
+     * Like {@link #trimToSize}, but the entries that leave the window only
+     * stay if they are read more often than the eldest entry outside of it.
+     */
+    private void trimToSizeAdmitting() throws IOException {
+        final ArrayDeque<Entry> candidates = new ArrayDeque<Entry>();
+        final long maxWindowSize = maxSize * WINDOW_PERCENT / 100;
+        while (window.size() > MIN_WINDOW_ENTRIES && windowSize > maxWindowSize) {
+            final Entry entry = window.values().iterator().next();
+            leaveWindow(entry);
+            mainEntries.put(entry.key, entry);
+            candidates.add(entry);
+        }
+
+        while (size > maxSize) {
+            Entry victim = eldestNotEditing(mainEntries);
+            if (victim == null) {
+                victim = eldestNotEditing(window);
+                if (victim == null) {
+                    return;
+                }
+            }
+            // The newest candidate competes first, so candidates and victims only meet at the end
+            Entry candidate = candidates.peekLast();
+            while (candidate != null && !mainEntries.containsKey(candidate.key)) {
+                candidates.removeLast();
+                candidate = candidates.peekLast();
+            }
+            if (candidate == victim) {
+                candidates.removeLast();
+            } else if (candidate != null
+                    && sketch.frequency(candidate.key) <= sketch.frequency(victim.key)) {
+                // Not admitted
+                candidates.removeLast();
+                victim = candidate;
+            }
+            if (!remove(victim.key)) {
+                return;
+            }
+        }
+    }
+
+    private static Entry eldestNotEditing(LinkedHashMap<String, Entry> entries) {
+        for (Entry entry : entries.values()) {
+            if (entry.currentEditor == null) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private void leaveWindow(Entry entry) {
+        window.remove(entry.key);
+        entry.inWindow = false;
+        for (long length : entry.lengths) {
+            windowSize -= length;
+        }
+    }
+
     /**
      * Closes the cache and deletes all of its stored values. This will delete
      * all files in the cache directory including files that weren't created by
@@ -820,6 +960,64 @@ public final class DiskLruCache implements Closeable {
             }
         }
 
+        /**
+         * Copies {@code in} to the end of stream straight into the file of the
+         * value at {@code index} through a {@link FileChannel}, using the
+         * caller's {@code buffer} so no per call buffers are allocated. Unlike
+         * {@link #newOutputStream} errors are thrown, and a write error also
+         * aborts this edit when {@link #commit} is called.
+         *
+         * @return the number of bytes written.
+         */
+        public long transferFrom(int index, InputStream in, byte[] buffer) throws IOException {
+            FileOutputStream out;
+            synchronized (DiskLruCache.this) {
+                if (entry.currentEditor != this) {
+                    throw new IllegalStateException();
+                }
+                out = new FileOutputStream(entry.getDirtyFile(index));
+            }
+            final FileChannel channel = out.getChannel();
+            final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+            long count = 0;
+            try {
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    byteBuffer.clear();
+                    byteBuffer.limit(read);
+                    try {
+                        while (byteBuffer.hasRemaining()) {
+                            channel.write(byteBuffer);
+                        }
+                    } catch (IOException e) {
+                        hasErrors = true;
+                        throw e;
+                    }
+                    count += read;
+                }
+            } finally {
+                closeQuietly(out);
+            }
+            return count;
+        }
+
+        /**
+         * Moves {@code file} into place as the value at {@code index}. The
+         * file must be on the same filesystem as the cache directory.
+         */
+        public void adoptFile(int index, File file) throws IOException {
+            synchronized (DiskLruCache.this) {
+                if (entry.currentEditor != this) {
+                    throw new IllegalStateException();
+                }
+                File dirty = entry.getDirtyFile(index);
+                deleteIfExists(dirty);
+                if (!file.renameTo(dirty)) {
+                    throw new IOException("failed to rename " + file + " to " + dirty);
+                }
+            }
+        }
+
         /**
          * Sets the value at {@code index} to {@code value}.
          */
@@ -908,6 +1106,9 @@ public final class DiskLruCache implements Closeable {
         /** The sequence number of the most recently committed edit to this entry. */
         private long sequenceNumber;
 
+        /** True while this new entry is in the admission window. */
+        private boolean inWindow;
+
         private Entry(String key) {
             this.key = key;
             this.lengths = new long[valueCount];
@@ -0,0 +1,367 @@
+package org.freemp.malevich;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs image loading work with a global concurrency limit. Waiting work is kept in priority lanes,
+ * a higher lane always starts first. Inside a lane the hosts take turns.
+ *
+ * The per-host limit only applies to the network part of a job, between {@link #acquireHost} and
+ * {@link #releaseHost}. A job that waits for its host gives its slot to other work meanwhile, so
+ * a slow host doesn't hold back cache hits, local images or decodes. It goes back to its lane, and
+ * gets the host in lane order once a download from the host ends. More work for a host that
+ * already has waiting jobs stays queued until they got the host, and at most
+ * {@code maxConcurrent} jobs wait at once, so there are never more than twice
+ * {@code maxConcurrent} threads.
+ *
+ * Work is submitted through a {@link Job}, an {@link Executor} that carries the host and the
+ * priority, so it can be passed to {@link AsyncTask#executeOnExecutor}.
+ */
+public class FetchScheduler {
+
+    public static final int PRIORITY_HIGH = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_LOW = 2;
+    private static final int PRIORITY_LANES = 3;
+
+    private static final int KEEP_ALIVE = 30;
+
+    private static final ThreadFactory sThreadFactory = new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        public Thread newThread(Runnable r) {
+            return new Thread(r, "Malevich fetch #" + mCount.getAndIncrement());
+        }
+    };
+
+    private final int maxConcurrent;
+    private final int maxPerHost;
+    private final ThreadPoolExecutor executor;
+
+    // Waiting jobs by lane, in every lane by host in turn order. Guarded by this.
+    private final List<LinkedHashMap<String, ArrayDeque<Job>>> lanes =
+            new ArrayList<LinkedHashMap<String, ArrayDeque<Job>>>(PRIORITY_LANES);
+    // Network sections by host. Guarded by this.
+    private final HashMap<String, Integer> runningPerHost = new HashMap<String, Integer>();
+    // Jobs waiting in acquireHost by host. Guarded by this.
+    private final HashMap<String, Integer> waitingPerHost = new HashMap<String, Integer>();
+    private int running;
+    private int waiting;
+    // The job a worker thread runs
+    private final ThreadLocal<Job> currentJob = new ThreadLocal<Job>();
+
+    /**
+     * @param maxConcurrent How many jobs may run at once
+     * @param maxPerHost How many downloads from the same host may run at once
+     */
+    public FetchScheduler(int maxConcurrent, int maxPerHost) {
+        if (maxConcurrent <= 0 || maxPerHost <= 0) {
+            throw new IllegalArgumentException("maxConcurrent <= 0 || maxPerHost <= 0");
+        }
+        this.maxConcurrent = maxConcurrent;
+        this.maxPerHost = maxPerHost;
+        // Jobs waiting for their host keep their thread, the scheduler bounds them as well
+        final int maxThreads = 2 * maxConcurrent;
+        executor = new ThreadPoolExecutor(maxThreads, maxThreads, KEEP_ALIVE,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), sThreadFactory);
+        executor.allowCoreThreadTimeOut(true);
+        for (int i = 0; i < PRIORITY_LANES; i++) {
+            lanes.add(new LinkedHashMap<String, ArrayDeque<Job>>());
+        }
+    }
+
+    /**
+     * @param url The url or path of the image, its host takes turns with other hosts
+     * @param priority One of {@link #PRIORITY_HIGH}, {@link #PRIORITY_NORMAL}, {@link #PRIORITY_LOW}
+     * @return A job to run exactly one runnable
+     */
+    public Job newJob(String url, int priority) {
+        return new Job(hostOf(url), checkPriority(priority));
+    }
+
+    /**
+     * Moves a job that is still waiting to another lane, for example when a visible request
+     * joins a prefetch. Does nothing if the job already runs.
+     */
+    public synchronized void setPriority(Job job, int priority) {
+        priority = checkPriority(priority);
+        if (job.priority == priority) {
+            return;
+        }
+        if (job.runnable != null && (!job.started || job.waitingHost != null) && remove(job)) {
+            job.priority = priority;
+            enqueue(job, job.waitingHost != null);
+            scheduleNext();
+        } else {
+            job.priority = priority;
+        }
+    }
+
+    private synchronized void submit(Job job) {
+        enqueue(job, false);
+        scheduleNext();
+    }
+
+    /**
+     * @param first Queue before the other jobs of the host, for a job that already ran
+     */
+    private void enqueue(Job job, boolean first) {
+        ArrayDeque<Job> queue = lanes.get(job.priority).get(job.host);
+        if (queue == null) {
+            queue = new ArrayDeque<Job>();
+            lanes.get(job.priority).put(job.host, queue);
+        }
+        if (first) {
+            queue.addFirst(job);
+        } else {
+            queue.add(job);
+        }
+    }
+
+    private boolean remove(Job job) {
+        final ArrayDeque<Job> queue = lanes.get(job.priority).get(job.host);
+        if (queue != null && queue.remove(job)) {
+            if (queue.isEmpty()) {
+                lanes.get(job.priority).remove(job.host);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Starts waiting jobs and wakes jobs waiting for their host while there are free slots.
+     */
+    private synchronized void scheduleNext() {
+        while (running < maxConcurrent) {
+            final Job job = pollNext();
+            if (job == null) {
+                return;
+            }
+            running++;
+            if (job.waitingHost != null) {
+                final String host = job.waitingHost;
+                job.waitingHost = null;
+                waiting--;
+                decrement(waitingPerHost, host);
+                increment(runningPerHost, host);
+                notifyAll();
+            } else {
+                job.started = true;
+                executor.execute(job);
+            }
+        }
+    }
+
+    /**
+     * @return The first job of the highest lane that can run now. Its host goes to the end of the
+     * turn order of its lane.
+     */
+    private Job pollNext() {
+        for (LinkedHashMap<String, ArrayDeque<Job>> lane : lanes) {
+            final Iterator<Map.Entry<String, ArrayDeque<Job>>> iterator =
+                    lane.entrySet().iterator();
+            while (iterator.hasNext()) {
+                final Map.Entry<String, ArrayDeque<Job>> entry = iterator.next();
+                final ArrayDeque<Job> queue = entry.getValue();
+                if (!canRun(queue.peek())) {
+                    continue;
+                }
+                final Job job = queue.poll();
+                iterator.remove();
+                if (!queue.isEmpty()) {
+                    lane.put(entry.getKey(), queue);
+                }
+                return job;
+            }
+        }
+        return null;
+    }
+
+    private boolean canRun(Job job) {
+        if (job.waitingHost != null) {
+            return count(runningPerHost, job.waitingHost) < maxPerHost;
+        }
+        // Behind the waiting jobs of its host, it would most likely wait as well
+        return waiting < maxConcurrent && count(waitingPerHost, job.host) == 0;
+    }
+
+    private synchronized void finished(Job job) {
+        running--;
+        scheduleNext();
+    }
+
+    /**
+     * Waits until fewer than the per-host limit of network sections run for the host of
+     * {@code url}, then counts this one. Call before downloading, and {@link #releaseHost} after.
+     * While a job waits here, its slot is given to other work.
+     *
+     * @return The host to pass to {@link #releaseHost}
+     * @throws InterruptedException if the thread is interrupted while waiting, the host is not
+     *                              taken then
+     */
+    public synchronized String acquireHost(String url) throws InterruptedException {
+        final String host = hostOf(url);
+        final Job job = currentJob.get();
+        if (job == null) {
+            // Not one of our jobs, waits on its own without a place in the lanes
+            while (count(runningPerHost, host) >= maxPerHost) {
+                wait();
+            }
+            increment(runningPerHost, host);
+            return host;
+        }
+        if (count(runningPerHost, host) < maxPerHost && count(waitingPerHost, host) == 0) {
+            increment(runningPerHost, host);
+            return host;
+        }
+
+        // Back to the lane, scheduleNext counts the host for the job when it is its turn
+        job.waitingHost = host;
+        waiting++;
+        increment(waitingPerHost, host);
+        enqueue(job, true);
+        running--;
+        scheduleNext();
+        try {
+            while (job.waitingHost != null) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            if (job.waitingHost != null) {
+                remove(job);
+                job.waitingHost = null;
+                waiting--;
+                decrement(waitingPerHost, host);
+                // May go over the limit for a moment, no new job starts until it is back under
+                running++;
+                throw e;
+            }
+            // Got the host just now, let the caller see the interrupt later
+            Thread.currentThread().interrupt();
+        }
+        return host;
+    }
+
+    /**
+     * Same as {@link #acquireHost} without waiting, for extra connections a job can do without.
+     *
+     * @return The host to pass to {@link #releaseHost}, null if the host has no free slot
+     */
+    public synchronized String tryAcquireHost(String url) {
+        final String host = hostOf(url);
+        if (count(runningPerHost, host) >= maxPerHost || count(waitingPerHost, host) > 0) {
+            return null;
+        }
+        increment(runningPerHost, host);
+        return host;
+    }
+
+    /**
+     * Ends a network section started with {@link #acquireHost}.
+     */
+    public synchronized void releaseHost(String host) {
+        decrement(runningPerHost, host);
+        scheduleNext();
+        notifyAll();
+    }
+
+    private static int count(HashMap<String, Integer> counts, String host) {
+        final Integer count = counts.get(host);
+        return count == null ? 0 : count;
+    }
+
+    private static void increment(HashMap<String, Integer> counts, String host) {
+        counts.put(host, count(counts, host) + 1);
+    }
+
+    private static void decrement(HashMap<String, Integer> counts, String host) {
+        final int count = count(counts, host) - 1;
+        if (count <= 0) {
+            counts.remove(host);
+        } else {
+            counts.put(host, count);
+        }
+    }
+
+    private static int checkPriority(int priority) {
+        if (priority < PRIORITY_HIGH || priority > PRIORITY_LOW) {
+            throw new IllegalArgumentException("Unknown priority " + priority);
+        }
+        return priority;
+    }
+
+    /**
+     * @return The host of an url, or an empty string for local paths
+     */
+    static String hostOf(String url) {
+        if (url == null) {
+            return "";
+        }
+        final int schemeEnd = url.indexOf("://");
+        if (schemeEnd == -1) {
+            return "";
+        }
+        final int start = schemeEnd + 3;
+        int end = start;
+        while (end < url.length()) {
+            final char c = url.charAt(end);
+            if (c == '/' || c == '?' || c == '#') {
+                break;
+            }
+            end++;
+        }
+        return url.substring(start, end);
+    }
+
+    /**
+     * One unit of work for the scheduler. Runs the first runnable given to {@link #execute}.
+     */
+    public final class Job implements Executor, Runnable {
+        private final String host;
+        private int priority;
+        private Runnable runnable;
+        private boolean started;
+        // The host the job waits for in acquireHost, null if it doesn't
+        private String waitingHost;
+
+        private Job(String host, int priority) {
+            this.host = host;
+            this.priority = priority;
+        }
+
+        @Override
+        public void execute(Runnable runnable) {
+            synchronized (FetchScheduler.this) {
+                if (this.runnable != null) {
+                    throw new IllegalStateException("Job already executed");
+                }
+                this.runnable = runnable;
+            }
+            submit(this);
+        }
+
+        @Override
+        public void run() {
+            currentJob.set(this);
+            try {
+                runnable.run();
+            } finally {
+                currentJob.remove();
+                finished(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package org.freemp.malevich;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Opens the network stream for an image url. {@link ImageWorker} writes the response to its http
+ * disk cache and keeps the validators to revalidate the entry later. The default implementation is
+ * {@link HttpUrlFetcher}, a custom one may be set with {@link Malevich.Builder#fetcher(Fetcher)},
+ * for example to use a pooled or multiplexing http client.
+ *
+ * Implementations are called from several worker threads at once and must be thread safe.
+ */
+public interface Fetcher {
+
+    /**
+     * Performs the request.
+     *
+     * @param request What to fetch and the validators of the cached copy, if any
+     * @return The response, the caller closes it. If the request was conditional and the cached
+     *         copy is still valid, the code is 304 and the body is null.
+     * @throws IOException if the response has no image, {@link HttpException} for http error
+     *                     codes
+     */
+    Response fetch(Request request) throws IOException;
+
+    /**
+     * Thrown for http error codes, so callers can tell them from a lost connection.
+     */
+    class HttpException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public final int code;
+
+        public HttpException(int code) {
+            super("Response code " + code);
+            this.code = code;
+        }
+    }
+
+    class Request {
+        public final String url;
+        // Validators of the cached copy for a conditional request, null and 0 if none
+        public String etag;
+        public long ifModifiedSince;
+        // Byte range to fetch, inclusive, -1 for an open end. The range is only sent if rangeStart
+        // is not -1, together with ifRange so a changed resource is returned whole with code 200.
+        public long rangeStart = -1;
+        public long rangeEnd = -1;
+        public String ifRange;
+
+        public Request(String url) {
+            this.url = url;
+        }
+    }
+
+    class Response implements Closeable {
+        public static final int HTTP_OK = 200;
+        public static final int HTTP_PARTIAL_CONTENT = 206;
+        public static final int HTTP_NOT_MODIFIED = 304;
+
+        public final int code;
+        public final InputStream body;
+        // -1 if unknown
+        public long contentLength = -1;
+        public String contentType;
+        public String etag;
+        // Values of the Last-Modified and Expires headers in milliseconds, 0 if none
+        public long lastModified;
+        public long expires;
+        public String cacheControl;
+        // True if the server announced Accept-Ranges: bytes
+        public boolean acceptRanges;
+        // The range of a 206 response from its Content-Range header, inclusive. -1 if none, the
+        // total is also -1 if the server doesn't know it.
+        public long rangeStart = -1;
+        public long rangeEnd = -1;
+        public long rangeTotal = -1;
+
+        public Response(int code, InputStream body) {
+            this.code = code;
+            this.body = body;
+        }
+
+        /**
+         * Sets the range fields from a Content-Range header like {@code bytes 0-99/1000}. They
+         * stay -1 if the header is missing or not valid.
+         */
+        public void setContentRange(String contentRange) {
+            rangeStart = rangeEnd = rangeTotal = -1;
+            if (contentRange == null || !contentRange.startsWith("bytes ")) {
+                return;
+            }
+            final int dash = contentRange.indexOf('-');
+            final int slash = contentRange.indexOf('/');
+            if (dash == -1 || slash < dash) {
+                return;
+            }
+            try {
+                final long start = Long.parseLong(contentRange.substring(6, dash).trim());
+                final long end = Long.parseLong(contentRange.substring(dash + 1, slash).trim());
+                final String totalString = contentRange.substring(slash + 1).trim();
+                final long total = totalString.equals("*") ? -1 : Long.parseLong(totalString);
+                if (start < 0 || start > end || (total >= 0 && end >= total)) {
+                    return;
+                }
+                rangeStart = start;
+                rangeEnd = end;
+                rangeTotal = total;
+            } catch (NumberFormatException e) {}
+        }
+
+        /**
+         * Releases the body and the underlying connection.
+         */
+        @Override
+        public void close() {
+            if (body != null) {
+                try {
+                    body.close();
+                } catch (IOException e) {}
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package org.freemp.malevich;
+
+/**
+ * How often keys were used recently, estimated in little memory for the TinyLFU admission of
+ * {@link ConcurrentLruCache} and {@link DiskLruCache}. A count-min sketch of 4 bit counters,
+ * 16 in each long, four of them for a key. The counters are halved after ten uses per counted
+ * key, so old popularity fades.
+ * <p>
+ * Not thread safe, the caches use it under their lock.
+ */
+final class FrequencySketch {
+
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long ONE_MASK = 0x1111111111111111L;
+    private static final int MIN_CAPACITY = 64;
+    private static final int MAX_CAPACITY = 1 << 24;
+
+    private long[] mTable;
+    private int mTableMask;
+    private int mSampleSize;
+    private int mSize;
+
+    FrequencySketch() {
+        ensureCapacity(MIN_CAPACITY);
+    }
+
+    /**
+     * Grows the sketch for this many keys. The counts are kept: the index of a counter in the
+     * larger table only has more bits of the same hash, so every old long is copied to each of
+     * the places its counters can move to. The old counts keep their collisions until they are
+     * halved away, new counts spread over the larger table.
+     */
+    void ensureCapacity(int capacity) {
+        final int maximum = Math.min(Math.max(capacity, MIN_CAPACITY), MAX_CAPACITY);
+        if (mTable != null && mTable.length >= maximum) {
+            return;
+        }
+        final long[] table = new long[Integer.highestOneBit(maximum - 1) << 1];
+        if (mTable != null) {
+            for (int i = 0; i < table.length; i++) {
+                table[i] = mTable[i & mTableMask];
+            }
+        }
+        mTable = table;
+        mTableMask = mTable.length - 1;
+        mSampleSize = 10 * maximum;
+    }
+
+    /**
+     * @return The estimated number of recent uses of {@code key}, at most 15
+     */
+    int frequency(Object key) {
+        final int hash = spread(key.hashCode());
+        final int start = (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            final int index = indexOf(hash, i);
+            final int count = (int) ((mTable[index] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Counts a use of {@code key}.
+     */
+    void increment(Object key) {
+        final int hash = spread(key.hashCode());
+        final int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if (added && ++mSize == mSampleSize) {
+            reset();
+        }
+    }
+
+    private boolean incrementAt(int index, int counter) {
+        final int offset = counter << 2;
+        final long mask = 0xfL << offset;
+        if ((mTable[index] & mask) != mask) {
+            mTable[index] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Halves all counters.
+     */
+    private void reset() {
+        int odd = 0;
+        for (int i = 0; i < mTable.length; i++) {
+            odd += Long.bitCount(mTable[i] & ONE_MASK);
+            mTable[i] = (mTable[i] >>> 1) & RESET_MASK;
+        }
+        mSize = (mSize >>> 1) - (odd >>> 2);
+    }
+
+    private int indexOf(int hash, int i) {
+        long index = (hash + SEEDS[i]) * SEEDS[i];
+        index += index >>> 32;
+        return ((int) index) & mTableMask;
+    }
+
+    private static int spread(int hash) {
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        return (hash >>> 16) ^ hash;
+    }
+}
@@ -0,0 +1,485 @@
+package org.freemp.malevich;
+
+import android.graphics.Bitmap;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Decodes the frames of an animated GIF one at a time while reading the stream, so only the
+ * current frame is in memory and not the whole animation. Frames are composed on a canvas of the
+ * logical screen size, sampled down if asked to, with the disposal methods of the previous frame
+ * applied first.
+ * <p>
+ * Not thread safe, one worker at a time.
+ */
+class GifDecoder implements Closeable {
+
+    /**
+     * Thrown if the animation would take too much memory, it may still be shown as a still image.
+     */
+    static class TooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        TooLargeException(String message) {
+            super(message);
+        }
+    }
+
+    private static final int MAX_STACK_SIZE = 4096;
+    // The color indices of a frame are a byte per pixel, 16MB at most
+    private static final int MAX_PIXELS = 4096 * 4096;
+    // The canvas, its copy and the color indices may take this share of the heap at most
+    private static final int MAX_HEAP_SHARE = 4;
+
+    // Disposal methods of the graphic control extension
+    private static final int DISPOSAL_BACKGROUND = 2;
+    private static final int DISPOSAL_PREVIOUS = 3;
+
+    // Browsers show frames without a delay, or a tiny one, at 10 fps
+    private static final int MIN_DELAY = 20;
+    private static final int DEFAULT_DELAY = 100;
+
+    private final InputStream mIn;
+    private final int mWidth;
+    private final int mHeight;
+    private int[] mGlobalColors;
+    private final int[] mLocalColors = new int[256];
+    private int mLoopCount;
+
+    // Composed frame, the state before the current frame if it restores to previous. Every
+    // mSample-th pixel of the screen in both directions.
+    private int mSample;
+    private int mCanvasWidth;
+    private int mCanvasHeight;
+    private int[] mCanvas;
+    private int[] mPrevious;
+    // Color indices of the frame being decoded
+    private byte[] mPixels;
+
+    // Graphic control of the next frame
+    private int mDisposal;
+    private int mDelay;
+    private int mTransparentIndex = -1;
+
+    // The last frame, disposed of before the next one is drawn
+    private int mLastDisposal;
+    private int mLastX, mLastY, mLastWidth, mLastHeight;
+
+    private final byte[] mBlock = new byte[256];
+    private int mBlockSize;
+    private final short[] mPrefix = new short[MAX_STACK_SIZE];
+    private final byte[] mSuffix = new byte[MAX_STACK_SIZE];
+    private final byte[] mPixelStack = new byte[MAX_STACK_SIZE + 1];
+
+    /**
+     * Reads the header and the global color table.
+     *
+     * @param in Buffered for speed, closed with the decoder
+     * @throws ImageHeader.NotAnImageException if the stream is not a GIF
+     */
+    GifDecoder(InputStream in) throws IOException {
+        mIn = in;
+        if (read() != 'G' || read() != 'I' || read() != 'F') {
+            throw new ImageHeader.NotAnImageException("Not a GIF");
+        }
+        skip(3);
+        mWidth = readShort();
+        mHeight = readShort();
+        if (mWidth <= 0 || mHeight <= 0 || (long) mWidth * mHeight > MAX_PIXELS) {
+            throw new IOException("Invalid GIF size " + mWidth + "x" + mHeight);
+        }
+        final int packed = read();
+        skip(2);
+        if ((packed & 0x80) != 0) {
+            mGlobalColors = new int[256];
+            readColorTable(mGlobalColors, 2 << (packed & 7));
+        }
+    }
+
+    /**
+     * Composes the frames at a lower resolution, only every {@code sample}th pixel is kept. Call
+     * before the first {@link #advance()}, the default is 1.
+     *
+     * @throws TooLargeException if the canvas would take too much of the heap even so
+     */
+    void setSample(int sample) throws TooLargeException {
+        final int canvasWidth = Math.max(1, mWidth / Math.max(1, sample));
+        final int canvasHeight = Math.max(1, mHeight / Math.max(1, sample));
+        // The canvas and its copy for frames that restore to previous, plus the color indices
+        final long bytes = 8L * canvasWidth * canvasHeight + (long) mWidth * mHeight;
+        if (bytes > Runtime.getRuntime().maxMemory() / MAX_HEAP_SHARE) {
+            throw new TooLargeException("GIF of " + mWidth + "x" + mHeight + " needs " + bytes
+                    + " bytes at sample " + sample);
+        }
+        mSample = Math.max(1, sample);
+        mCanvasWidth = canvasWidth;
+        mCanvasHeight = canvasHeight;
+        mCanvas = new int[canvasWidth * canvasHeight];
+        mPrevious = null;
+    }
+
+    int getWidth() {
+        return mWidth;
+    }
+
+    int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return How often the animation repeats, 0 for forever. Known after the first frame.
+     */
+    int getLoopCount() {
+        return mLoopCount;
+    }
+
+    /**
+     * @return How long the last decoded frame is shown, in milliseconds
+     */
+    int getDelay() {
+        return mDelay < MIN_DELAY ? DEFAULT_DELAY : mDelay;
+    }
+
+    /**
+     * Decodes the next frame onto the canvas.
+     *
+     * @return false at the end of the animation
+     * @throws TooLargeException if the first frame is decoded without {@link #setSample} and the
+     *                           canvas is too large
+     */
+    boolean advance() throws IOException {
+        if (mCanvas == null) {
+            setSample(1);
+        }
+        mDisposal = 0;
+        mDelay = 0;
+        mTransparentIndex = -1;
+        while (true) {
+            final int code = mIn.read();
+            switch (code) {
+                case 0x2C:
+                    readFrame();
+                    return true;
+                case 0x21:
+                    readExtension();
+                    break;
+                case 0x3B:
+                case -1:
+                    return false;
+                default:
+                    // Some encoders pad with zeros
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Copies the canvas into {@code bitmap}.
+     *
+     * @param bitmap Mutable, ARGB_8888 and {@link #getWidth()} / sample wide and high, at least 1
+     */
+    void getFrame(Bitmap bitmap) {
+        bitmap.setPixels(mCanvas, 0, mCanvasWidth, 0, 0, mCanvasWidth, mCanvasHeight);
+    }
+
+    @Override
+    public void close() {
+        try {
+            mIn.close();
+        } catch (IOException e) {}
+    }
+
+    private void readExtension() throws IOException {
+        final int label = read();
+        if (label == 0xF9) {
+            // Graphic control
+            readBlock();
+            if (mBlockSize >= 4) {
+                final int packed = mBlock[0] & 0xFF;
+                mDisposal = (packed >> 2) & 7;
+                mDelay = ((mBlock[1] & 0xFF) | (mBlock[2] & 0xFF) << 8) * 10;
+                mTransparentIndex = (packed & 1) != 0 ? mBlock[3] & 0xFF : -1;
+            }
+        } else if (label == 0xFF) {
+            // Application, NETSCAPE2.0 has the loop count
+            readBlock();
+            if (mBlockSize == 11 && new String(mBlock, 0, 11, "US-ASCII").equals("NETSCAPE2.0")) {
+                while (readBlock() > 0) {
+                    if (mBlockSize >= 3 && mBlock[0] == 1) {
+                        mLoopCount = (mBlock[1] & 0xFF) | (mBlock[2] & 0xFF) << 8;
+                    }
+                }
+                return;
+            }
+        }
+        skipBlocks();
+    }
+
+    private void readFrame() throws IOException {
+        dispose();
+
+        final int x = readShort();
+        final int y = readShort();
+        final int width = readShort();
+        final int height = readShort();
+        // Bounds the pixel count of the frame by the checked screen size
+        if (x + width > mWidth || y + height > mHeight) {
+            throw new IOException("GIF frame " + width + "x" + height + " at " + x + "," + y
+                    + " outside of " + mWidth + "x" + mHeight);
+        }
+        final int packed = read();
+        int[] colors = mGlobalColors;
+        if ((packed & 0x80) != 0) {
+            readColorTable(mLocalColors, 2 << (packed & 7));
+            colors = mLocalColors;
+        }
+        if (colors == null) {
+            throw new IOException("GIF frame without a color table");
+        }
+
+        if (mDisposal == DISPOSAL_PREVIOUS) {
+            if (mPrevious == null) {
+                mPrevious = new int[mCanvas.length];
+            }
+            System.arraycopy(mCanvas, 0, mPrevious, 0, mCanvas.length);
+        }
+
+        final int count = width * height;
+        if (mPixels == null || mPixels.length < count) {
+            mPixels = new byte[mWidth * mHeight];
+        }
+        decodePixels(count);
+        draw(colors, x, y, width, height, (packed & 0x40) != 0);
+
+        mLastDisposal = mDisposal;
+        mLastX = x;
+        mLastY = y;
+        mLastWidth = width;
+        mLastHeight = height;
+    }
+
+    /**
+     * Applies the disposal method of the last frame.
+     */
+    private void dispose() {
+        if (mLastDisposal != DISPOSAL_BACKGROUND && mLastDisposal != DISPOSAL_PREVIOUS) {
+            return;
+        }
+        // The canvas pixels of the last frame, those on the sample grid inside of it
+        final int left = ceilDiv(mLastX, mSample);
+        final int top = ceilDiv(mLastY, mSample);
+        final int right = Math.min(mCanvasWidth,
+                ceilDiv(Math.min(mWidth, mLastX + mLastWidth), mSample));
+        final int bottom = Math.min(mCanvasHeight,
+                ceilDiv(Math.min(mHeight, mLastY + mLastHeight), mSample));
+        for (int row = top; row < bottom; row++) {
+            final int from = row * mCanvasWidth + left;
+            final int to = row * mCanvasWidth + right;
+            if (from >= to) {
+                break;
+            }
+            if (mLastDisposal == DISPOSAL_PREVIOUS && mPrevious != null) {
+                System.arraycopy(mPrevious, from, mCanvas, from, to - from);
+            } else {
+                // Transparent rather than the background color, as browsers do
+                Arrays.fill(mCanvas, from, to, 0);
+            }
+        }
+    }
+
+    private static int ceilDiv(int value, int divisor) {
+        return (value + divisor - 1) / divisor;
+    }
+
+    /**
+     * Draws the decoded color indices onto the canvas, clipped to the logical screen. Only the
+     * pixels on the sample grid are drawn.
+     */
+    private void draw(int[] colors, int x, int y, int width, int height, boolean interlaced) {
+        int pass = 0;
+        int step = interlaced ? 8 : 1;
+        int line = 0;
+        for (int i = 0; i < height; i++) {
+            int row = i;
+            if (interlaced) {
+                while (line >= height && pass < 3) {
+                    pass++;
+                    line = pass == 1 ? 4 : pass == 2 ? 2 : 1;
+                    step = pass == 1 ? 8 : pass == 2 ? 4 : 2;
+                }
+                row = line;
+                line += step;
+            }
+            final int screenRow = y + row;
+            if (screenRow >= mHeight || screenRow % mSample != 0
+                    || screenRow / mSample >= mCanvasHeight) {
+                continue;
+            }
+            final int right = Math.min(width, Math.min(mWidth, mCanvasWidth * mSample) - x);
+            final int source = i * width;
+            final int target = screenRow / mSample * mCanvasWidth;
+            // The first column of the frame on the sample grid
+            for (int col = (mSample - x % mSample) % mSample; col < right; col += mSample) {
+                final int index = mPixels[source + col] & 0xFF;
+                if (index != mTransparentIndex) {
+                    mCanvas[target + (x + col) / mSample] = colors[index];
+                }
+            }
+        }
+    }
+
+    /**
+     * LZW decodes the image data into color indices.
+     */
+    private void decodePixels(int count) throws IOException {
+        final int dataSize = read();
+        if (dataSize < 1 || dataSize > 11) {
+            throw new IOException("Invalid GIF code size " + dataSize);
+        }
+        final int clear = 1 << dataSize;
+        final int endOfInformation = clear + 1;
+        int available = clear + 2;
+        int oldCode = -1;
+        int codeSize = dataSize + 1;
+        int codeMask = (1 << codeSize) - 1;
+        for (int code = 0; code < clear; code++) {
+            mPrefix[code] = 0;
+            mSuffix[code] = (byte) code;
+        }
+
+        int datum = 0;
+        int bits = 0;
+        int blockLeft = 0;
+        int blockIndex = 0;
+        int first = 0;
+        int top = 0;
+        int i = 0;
+        boolean ended = false;
+        while (i < count) {
+            if (top == 0) {
+                if (bits < codeSize) {
+                    if (blockLeft == 0) {
+                        blockLeft = readBlock();
+                        if (blockLeft <= 0) {
+                            ended = true;
+                            break;
+                        }
+                        blockIndex = 0;
+                    }
+                    datum += (mBlock[blockIndex++] & 0xFF) << bits;
+                    bits += 8;
+                    blockLeft--;
+                    continue;
+                }
+                int code = datum & codeMask;
+                datum >>= codeSize;
+                bits -= codeSize;
+
+                if (code > available || code == endOfInformation) {
+                    break;
+                }
+                if (code == clear) {
+                    codeSize = dataSize + 1;
+                    codeMask = (1 << codeSize) - 1;
+                    available = clear + 2;
+                    oldCode = -1;
+                    continue;
+                }
+                if (oldCode == -1) {
+                    mPixelStack[top++] = mSuffix[code];
+                    oldCode = code;
+                    first = code;
+                    continue;
+                }
+                final int inCode = code;
+                if (code == available) {
+                    mPixelStack[top++] = (byte) first;
+                    code = oldCode;
+                }
+                while (code > clear) {
+                    mPixelStack[top++] = mSuffix[code];
+                    code = mPrefix[code];
+                }
+                first = mSuffix[code] & 0xFF;
+                mPixelStack[top++] = (byte) first;
+
+                if (available < MAX_STACK_SIZE) {
+                    mPrefix[available] = (short) oldCode;
+                    mSuffix[available] = (byte) first;
+                    available++;
+                    if ((available & codeMask) == 0 && available < MAX_STACK_SIZE) {
+                        codeSize++;
+                        codeMask += available;
+                    }
+                }
+                oldCode = inCode;
+            }
+            top--;
+            mPixels[i++] = mPixelStack[top];
+        }
+        // A truncated frame shows what is behind it in the missing part
+        Arrays.fill(mPixels, i, count, (byte) (mTransparentIndex >= 0 ? mTransparentIndex : 0));
+        if (!ended) {
+            skipBlocks();
+        }
+    }
+
+    private void readColorTable(int[] colors, int size) throws IOException {
+        final byte[] table = new byte[size * 3];
+        readFully(table, table.length);
+        for (int i = 0, j = 0; i < size; i++) {
+            colors[i] = 0xFF000000 | (table[j++] & 0xFF) << 16 | (table[j++] & 0xFF) << 8
+                    | (table[j++] & 0xFF);
+        }
+    }
+
+    /**
+     * Reads one data sub-block into mBlock.
+     *
+     * @return Its size, 0 for the terminator
+     */
+    private int readBlock() throws IOException {
+        mBlockSize = read();
+        readFully(mBlock, mBlockSize);
+        return mBlockSize;
+    }
+
+    private void skipBlocks() throws IOException {
+        while (readBlock() > 0) {
+            // Skip up to the terminator
+        }
+    }
+
+    private void readFully(byte[] buffer, int count) throws IOException {
+        int offset = 0;
+        while (offset < count) {
+            final int read = mIn.read(buffer, offset, count - offset);
+            if (read == -1) {
+                throw new EOFException();
+            }
+            offset += read;
+        }
+    }
+
+    private void skip(int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            read();
+        }
+    }
+
+    private int readShort() throws IOException {
+        return read() | read() << 8;
+    }
+
+    private int read() throws IOException {
+        final int value = mIn.read();
+        if (value == -1) {
+            throw new EOFException();
+        }
+        return value;
+    }
+}
@@ -0,0 +1,382 @@
+package org.freemp.malevich;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.drawable.Animatable;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Plays an animated GIF. Frames are decoded one at a time from the cached file on the workers
+ * of the {@link ImageWorker} into a small ring of bitmaps from the {@link BitmapPool}, a few
+ * frames ahead of the one shown. The memory of an animation depends on its size and not on how
+ * many frames it has.
+ * <p>
+ * The animation pauses when the drawable is hidden, for example when its view is detached or
+ * invisible, and gives its frames back to the pool once it is no longer the drawable of a view.
+ * Get one with {@link ImageWorker#loadAnimated(Object, android.widget.ImageView, int, int)}.
+ */
+public class GifDrawable extends Drawable implements Animatable, Runnable {
+    private static final String TAG = "GifDrawable";
+
+    // The frame shown and the frames decoded ahead of it
+    private static final int FRAME_WINDOW = 3;
+
+    private final ImageWorker mImageWorker;
+    private final String mData;
+    private final int mSample;
+    private final int mWidth;
+    private final int mHeight;
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final boolean debug;
+
+    // The ring, the shown frame and how many are decoded after it. Guarded by this.
+    private final Bitmap[] mFrames = new Bitmap[FRAME_WINDOW];
+    private final int[] mDelays = new int[FRAME_WINDOW];
+    private int mShown;
+    private int mAhead;
+    private boolean mDecoding;
+    private boolean mWaiting;
+    private boolean mFinished;
+    private boolean mReleased;
+
+    private volatile boolean mRunning;
+
+    // Only touched by the worker that decodes, or when none does
+    private GifDecoder mDecoder;
+    private int mLoop;
+
+    private final Runnable mDecodeTask = new Runnable() {
+        @Override
+        public void run() {
+            decodeAhead();
+        }
+    };
+
+    private GifDrawable(ImageWorker imageWorker, String data, GifDecoder decoder, int sample,
+                        boolean debug) {
+        mImageWorker = imageWorker;
+        mData = data;
+        mDecoder = decoder;
+        mSample = sample;
+        mWidth = Math.max(1, decoder.getWidth() / sample);
+        mHeight = Math.max(1, decoder.getHeight() / sample);
+        this.debug = debug;
+    }
+
+    /**
+     * Opens the animation and decodes its first frame. Call on a worker thread.
+     *
+     * @throws ImageHeader.NotAnImageException if the image is not a GIF
+     * @throws GifDecoder.TooLargeException if the animation needs too much memory even when
+     *                                      sampled down to the requested size
+     * @return The drawable, or null if the image can't be opened
+     */
+    static GifDrawable open(ImageWorker imageWorker, String data, int reqWidth, int reqHeight,
+                            boolean debug, StringBuffer error) throws IOException {
+        final GifDecoder decoder = openDecoder(imageWorker, data, error);
+        if (decoder == null) {
+            return null;
+        }
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.outWidth = decoder.getWidth();
+        options.outHeight = decoder.getHeight();
+        final int sample = reqWidth > 0 && reqHeight > 0
+                ? Malevich.Utils.calculateInSampleSize(options, reqWidth, reqHeight) : 1;
+        try {
+            decoder.setSample(sample);
+        } catch (GifDecoder.TooLargeException e) {
+            decoder.close();
+            throw e;
+        }
+        final GifDrawable drawable = new GifDrawable(imageWorker, data, decoder, sample, debug);
+        final Bitmap frame = drawable.obtainFrame();
+        final int delay = drawable.decodeNext(frame);
+        drawable.mFrames[0] = frame;
+        if (delay < 0) {
+            drawable.recycle();
+            return null;
+        }
+        drawable.mDelays[0] = delay;
+        return drawable;
+    }
+
+    @Override
+    public void start() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+        final int delay;
+        synchronized (this) {
+            if (mReleased) {
+                mRunning = false;
+                return;
+            }
+            delay = mDelays[mShown];
+        }
+        scheduleSelf(this, SystemClock.uptimeMillis() + delay);
+        requestDecode();
+    }
+
+    @Override
+    public void stop() {
+        mRunning = false;
+        unscheduleSelf(this);
+    }
+
+    @Override
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    /**
+     * Stops the animation and gives the frames back to the pool. The drawable draws nothing
+     * afterwards.
+     */
+    public void recycle() {
+        stop();
+        synchronized (this) {
+            mReleased = true;
+            if (!mDecoding) {
+                releaseFrames();
+            }
+        }
+    }
+
+    /**
+     * Shows the next frame, scheduled when the current one is due.
+     */
+    @Override
+    public void run() {
+        if (!mRunning) {
+            return;
+        }
+        if (getCallback() == null) {
+            // No view shows the animation anymore
+            recycle();
+            return;
+        }
+        final int delay;
+        synchronized (this) {
+            if (mReleased) {
+                return;
+            }
+            if (mAhead == 0) {
+                // Shown as soon as it is decoded, unless the animation is over
+                mWaiting = !mFinished;
+                return;
+            }
+            mShown = (mShown + 1) % FRAME_WINDOW;
+            mAhead--;
+            delay = mDelays[mShown];
+        }
+        invalidateSelf();
+        scheduleSelf(this, SystemClock.uptimeMillis() + delay);
+        requestDecode();
+    }
+
+    @Override
+    public boolean setVisible(boolean visible, boolean restart) {
+        final boolean changed = super.setVisible(visible, restart);
+        if (visible) {
+            start();
+        } else {
+            stop();
+            if (getCallback() == null) {
+                recycle();
+            }
+        }
+        return changed;
+    }
+
+    @Override
+    public void draw(Canvas canvas) {
+        final Bitmap frame;
+        synchronized (this) {
+            frame = mReleased ? null : mFrames[mShown];
+        }
+        if (frame != null) {
+            canvas.drawBitmap(frame, null, getBounds(), mPaint);
+        }
+    }
+
+    @Override
+    public int getIntrinsicWidth() {
+        return mWidth;
+    }
+
+    @Override
+    public int getIntrinsicHeight() {
+        return mHeight;
+    }
+
+    @Override
+    public void setAlpha(int alpha) {
+        mPaint.setAlpha(alpha);
+        invalidateSelf();
+    }
+
+    @Override
+    public void setColorFilter(ColorFilter colorFilter) {
+        mPaint.setColorFilter(colorFilter);
+        invalidateSelf();
+    }
+
+    @Override
+    public int getOpacity() {
+        return PixelFormat.TRANSLUCENT;
+    }
+
+    /**
+     * Starts a worker that fills the free slots of the ring, unless one runs already.
+     */
+    private void requestDecode() {
+        synchronized (this) {
+            if (mDecoding || mReleased || mFinished || mAhead >= FRAME_WINDOW - 1) {
+                return;
+            }
+            mDecoding = true;
+        }
+        mImageWorker.executeDecode(mDecodeTask);
+    }
+
+    /**
+     * Decodes frames until the ring is full or the animation pauses. Runs on a worker.
+     */
+    private void decodeAhead() {
+        while (true) {
+            final int slot;
+            Bitmap frame;
+            synchronized (this) {
+                if (mReleased || mFinished || !mRunning || mAhead >= FRAME_WINDOW - 1) {
+                    mDecoding = false;
+                    if (mReleased) {
+                        releaseFrames();
+                    }
+                    return;
+                }
+                slot = (mShown + mAhead + 1) % FRAME_WINDOW;
+                frame = mFrames[slot];
+            }
+            if (frame == null) {
+                frame = obtainFrame();
+            }
+            final int delay = decodeNext(frame);
+            synchronized (this) {
+                mFrames[slot] = frame;
+                if (delay < 0) {
+                    mFinished = true;
+                    continue;
+                }
+                mDelays[slot] = delay;
+                mAhead++;
+                if (mWaiting) {
+                    mWaiting = false;
+                    mHandler.post(this);
+                }
+            }
+        }
+    }
+
+    /**
+     * Decodes the next frame into {@code frame}, from the start again after the last one.
+     *
+     * @return The delay of the frame, -1 at the end of the animation or on errors
+     */
+    private int decodeNext(Bitmap frame) {
+        try {
+            if (mDecoder == null) {
+                return -1;
+            }
+            if (!mDecoder.advance()) {
+                final int loopCount = mDecoder.getLoopCount();
+                mLoop++;
+                mDecoder.close();
+                mDecoder = null;
+                if (loopCount != 0 && mLoop > loopCount) {
+                    return -1;
+                }
+                mDecoder = openDecoder(mImageWorker, mData, new StringBuffer());
+                if (mDecoder == null) {
+                    return -1;
+                }
+                mDecoder.setSample(mSample);
+                if (!mDecoder.advance()) {
+                    return -1;
+                }
+            }
+            mDecoder.getFrame(frame);
+            return mDecoder.getDelay();
+        } catch (IOException e) {
+            Log.e(TAG, "decodeNext - " + e);
+            return -1;
+        }
+    }
+
+    private Bitmap obtainFrame() {
+        final ImageCache imageCache = mImageWorker.getImageCache();
+        final BitmapPool pool = imageCache != null ? imageCache.getBitmapPool() : null;
+        return pool != null ? pool.get(mWidth, mHeight, Bitmap.Config.ARGB_8888)
+                : Bitmap.createBitmap(mWidth, mHeight, Bitmap.Config.ARGB_8888);
+    }
+
+    /**
+     * Closes the decoder and puts the frames into the pool. Called with the lock held and no
+     * worker decoding.
+     */
+    private void releaseFrames() {
+        if (mDecoder != null) {
+            mDecoder.close();
+            mDecoder = null;
+        }
+        final ImageCache imageCache = mImageWorker.getImageCache();
+        final BitmapPool pool = imageCache != null ? imageCache.getBitmapPool() : null;
+        for (int i = 0; i < FRAME_WINDOW; i++) {
+            if (pool != null && mFrames[i] != null) {
+                pool.put(mFrames[i]);
+            }
+            mFrames[i] = null;
+        }
+        if (debug) {
+            Log.d(TAG, "released - " + mData);
+        }
+    }
+
+    private static GifDecoder openDecoder(ImageWorker imageWorker, String data,
+                                          StringBuffer error) throws IOException {
+        final SourceResolver.Source source = imageWorker.openSource(data, null, error);
+        if (source == null) {
+            return null;
+        }
+        final InputStream in = source.inputStream != null
+                ? source.inputStream : new FileInputStream(source.fileDescriptor);
+        // Closing the decoder closes the source
+        final InputStream buffered = new BufferedInputStream(new FilterInputStream(in) {
+            @Override
+            public void close() {
+                source.close();
+            }
+        }, 16 * 1024);
+        try {
+            return new GifDecoder(buffered);
+        } catch (IOException e) {
+            source.close();
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package org.freemp.malevich;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Default {@link Fetcher} built on {@link HttpURLConnection}.
+ */
+public class HttpUrlFetcher implements Fetcher {
+
+    @Override
+    public Response fetch(Request request) throws IOException {
+        Malevich.Utils.disableConnectionReuseIfNecessary();
+        final HttpURLConnection urlConnection =
+                (HttpURLConnection) new URL(request.url).openConnection();
+        try {
+            if (request.etag != null) {
+                urlConnection.setRequestProperty("If-None-Match", request.etag);
+            }
+            if (request.ifModifiedSince > 0) {
+                urlConnection.setIfModifiedSince(request.ifModifiedSince);
+            }
+            if (request.rangeStart >= 0) {
+                urlConnection.setRequestProperty("Range", "bytes=" + request.rangeStart + "-"
+                        + (request.rangeEnd >= 0 ? String.valueOf(request.rangeEnd) : ""));
+                if (request.ifRange != null) {
+                    urlConnection.setRequestProperty("If-Range", request.ifRange);
+                }
+            }
+
+            final int code = urlConnection.getResponseCode();
+            if (code >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                throw new HttpException(code);
+            }
+            final InputStream body = code == HttpURLConnection.HTTP_NOT_MODIFIED
+                    ? null : urlConnection.getInputStream();
+            final Response response = new Response(code, body) {
+                @Override
+                public void close() {
+                    super.close();
+                    urlConnection.disconnect();
+                }
+            };
+            response.contentLength = urlConnection.getContentLength();
+            response.contentType = urlConnection.getContentType();
+            response.etag = urlConnection.getHeaderField("ETag");
+            response.lastModified = urlConnection.getLastModified();
+            response.expires = urlConnection.getExpiration();
+            response.cacheControl = urlConnection.getHeaderField("Cache-Control");
+            response.acceptRanges = "bytes".equalsIgnoreCase(
+                    urlConnection.getHeaderField("Accept-Ranges"));
+            response.setContentRange(urlConnection.getHeaderField("Content-Range"));
+            return response;
+        } catch (IOException e) {
+            urlConnection.disconnect();
+            throw e;
+        }
+    }
+}
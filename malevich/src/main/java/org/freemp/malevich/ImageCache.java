@@ -20,7 +20,6 @@ import android.annotation.TargetApi;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
-import android.graphics.Bitmap.Config;
 import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.os.Build.VERSION_CODES;
@@ -33,12 +32,10 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.lang.ref.SoftReference;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Collections;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.IdentityHashMap;
 import java.util.Set;
 
 
@@ -58,6 +55,14 @@ public class ImageCache {
     // Default memory cache size in kilobytes
     private static final int DEFAULT_MEM_CACHE_SIZE = 1024 * 5; // 5MB
 
+    // Default parts of the memory cache: entries above 10% of it are large, and large entries
+    // get a quarter of it, so one detail image doesn't evict a whole grid of thumbnails
+    private static final float DEFAULT_LARGE_ENTRY_FRACTION = 0.1f;
+    private static final float DEFAULT_LARGE_CACHE_FRACTION = 0.25f;
+
+    // Default bitmap pool size in kilobytes
+    private static final int DEFAULT_BITMAP_POOL_SIZE = 1024 * 4; // 4MB
+
     // Default disk cache size in bytes
     private static final int DEFAULT_DISK_CACHE_SIZE = 1024 * 1024 * 10; // 10MB
 
@@ -66,18 +71,43 @@ public class ImageCache {
     private static final int DEFAULT_COMPRESS_QUALITY = 90;
     private static final int DISK_CACHE_INDEX = 0;
 
+    // MessageDigest is not thread safe, each thread keeps its own
+    private static final ThreadLocal<MessageDigest> sDigest = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                return null;
+            }
+        }
+    };
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
     // Constants to easily toggle various caches
     private static final boolean DEFAULT_MEM_CACHE_ENABLED = true;
     private static final boolean DEFAULT_DISK_CACHE_ENABLED = true;
     private static final boolean DEFAULT_INIT_DISK_CACHE_ON_CREATE = false;
+    private static final boolean DEFAULT_TINY_LFU = false;
 
     private DiskLruCache mDiskLruCache;
-    private LruCache<String, BitmapDrawable> mMemoryCache;
+    // Keyed by RequestKey for loaded images, by String for other entries like tiles
+    private ConcurrentLruCache<Object, BitmapDrawable> mMemoryCache;
+    private ConcurrentLruCache<Object, BitmapDrawable> mLargeMemoryCache;
+    // In kilobytes, entries above the first go to the large area, above the second to disk only
+    private int mLargeEntrySize;
+    private int mMaxMemoryEntrySize;
     private ImageCacheParams mCacheParams;
     private final Object mDiskCacheLock = new Object();
     private boolean mDiskCacheStarting = true;
 
-    private Set<SoftReference<Bitmap>> mReusableBitmaps;
+    private BitmapPool mBitmapPool;
+    // Bitmaps a worker still reads, by how many workers. They go to the pool only once the last
+    // one is done, even if their entries are removed before. Guarded by mPinned.
+    private final IdentityHashMap<Bitmap, Integer> mPinned = new IdentityHashMap<Bitmap, Integer>();
+    private final Set<Bitmap> mRemovedWhilePinned =
+            Collections.newSetFromMap(new IdentityHashMap<Bitmap, Boolean>());
     private final boolean debug;
 
     /**
@@ -125,46 +155,33 @@ public class ImageCache {
                 Log.d(TAG, "Memory cache created (size = " + mCacheParams.memCacheSize + ")");
             }
 
-            // If we're running on Honeycomb or newer, create a set of reusable bitmaps that can be
-            // populated into the inBitmap field of BitmapFactory.Options. Note that the set is
-            // of SoftReferences which will actually not be very effective due to the garbage
-            // collector being aggressive clearing Soft/WeakReferences. A better approach
-            // would be to use a strongly references bitmaps, however this would require some
-            // balancing of memory usage between this set and the bitmap LruCache. It would also
-            // require knowledge of the expected size of the bitmaps. From Honeycomb to JellyBean
-            // the size would need to be precise, from KitKat onward the size would just need to
-            // be the upper bound (due to changes in how inBitmap can re-use bitmaps).
-            if (Malevich.Utils.hasHoneycomb()) {
-                mReusableBitmaps =
-                        Collections.synchronizedSet(new HashSet<SoftReference<Bitmap>>());
+            // If we're running on Honeycomb or newer, create a pool of reusable bitmaps that can
+            // be populated into the inBitmap field of BitmapFactory.Options. The pool holds
+            // strong references up to its own size, so reuse doesn't depend on the garbage
+            // collector. From Honeycomb to JellyBean the size must be precise, from KitKat onward
+            // it just needs to be the upper bound (due to changes in how inBitmap can re-use
+            // bitmaps).
+            if (Malevich.Utils.hasHoneycomb() && mCacheParams.bitmapPoolSize > 0) {
+                mBitmapPool = new BitmapPool(mCacheParams.bitmapPoolSize * 1024, debug);
             }
 
-            mMemoryCache = new LruCache<String, BitmapDrawable>(mCacheParams.memCacheSize) {
-
-                /**
-                 * Notify the removed entry that is no longer being cached
-                 */
-                @Override
-                protected void entryRemoved(boolean evicted, String key,
-                                            BitmapDrawable oldValue, BitmapDrawable newValue) {
-
-                    if (Malevich.Utils.hasHoneycomb()) {
-                        // We're running on Honeycomb or later, so add the bitmap
-                        // to a SoftReference set for possible use with inBitmap later
-                        mReusableBitmaps.add(new SoftReference<Bitmap>(oldValue.getBitmap()));
-                    }
-                }
-
-                /**
-                 * Measure item size in kilobytes rather than units which is more practical
-                 * for a bitmap cache
-                 */
-                @Override
-                protected int sizeOf(String key, BitmapDrawable value) {
-                    final int bitmapSize = getBitmapSize(value) / 1024;
-                    return bitmapSize == 0 ? 1 : bitmapSize;
-                }
-            };
+            // Large entries have their own area, so they only evict each other
+            final int largeCacheSize =
+                    Math.round(mCacheParams.memCacheSize * mCacheParams.largeCacheFraction);
+            mLargeEntrySize =
+                    Math.round(mCacheParams.memCacheSize * mCacheParams.largeEntryFraction);
+            final int areaSize;
+            if (largeCacheSize > 0 && largeCacheSize < mCacheParams.memCacheSize) {
+                mMemoryCache = newMemoryCache(mCacheParams.memCacheSize - largeCacheSize);
+                mLargeMemoryCache = newMemoryCache(largeCacheSize);
+                areaSize = largeCacheSize;
+            } else {
+                mMemoryCache = newMemoryCache(mCacheParams.memCacheSize);
+                areaSize = mCacheParams.memCacheSize;
+            }
+            // An entry larger than its area would evict everything and itself
+            mMaxMemoryEntrySize = mCacheParams.maxMemCacheEntrySize > 0
+                    ? Math.min(mCacheParams.maxMemCacheEntrySize, areaSize) : areaSize;
         }
         //END_INCLUDE(init_memory_cache)
 
@@ -176,6 +193,42 @@ public class ImageCache {
         }
     }
 
+    private ConcurrentLruCache<Object, BitmapDrawable> newMemoryCache(int maxSize) {
+        // Lookups from the UI thread don't wait for workers that add or evict
+        return new ConcurrentLruCache<Object, BitmapDrawable>(maxSize, mCacheParams.tinyLfu) {
+
+            /**
+             * Notify the removed entry that is no longer being cached
+             */
+            @Override
+            protected void entryRemoved(boolean evicted, Object key,
+                                        BitmapDrawable oldValue, BitmapDrawable newValue) {
+
+                if (mBitmapPool != null) {
+                    final Bitmap bitmap = oldValue.getBitmap();
+                    synchronized (mPinned) {
+                        if (mPinned.containsKey(bitmap)) {
+                            mRemovedWhilePinned.add(bitmap);
+                            return;
+                        }
+                    }
+                    // We're running on Honeycomb or later, so add the bitmap
+                    // to the pool for possible use with inBitmap later
+                    mBitmapPool.put(bitmap);
+                }
+            }
+
+            /**
+             * Measure item size in kilobytes rather than units which is more practical
+             * for a bitmap cache
+             */
+            @Override
+            protected int sizeOf(Object key, BitmapDrawable value) {
+                return getMemorySize(value);
+            }
+        };
+    }
+
     /**
      * Initializes the disk cache.  Note that this includes disk access so this should not be
      * executed on the main/UI thread. By default an ImageCache does not initialize the disk
@@ -193,8 +246,8 @@ public class ImageCache {
                     }
                     if (getUsableSpace(diskCacheDir) > mCacheParams.diskCacheSize) {
                         try {
-                            mDiskLruCache = DiskLruCache.open(
-                                    diskCacheDir, 1, 1, mCacheParams.diskCacheSize);
+                            mDiskLruCache = DiskLruCache.open(diskCacheDir, 1, 1,
+                                    mCacheParams.diskCacheSize, mCacheParams.tinyLfu);
                             if (debug) {
                                 Log.d(TAG, "Disk cache initialized");
                             }
@@ -216,24 +269,48 @@ public class ImageCache {
      * @param value The bitmap drawable to store
      */
     public void addBitmapToCache(String data, BitmapDrawable value) {
-        //BEGIN_INCLUDE(add_bitmap_to_cache)
-        if (data == null || value == null) {
+        addBitmapToCache(data, data, value);
+    }
+
+    /**
+     * Adds a bitmap to both memory and disk cache, under a different key on disk, for example
+     * one that includes the version of the source.
+     * @param data Unique identifier for the bitmap in the memory cache
+     * @param diskData Unique identifier for the bitmap in the disk cache
+     * @param value The bitmap drawable to store
+     */
+    public void addBitmapToCache(String data, String diskData, BitmapDrawable value) {
+        if (data == null || diskData == null || value == null) {
             return;
         }
+        addToCaches(data, hashKeyForDisk(diskData), value);
+    }
 
-        // Add to memory cache
-        if (mMemoryCache != null) {
-
-            mMemoryCache.put(data, value);
+    /**
+     * Adds a loaded image to both memory and disk cache.
+     * @param key The request the bitmap was loaded for, the memory cache key
+     * @param diskKey The request with the version of the source, if it has one, for the disk
+     *                cache
+     * @param value The bitmap drawable to store
+     */
+    public void addBitmapToCache(RequestKey key, RequestKey diskKey, BitmapDrawable value) {
+        if (key == null || diskKey == null || value == null) {
+            return;
         }
+        addToCaches(key, diskKey.getDiskKey(), value);
+    }
+
+    private void addToCaches(Object data, String key, BitmapDrawable value) {
+        //BEGIN_INCLUDE(add_bitmap_to_cache)
+        // Add to memory cache
+        addToMemoryCache(data, value);
 
         synchronized (mDiskCacheLock) {
             // Add to disk cache
             if (mDiskLruCache != null) {
-                final String key = hashKeyForDisk(data);
                 OutputStream out = null;
                 try {
-                    DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
+                    DiskLruCache.Snapshot snapshot = mDiskLruCache.getUncounted(key);
                     if (snapshot == null) {
                         final DiskLruCache.Editor editor = mDiskLruCache.edit(key);
                         if (editor != null) {
@@ -262,6 +339,56 @@ public class ImageCache {
         //END_INCLUDE(add_bitmap_to_cache)
     }
 
+    /**
+     * Adds a bitmap to the memory cache only, for bitmaps that are cheap to decode again but
+     * not worth a disk write, like tiles of a large image.
+     * @param data Unique identifier for the bitmap to store
+     * @param value The bitmap drawable to store
+     */
+    public void addBitmapToMemoryCache(String data, BitmapDrawable value) {
+        if (data == null || value == null) {
+            return;
+        }
+        addToMemoryCache(data, value);
+    }
+
+    /**
+     * Adds a loaded image to the memory cache only.
+     * @param key The request the bitmap was loaded for
+     * @param value The bitmap drawable to store
+     */
+    public void addBitmapToMemoryCache(RequestKey key, BitmapDrawable value) {
+        if (key == null || value == null) {
+            return;
+        }
+        addToMemoryCache(key, value);
+    }
+
+    /**
+     * Puts the bitmap into the area of the memory cache for its size, or nowhere if it is too
+     * large to be kept in memory.
+     */
+    private void addToMemoryCache(Object data, BitmapDrawable value) {
+        if (mMemoryCache == null) {
+            return;
+        }
+        final int size = getMemorySize(value);
+        if (size > mMaxMemoryEntrySize) {
+            if (debug) {
+                Log.d(TAG, "Too large for the memory cache (size = " + size + ")");
+            }
+        } else if (mLargeMemoryCache != null && size > mLargeEntrySize) {
+            // A key lives in one area only, a copy in the other one is replaced
+            mLargeMemoryCache.put(data, value);
+            mMemoryCache.remove(data);
+        } else {
+            mMemoryCache.put(data, value);
+            if (mLargeMemoryCache != null) {
+                mLargeMemoryCache.remove(data);
+            }
+        }
+    }
+
     /**
      * Get from memory cache.
      *
@@ -269,12 +396,79 @@ public class ImageCache {
      * @return The bitmap drawable if found in cache, null otherwise
      */
     public BitmapDrawable getBitmapFromMemCache(String data) {
+        return getFromMemoryCache(data);
+    }
+
+    /**
+     * Get a loaded image from memory cache. Allocates nothing.
+     *
+     * @param key The request the bitmap was loaded for
+     * @return The bitmap drawable if found in cache, null otherwise
+     */
+    public BitmapDrawable getBitmapFromMemCache(RequestKey key) {
+        return getFromMemoryCache(key);
+    }
+
+    /**
+     * Same as {@link #getBitmapFromMemCache(RequestKey)}, and pins the bitmap found until
+     * {@link #unpinBitmap}, so it isn't pooled while a worker reads it.
+     */
+    BitmapDrawable pinBitmapFromMemCache(RequestKey key) {
+        // Entries are removed from the map before entryRemoved is called, so an entry found
+        // here is pinned before its removal can pool it
+        synchronized (mPinned) {
+            final BitmapDrawable value = getFromMemoryCache(key);
+            if (value != null) {
+                pinBitmap(value.getBitmap());
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Keeps {@code bitmap} out of the pool until {@link #unpinBitmap}, even if its entry is
+     * evicted or replaced meanwhile. Pin a bitmap before it is added to the cache.
+     */
+    void pinBitmap(Bitmap bitmap) {
+        synchronized (mPinned) {
+            final Integer pins = mPinned.get(bitmap);
+            mPinned.put(bitmap, pins == null ? 1 : pins + 1);
+        }
+    }
+
+    /**
+     * Ends a pin, the bitmap goes to the pool if its entry was removed meanwhile.
+     */
+    void unpinBitmap(Bitmap bitmap) {
+        synchronized (mPinned) {
+            final Integer pins = mPinned.get(bitmap);
+            if (pins == null) {
+                return;
+            }
+            if (pins > 1) {
+                mPinned.put(bitmap, pins - 1);
+                return;
+            }
+            mPinned.remove(bitmap);
+            if (!mRemovedWhilePinned.remove(bitmap)) {
+                return;
+            }
+        }
+        if (mBitmapPool != null) {
+            mBitmapPool.put(bitmap);
+        }
+    }
+
+    private BitmapDrawable getFromMemoryCache(Object data) {
         //BEGIN_INCLUDE(get_bitmap_from_mem_cache)
         BitmapDrawable memValue = null;
 
         if (mMemoryCache != null) {
             memValue = mMemoryCache.get(data);
         }
+        if (memValue == null && mLargeMemoryCache != null) {
+            memValue = mLargeMemoryCache.get(data);
+        }
 
         if (debug && memValue != null) {
             Log.d(TAG, "Memory cache hit");
@@ -291,8 +485,35 @@ public class ImageCache {
      * @return The bitmap if found in cache, null otherwise
      */
     public Bitmap getBitmapFromDiskCache(String data) {
+        return getBitmapFromDiskCache(data, 0);
+    }
+
+    /**
+     * Get from disk cache.
+     *
+     * @param data Unique identifier for which item to get
+     * @param decodeFlags Malevich.Utils.DECODE_* flags the bitmap was loaded with, so it gets
+     *                    the same config again
+     * @return The bitmap if found in cache, null otherwise
+     */
+    public Bitmap getBitmapFromDiskCache(String data, int decodeFlags) {
+        return getFromDiskCache(hashKeyForDisk(data), decodeFlags);
+    }
+
+    /**
+     * Get a loaded image from disk cache.
+     *
+     * @param key The request the bitmap was loaded for, with the version of its source if it
+     *            has one
+     * @param decodeFlags Malevich.Utils.DECODE_* flags the bitmap was loaded with
+     * @return The bitmap if found in cache, null otherwise
+     */
+    public Bitmap getBitmapFromDiskCache(RequestKey key, int decodeFlags) {
+        return getFromDiskCache(key.getDiskKey(), decodeFlags);
+    }
+
+    private Bitmap getFromDiskCache(String key, int decodeFlags) {
         //BEGIN_INCLUDE(get_bitmap_from_disk_cache)
-        final String key = hashKeyForDisk(data);
         Bitmap bitmap = null;
 
         synchronized (mDiskCacheLock) {
@@ -316,7 +537,8 @@ public class ImageCache {
                             // Decode bitmap, but we don't want to sample so give
                             // MAX_VALUE as the target dimensions
                             bitmap = Malevich.Utils.decodeSampledBitmapFromDescriptor(
-                                    fd, Integer.MAX_VALUE, Integer.MAX_VALUE, this);
+                                    fd, Integer.MAX_VALUE, Integer.MAX_VALUE, this,
+                                    decodeFlags & Malevich.Utils.DECODE_RGB_565_IF_OPAQUE);
                         }
                     }
                 } catch (final IOException e) {
@@ -340,37 +562,18 @@ public class ImageCache {
      */
     protected Bitmap getBitmapFromReusableSet(BitmapFactory.Options options) {
         //BEGIN_INCLUDE(get_bitmap_from_reusable_set)
-        Bitmap bitmap = null;
-
-        if (mReusableBitmaps != null && !mReusableBitmaps.isEmpty()) {
-            synchronized (mReusableBitmaps) {
-                final Iterator<SoftReference<Bitmap>> iterator = mReusableBitmaps.iterator();
-                Bitmap item;
-
-                while (iterator.hasNext()) {
-                    item = iterator.next().get();
-
-                    if (null != item && item.isMutable()) {
-                        // Check to see it the item can be used for inBitmap
-                        if (canUseForInBitmap(item, options)) {
-                            bitmap = item;
-
-                            // Remove from reusable set so it can't be used again
-                            iterator.remove();
-                            break;
-                        }
-                    } else {
-                        // Remove from the set if the reference has been cleared.
-                        iterator.remove();
-                    }
-                }
-            }
-        }
-
-        return bitmap;
+        return mBitmapPool != null ? mBitmapPool.get(options) : null;
         //END_INCLUDE(get_bitmap_from_reusable_set)
     }
 
+    /**
+     * @return The pool of bitmaps reused for decodes, null before Honeycomb or if disabled
+     *         with {@link ImageCacheParams#bitmapPoolSize}
+     */
+    public BitmapPool getBitmapPool() {
+        return mBitmapPool;
+    }
+
     /**
      * Clears both the memory and disk cache associated with this ImageCache object. Note that
      * this includes disk access so this should not be executed on the main/UI thread.
@@ -378,6 +581,12 @@ public class ImageCache {
     public void clearCache() {
         if (mMemoryCache != null) {
             mMemoryCache.evictAll();
+            if (mLargeMemoryCache != null) {
+                mLargeMemoryCache.evictAll();
+            }
+            if (mBitmapPool != null) {
+                mBitmapPool.clear();
+            }
             if (debug) {
                 Log.d(TAG, "Memory cache cleared");
             }
@@ -446,6 +655,8 @@ public class ImageCache {
      */
     public static class ImageCacheParams {
         public int memCacheSize = DEFAULT_MEM_CACHE_SIZE;
+        // In kilobytes like memCacheSize, 0 disables the bitmap pool
+        public int bitmapPoolSize = DEFAULT_BITMAP_POOL_SIZE;
         public int diskCacheSize = DEFAULT_DISK_CACHE_SIZE;
         public File diskCacheDir;
         public CompressFormat compressFormat = DEFAULT_COMPRESS_FORMAT;
@@ -453,6 +664,16 @@ public class ImageCache {
         public boolean memoryCacheEnabled = DEFAULT_MEM_CACHE_ENABLED;
         public boolean diskCacheEnabled = DEFAULT_DISK_CACHE_ENABLED;
         public boolean initDiskCacheOnCreate = DEFAULT_INIT_DISK_CACHE_ON_CREATE;
+        // Keep often shown images, like avatars, when a long feed is scrolled through once.
+        // Applies to the memory, disk and http caches.
+        public boolean tinyLfu = DEFAULT_TINY_LFU;
+        // Entries above this part of memCacheSize are kept in an own area of the memory cache
+        public float largeEntryFraction = DEFAULT_LARGE_ENTRY_FRACTION;
+        // The part of memCacheSize for that area, 0 for one area for all entries
+        public float largeCacheFraction = DEFAULT_LARGE_CACHE_FRACTION;
+        // In kilobytes, larger entries are only written to disk. 0 for the size of the area
+        // they would go to.
+        public int maxMemCacheEntrySize;
 
         /**
          * Create a set of image cache parameters that can be provided to
@@ -489,50 +710,6 @@ public class ImageCache {
         }
     }
 
-    /**
-     * @param candidate - Bitmap to check
-     * @param targetOptions - Options that have the out* value populated
-     * @return true if <code>candidate</code> can be used for inBitmap re-use with
-     *      <code>targetOptions</code>
-     */
-    @TargetApi(VERSION_CODES.KITKAT)
-    private static boolean canUseForInBitmap(
-            Bitmap candidate, BitmapFactory.Options targetOptions) {
-        //BEGIN_INCLUDE(can_use_for_inbitmap)
-        if (!Malevich.Utils.hasKitKat()) {
-            // On earlier versions, the dimensions must match exactly and the inSampleSize must be 1
-            return candidate.getWidth() == targetOptions.outWidth
-                    && candidate.getHeight() == targetOptions.outHeight
-                    && targetOptions.inSampleSize == 1;
-        }
-
-        // From Android 4.4 (KitKat) onward we can re-use if the byte size of the new bitmap
-        // is smaller than the reusable bitmap candidate allocation byte count.
-        int width = targetOptions.outWidth / targetOptions.inSampleSize;
-        int height = targetOptions.outHeight / targetOptions.inSampleSize;
-        int byteCount = width * height * getBytesPerPixel(candidate.getConfig());
-        return byteCount <= candidate.getAllocationByteCount();
-        //END_INCLUDE(can_use_for_inbitmap)
-    }
-
-    /**
-     * Return the byte usage per pixel of a bitmap based on its configuration.
-     * @param config The bitmap configuration.
-     * @return The byte usage per pixel.
-     */
-    private static int getBytesPerPixel(Config config) {
-        if (config == Config.ARGB_8888) {
-            return 4;
-        } else if (config == Config.RGB_565) {
-            return 2;
-        } else if (config == Config.ARGB_4444) {
-            return 2;
-        } else if (config == Config.ALPHA_8) {
-            return 1;
-        }
-        return 1;
-    }
-
     /**
      * Get a usable cache directory (external if available, internal otherwise).
      *
@@ -567,28 +744,21 @@ public class ImageCache {
      * disk filename.
      */
     public static String hashKeyForDisk(String key) {
-        String cacheKey;
-        try {
-            final MessageDigest mDigest = MessageDigest.getInstance("MD5");
-            mDigest.update(key.getBytes());
-            cacheKey = bytesToHexString(mDigest.digest());
-        } catch (NoSuchAlgorithmException e) {
-            cacheKey = String.valueOf(key.hashCode());
+        final MessageDigest digest = sDigest.get();
+        if (digest == null) {
+            return String.valueOf(key.hashCode());
         }
-        return cacheKey;
+        digest.update(key.getBytes());
+        return bytesToHexString(digest.digest());
     }
 
     private static String bytesToHexString(byte[] bytes) {
-        // http://stackoverflow.com/questions/332079
-        StringBuilder sb = new StringBuilder();
+        final char[] hex = new char[bytes.length * 2];
         for (int i = 0; i < bytes.length; i++) {
-            String hex = Integer.toHexString(0xFF & bytes[i]);
-            if (hex.length() == 1) {
-                sb.append('0');
-            }
-            sb.append(hex);
+            hex[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xf];
         }
-        return sb.toString();
+        return new String(hex);
     }
 
     /**
@@ -617,6 +787,14 @@ public class ImageCache {
         return bitmap.getRowBytes() * bitmap.getHeight();
     }
 
+    /**
+     * @return The size of a bitmap in the memory cache, in kilobytes and at least 1
+     */
+    private static int getMemorySize(BitmapDrawable value) {
+        final int bitmapSize = getBitmapSize(value) / 1024;
+        return bitmapSize == 0 ? 1 : bitmapSize;
+    }
+
     /**
      * Check how much usable space is available at a given path.
      *
@@ -0,0 +1,532 @@
+package org.freemp.malevich;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Dimensions, format, alpha, EXIF orientation and EXIF thumbnail of an image, read from its
+ * header without the native decoder. Knows JPEG, PNG, WebP (VP8, VP8L and VP8X), GIF and BMP.
+ * Other formats are left to {@link android.graphics.BitmapFactory}, markup like html error pages
+ * is rejected.
+ */
+public final class ImageHeader {
+
+    public enum Format {
+        JPEG("image/jpeg"), PNG("image/png"), WEBP("image/webp"), GIF("image/gif"), BMP("image/bmp");
+
+        public final String mimeType;
+
+        Format(String mimeType) {
+            this.mimeType = mimeType;
+        }
+    }
+
+    /**
+     * Thrown if the data is text, for example an html error page served instead of an image.
+     */
+    public static class NotAnImageException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public NotAnImageException(String message) {
+            super(message);
+        }
+    }
+
+    // JPEG segments before the frame header are skipped, but not further than this
+    private static final int MAX_SCAN = 256 * 1024;
+    private static final int SNIFF_SIZE = 32;
+
+    /** The EXIF orientation of images without one, or with the top row at the top. */
+    public static final int ORIENTATION_NORMAL = 1;
+
+    // The EXIF orientation tag in IFD0, the thumbnail offset and length in IFD1
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+    private static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+    private static final int MAX_IFD_ENTRIES = 256;
+
+    public final Format format;
+    /** The stored width, before the orientation is applied. */
+    public final int width;
+    /** The stored height, before the orientation is applied. */
+    public final int height;
+    public final boolean hasAlpha;
+    /**
+     * The EXIF orientation of a JPEG, 1 to 8 like ExifInterface.ORIENTATION_*, or
+     * {@link #ORIENTATION_NORMAL}.
+     */
+    public final int orientation;
+    /** The position of the JPEG thumbnail embedded in the EXIF data, 0 if there is none. */
+    public final long thumbnailOffset;
+    /** The length of the JPEG thumbnail embedded in the EXIF data, 0 if there is none. */
+    public final int thumbnailLength;
+
+    private ImageHeader(Format format, int width, int height, boolean hasAlpha) {
+        this(format, width, height, hasAlpha, null);
+    }
+
+    private ImageHeader(Format format, int width, int height, boolean hasAlpha, Exif exif) {
+        this.format = format;
+        this.width = width;
+        this.height = height;
+        this.hasAlpha = hasAlpha;
+        this.orientation = exif != null ? exif.orientation : ORIENTATION_NORMAL;
+        this.thumbnailOffset = exif != null ? exif.thumbnailOffset : 0;
+        this.thumbnailLength = exif != null ? exif.thumbnailLength : 0;
+    }
+
+    /**
+     * @return true if the orientation turns the image by 90 degrees, so the upright image is
+     *         {@link #height} wide and {@link #width} high
+     */
+    public boolean isTransposed() {
+        return orientation >= 5 && orientation <= 8;
+    }
+
+    /**
+     * Reads the header from the start of a stream. The stream is consumed, mark it before if the
+     * image is decoded from it afterwards.
+     *
+     * @return The header, or null if the format is not known or the header is incomplete
+     * @throws NotAnImageException if the stream holds markup instead of an image
+     */
+    public static ImageHeader read(InputStream in) throws IOException {
+        return read(new StreamReader(in));
+    }
+
+    /**
+     * Reads the header from the start of a file with positional reads, the position of the
+     * channel is left untouched.
+     *
+     * @return The header, or null if the format is not known or the header is incomplete
+     * @throws NotAnImageException if the file holds markup instead of an image
+     */
+    public static ImageHeader read(FileChannel channel) throws IOException {
+        return read(new ChannelReader(channel));
+    }
+
+    /**
+     * Reads the header from the first {@code length} bytes of {@code data}.
+     *
+     * @return The header, or null if the format is not known or the header is incomplete
+     * @throws NotAnImageException if the data is markup instead of an image
+     */
+    public static ImageHeader parse(byte[] data, int length) throws NotAnImageException {
+        try {
+            return read(new ArrayReader(data, length));
+        } catch (NotAnImageException e) {
+            throw e;
+        } catch (IOException e) {
+            // Arrays don't fail
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return format + " " + width + "x" + height + (hasAlpha ? " alpha" : "")
+                + (orientation != ORIENTATION_NORMAL ? " orientation " + orientation : "")
+                + (thumbnailLength > 0 ? " thumbnail " + thumbnailLength + " bytes" : "");
+    }
+
+    private static ImageHeader read(Reader reader) throws IOException {
+        final byte[] b = new byte[SNIFF_SIZE];
+        final int n = reader.read(0, b, SNIFF_SIZE);
+        if (n < 2) {
+            return null;
+        }
+        if (u8(b, 0) == 0xff && u8(b, 1) == 0xd8) {
+            return readJpeg(reader, b);
+        }
+        if (n >= 26 && u8(b, 0) == 0x89 && b[1] == 'P' && b[2] == 'N' && b[3] == 'G'
+                && b[12] == 'I' && b[13] == 'H' && b[14] == 'D' && b[15] == 'R') {
+            return readPng(reader, b);
+        }
+        if (n >= 30 && b[0] == 'R' && b[1] == 'I' && b[2] == 'F' && b[3] == 'F'
+                && b[8] == 'W' && b[9] == 'E' && b[10] == 'B' && b[11] == 'P') {
+            return readWebp(b);
+        }
+        if (n >= 10 && b[0] == 'G' && b[1] == 'I' && b[2] == 'F' && b[3] == '8') {
+            // Transparency is in the frame extensions, assume it
+            return new ImageHeader(Format.GIF, u16le(b, 6), u16le(b, 8), true);
+        }
+        if (n >= 26 && b[0] == 'B' && b[1] == 'M') {
+            return readBmp(b);
+        }
+        if (isMarkup(b, n)) {
+            throw notAnImage(b, n);
+        }
+        return null;
+    }
+
+    /**
+     * Walks the segments up to the frame header. The orientation and the thumbnail are taken
+     * from the EXIF segment, other application data is skipped.
+     */
+    private static ImageHeader readJpeg(Reader reader, byte[] b) throws IOException {
+        long position = 2;
+        Exif exif = null;
+        while (position < MAX_SCAN) {
+            if (reader.read(position, b, 4) < 4) {
+                return null;
+            }
+            if (u8(b, 0) != 0xff) {
+                return null;
+            }
+            final int marker = u8(b, 1);
+            if (marker == 0xff) {
+                // Fill byte
+                position++;
+                continue;
+            }
+            if (marker == 0x01 || (marker >= 0xd0 && marker <= 0xd8)) {
+                // Markers without a length
+                position += 2;
+                continue;
+            }
+            if (marker == 0xd9 || marker == 0xda) {
+                // End of image or start of scan without a frame header
+                return null;
+            }
+            final int length = u16be(b, 2);
+            if (length < 2) {
+                return null;
+            }
+            if (marker >= 0xc0 && marker <= 0xcf
+                    && marker != 0xc4 && marker != 0xc8 && marker != 0xcc) {
+                if (reader.read(position + 4, b, 5) < 5) {
+                    return null;
+                }
+                return new ImageHeader(Format.JPEG, u16be(b, 3), u16be(b, 1), false, exif);
+            }
+            if (marker == 0xe1 && exif == null) {
+                exif = readExif(reader, position + 4, length - 2, b);
+            }
+            position += 2 + length;
+        }
+        return null;
+    }
+
+    /**
+     * Finds the orientation tag in IFD0 and the thumbnail in IFD1 of an APP1 segment. Only reads
+     * forward and within the segment, so it works on streams too.
+     *
+     * @param start The position of the segment data, after the length
+     * @param length The length of the segment data
+     * @return The EXIF data, or null if the segment is not EXIF
+     */
+    private static Exif readExif(Reader reader, long start, int length, byte[] b)
+            throws IOException {
+        // "Exif\0\0" then the TIFF header: byte order, 42 and the offset of IFD0
+        if (length < 14 || reader.read(start, b, 14) < 14 || b[0] != 'E' || b[1] != 'x'
+                || b[2] != 'i' || b[3] != 'f' || b[4] != 0 || b[5] != 0) {
+            return null;
+        }
+        final boolean little;
+        if (b[6] == 'I' && b[7] == 'I') {
+            little = true;
+        } else if (b[6] == 'M' && b[7] == 'M') {
+            little = false;
+        } else {
+            return null;
+        }
+        final Exif exif = new Exif();
+        final long tiff = start + 6;
+        final long end = start + length;
+        // IFDs normally come in order after the header, anything before can't be read from a
+        // stream
+        long ifd = (little ? s32le(b, 10) : s32be(b, 10)) & 0xffffffffL;
+        long next = 8;
+        for (int index = 0; index < 2 && ifd >= next; index++) {
+            if (tiff + ifd + 2 > end || reader.read(tiff + ifd, b, 2) < 2) {
+                break;
+            }
+            final int count = little ? u16le(b, 0) : u16be(b, 0);
+            long entry = tiff + ifd + 2;
+            long thumbnailOffset = 0;
+            for (int i = 0; i < Math.min(count, MAX_IFD_ENTRIES); i++, entry += 12) {
+                if (entry + 12 > end || reader.read(entry, b, 12) < 12) {
+                    return exif;
+                }
+                final int tag = little ? u16le(b, 0) : u16be(b, 0);
+                if (index == 0 && tag == TAG_ORIENTATION) {
+                    // A SHORT, in the first two bytes of the value field
+                    final int value = little ? u16le(b, 8) : u16be(b, 8);
+                    if (value >= 1 && value <= 8) {
+                        exif.orientation = value;
+                    }
+                } else if (index == 1 && tag == TAG_THUMBNAIL_OFFSET) {
+                    thumbnailOffset = (little ? s32le(b, 8) : s32be(b, 8)) & 0xffffffffL;
+                } else if (index == 1 && tag == TAG_THUMBNAIL_LENGTH) {
+                    final long thumbnailLength =
+                            (little ? s32le(b, 8) : s32be(b, 8)) & 0xffffffffL;
+                    if (thumbnailOffset > 0 && tiff + thumbnailOffset + thumbnailLength <= end) {
+                        exif.thumbnailOffset = tiff + thumbnailOffset;
+                        exif.thumbnailLength = (int) thumbnailLength;
+                    }
+                }
+            }
+            if (count > MAX_IFD_ENTRIES || entry + 4 > end || reader.read(entry, b, 4) < 4) {
+                break;
+            }
+            next = entry + 4 - tiff;
+            ifd = (little ? s32le(b, 0) : s32be(b, 0)) & 0xffffffffL;
+        }
+        return exif;
+    }
+
+    /**
+     * IHDR gives the size and color type, palette and plain images have alpha only if a tRNS
+     * chunk comes before the image data.
+     */
+    private static ImageHeader readPng(Reader reader, byte[] b) throws IOException {
+        final int width = s32be(b, 16);
+        final int height = s32be(b, 20);
+        final int colorType = u8(b, 25);
+        if (colorType == 4 || colorType == 6) {
+            return new ImageHeader(Format.PNG, width, height, true);
+        }
+        // Signature and IHDR chunk
+        long position = 8 + 8 + 13 + 4;
+        while (position < MAX_SCAN) {
+            if (reader.read(position, b, 8) < 8) {
+                break;
+            }
+            if (b[4] == 't' && b[5] == 'R' && b[6] == 'N' && b[7] == 'S') {
+                return new ImageHeader(Format.PNG, width, height, true);
+            }
+            if (b[4] == 'I' && b[5] == 'D' && b[6] == 'A' && b[7] == 'T') {
+                break;
+            }
+            final long length = s32be(b, 0) & 0xffffffffL;
+            position += 8 + length + 4;
+        }
+        return new ImageHeader(Format.PNG, width, height, false);
+    }
+
+    private static ImageHeader readWebp(byte[] b) {
+        if (b[12] == 'V' && b[13] == 'P' && b[14] == '8') {
+            if (b[15] == ' ') {
+                // Lossy, key frame start code then 14 bit sizes
+                if (u8(b, 23) != 0x9d || u8(b, 24) != 0x01 || u8(b, 25) != 0x2a) {
+                    return null;
+                }
+                return new ImageHeader(Format.WEBP,
+                        u16le(b, 26) & 0x3fff, u16le(b, 28) & 0x3fff, false);
+            }
+            if (b[15] == 'L') {
+                // Lossless, signature then 14 bit sizes minus one and the alpha hint
+                if (u8(b, 20) != 0x2f) {
+                    return null;
+                }
+                final int bits = u8(b, 21) | u8(b, 22) << 8 | u8(b, 23) << 16 | u8(b, 24) << 24;
+                return new ImageHeader(Format.WEBP, (bits & 0x3fff) + 1,
+                        ((bits >>> 14) & 0x3fff) + 1, ((bits >>> 28) & 1) != 0);
+            }
+            if (b[15] == 'X') {
+                // Extended, flags then 24 bit canvas sizes minus one
+                return new ImageHeader(Format.WEBP, u24le(b, 24) + 1, u24le(b, 27) + 1,
+                        (u8(b, 20) & 0x10) != 0);
+            }
+        }
+        return null;
+    }
+
+    private static ImageHeader readBmp(byte[] b) {
+        final int dibSize = s32le(b, 14);
+        if (dibSize == 12) {
+            return new ImageHeader(Format.BMP, u16le(b, 18), u16le(b, 20), false);
+        }
+        if (dibSize < 40) {
+            return null;
+        }
+        // Negative height means top-down rows
+        return new ImageHeader(Format.BMP, s32le(b, 18), Math.abs(s32le(b, 22)),
+                u16le(b, 28) == 32);
+    }
+
+    /**
+     * Peeks at the first bytes of a stream, which is reset afterwards.
+     *
+     * @param in A stream that supports mark
+     * @throws NotAnImageException if the stream starts with markup instead of an image
+     */
+    static void checkNotMarkup(InputStream in) throws IOException {
+        final byte[] b = new byte[SNIFF_SIZE];
+        in.mark(SNIFF_SIZE);
+        int n = 0;
+        while (n < SNIFF_SIZE) {
+            final int read = in.read(b, n, SNIFF_SIZE - n);
+            if (read == -1) {
+                break;
+            }
+            n += read;
+        }
+        in.reset();
+        if (isMarkup(b, n)) {
+            throw notAnImage(b, n);
+        }
+    }
+
+    private static NotAnImageException notAnImage(byte[] b, int length) throws IOException {
+        return new NotAnImageException("Not an image, starts with "
+                + new String(b, 0, length, "ISO-8859-1").trim());
+    }
+
+    /**
+     * @return true if the data starts like html, xml or json after an optional BOM and spaces
+     */
+    static boolean isMarkup(byte[] b, int length) {
+        int i = 0;
+        if (length >= 3 && u8(b, 0) == 0xef && u8(b, 1) == 0xbb && u8(b, 2) == 0xbf) {
+            i = 3;
+        }
+        while (i < length && (b[i] == ' ' || b[i] == '\t' || b[i] == '\r' || b[i] == '\n')) {
+            i++;
+        }
+        return i < length && (b[i] == '<' || b[i] == '{' || b[i] == '[');
+    }
+
+    private static int u8(byte[] b, int i) {
+        return b[i] & 0xff;
+    }
+
+    private static int u16be(byte[] b, int i) {
+        return u8(b, i) << 8 | u8(b, i + 1);
+    }
+
+    private static int u16le(byte[] b, int i) {
+        return u8(b, i) | u8(b, i + 1) << 8;
+    }
+
+    private static int u24le(byte[] b, int i) {
+        return u8(b, i) | u8(b, i + 1) << 8 | u8(b, i + 2) << 16;
+    }
+
+    private static int s32be(byte[] b, int i) {
+        return u8(b, i) << 24 | u8(b, i + 1) << 16 | u8(b, i + 2) << 8 | u8(b, i + 3);
+    }
+
+    private static int s32le(byte[] b, int i) {
+        return u8(b, i) | u8(b, i + 1) << 8 | u8(b, i + 2) << 16 | u8(b, i + 3) << 24;
+    }
+
+    /**
+     * What the EXIF segment of a JPEG tells about the image.
+     */
+    private static class Exif {
+        int orientation = ORIENTATION_NORMAL;
+        long thumbnailOffset;
+        int thumbnailLength;
+    }
+
+    /**
+     * Reads bytes at increasing positions.
+     */
+    private abstract static class Reader {
+        /**
+         * @return How many bytes were read, less than {@code count} only at the end of the data
+         */
+        abstract int read(long position, byte[] buffer, int count) throws IOException;
+    }
+
+    private static class ArrayReader extends Reader {
+        private final byte[] data;
+        private final int length;
+
+        ArrayReader(byte[] data, int length) {
+            this.data = data;
+            this.length = length;
+        }
+
+        @Override
+        int read(long position, byte[] buffer, int count) {
+            if (position >= length) {
+                return 0;
+            }
+            final int n = (int) Math.min(count, length - position);
+            System.arraycopy(data, (int) position, buffer, 0, n);
+            return n;
+        }
+    }
+
+    private static class ChannelReader extends Reader {
+        private final FileChannel channel;
+
+        ChannelReader(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        int read(long position, byte[] buffer, int count) throws IOException {
+            final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, count);
+            while (byteBuffer.hasRemaining()) {
+                if (channel.read(byteBuffer, position + byteBuffer.position()) == -1) {
+                    break;
+                }
+            }
+            return byteBuffer.position();
+        }
+    }
+
+    /**
+     * Streams only go forward, the first bytes are kept so the parsers may read them again.
+     */
+    private static class StreamReader extends Reader {
+        private final InputStream in;
+        private final byte[] mHead = new byte[SNIFF_SIZE];
+        private int mHeadLength;
+        private long mPosition;
+
+        StreamReader(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        int read(long position, byte[] buffer, int count) throws IOException {
+            int n = 0;
+            if (mPosition == 0) {
+                mHeadLength = readFully(mHead, 0, SNIFF_SIZE);
+                mPosition = mHeadLength;
+            }
+            if (position < mHeadLength) {
+                n = (int) Math.min(count, mHeadLength - position);
+                System.arraycopy(mHead, (int) position, buffer, 0, n);
+                position += n;
+            }
+            if (n == count || mHeadLength < SNIFF_SIZE) {
+                return n;
+            }
+            if (position < mPosition) {
+                throw new IOException("Can't read backwards in a stream");
+            }
+            while (mPosition < position) {
+                final long skipped = in.skip(position - mPosition);
+                if (skipped > 0) {
+                    mPosition += skipped;
+                } else if (in.read() != -1) {
+                    mPosition++;
+                } else {
+                    return n;
+                }
+            }
+            final int read = readFully(buffer, n, count - n);
+            mPosition += read;
+            return n + read;
+        }
+
+        private int readFully(byte[] buffer, int offset, int count) throws IOException {
+            int n = 0;
+            while (n < count) {
+                final int read = in.read(buffer, offset + n, count - n);
+                if (read == -1) {
+                    break;
+                }
+                n += read;
+            }
+            return n;
+        }
+    }
+}
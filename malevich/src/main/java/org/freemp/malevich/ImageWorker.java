@@ -28,15 +28,19 @@ import android.util.Log;
 import android.widget.ImageView;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileDescriptor;
 import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.ref.WeakReference;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 
 /**
  * This class wraps up completing some arbitrary long running work when loading a bitmap to an
@@ -46,16 +50,38 @@ import java.net.URL;
 public class ImageWorker {
     private static final String TAG = "Malevich: ImageWorker";
     private static final int FADE_IN_TIME = 200;
+    private static final int DEFAULT_MAX_CONCURRENT_FETCHES = 4;
+    private static final int DEFAULT_MAX_FETCHES_PER_HOST = 2;
 
     private ImageCache mImageCache;
     private ImageCache.ImageCacheParams mImageCacheParams;
     private Bitmap mLoadingBitmap;
     private boolean mFadeInBitmap = true;
+    private boolean mStreamingDecode = false;
+    // Malevich.Utils.DECODE_* flags of loads that don't ask for others
+    private int mDecodeFlags = 0;
+    private Fetcher mFetcher = new HttpUrlFetcher();
+    private final ResumableDownloader mResumableDownloader;
+    private FetchScheduler mFetchScheduler =
+            new FetchScheduler(DEFAULT_MAX_CONCURRENT_FETCHES, DEFAULT_MAX_FETCHES_PER_HOST);
     private boolean mExitTasksEarly = false;
     protected boolean mPauseWork = false;
     private final Object mPauseWorkLock = new Object();
 
+    // Tasks in flight by memory cache key, so identical requests share one download and decode.
+    // Only touched from the UI thread.
+    private final HashMap<RequestKey, BitmapWorkerTask> mPendingTasks =
+            new HashMap<RequestKey, BitmapWorkerTask>();
+    // Reused for the lookups of loadImage and prefetch on the UI thread, a key is only created
+    // for loads that start a task
+    private final RequestKey mLookupKey = RequestKey.newProbe();
+
     protected Resources mResources;
+    private final Context mContext;
+
+    // Local source resolvers by lower case uri scheme, http and https use the http disk cache
+    private final HashMap<String, SourceResolver> mSourceResolvers =
+            new HashMap<String, SourceResolver>();
 
     private static final int MESSAGE_CLEAR = 0;
     private static final int MESSAGE_INIT_DISK_CACHE = 1;
@@ -65,18 +91,54 @@ public class ImageWorker {
 
     private static final int HTTP_CACHE_SIZE = 10 * 1024 * 1024; // 10MB
     private static final String HTTP_CACHE_DIR = "http";
+    private static final String HTTP_PARTIAL_DIR = "http-partial";
+    // Version 2 added the response metadata value to every http cache entry
+    private static final int HTTP_CACHE_VERSION = 2;
+    private static final int HTTP_CACHE_VALUE_COUNT = 2;
     private static final int IO_BUFFER_SIZE = 8 * 1024;
 
+    // Copy buffers are kept per thread, worker threads are pooled so the buffers are reused too
+    private static final ThreadLocal<byte[]> sIoBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[IO_BUFFER_SIZE];
+        }
+    };
+
+    /**
+     * @return The copy buffer of the calling thread
+     */
+    static byte[] getIoBuffer() {
+        return sIoBuffer.get();
+    }
+
     private DiskLruCache mHttpDiskCache;
     private File mHttpCacheDir;
     private boolean mHttpDiskCacheStarting = true;
     private final Object mHttpDiskCacheLock = new Object();
     private static final int DISK_CACHE_INDEX = 0;
+    private static final int HTTP_METADATA_INDEX = 1;
+
+    // Downloads are serialized per key only, so different urls fetch and commit concurrently
+    private static final int HTTP_KEY_LOCK_STRIPES = 32;
+    private final Object[] mHttpKeyLocks = new Object[HTTP_KEY_LOCK_STRIPES];
 
     protected ImageWorker(Context context, boolean debug) {
         this.debug = debug;
         mResources = context.getResources();
+        mContext = context.getApplicationContext();
+        mSourceResolvers.put("file", LocalSourceResolvers.FILE);
+        mSourceResolvers.put("content", LocalSourceResolvers.CONTENT);
+        mSourceResolvers.put("android.resource", LocalSourceResolvers.ANDROID_RESOURCE);
+        mSourceResolvers.put("asset", LocalSourceResolvers.ASSET);
+        mSourceResolvers.put("data", LocalSourceResolvers.DATA);
+        mSourceResolvers.put("audio", LocalSourceResolvers.AUDIO);
         mHttpCacheDir = ImageCache.getDiskCacheDir(context, HTTP_CACHE_DIR);
+        mResumableDownloader = new ResumableDownloader(
+                ImageCache.getDiskCacheDir(context, HTTP_PARTIAL_DIR), debug);
+        for (int i = 0; i < HTTP_KEY_LOCK_STRIPES; i++) {
+            mHttpKeyLocks[i] = new Object();
+        }
     }
 
     /**
@@ -88,12 +150,40 @@ public class ImageWorker {
      *
      * @param data The URL of the image to download.
      * @param imageView The ImageView to bind the downloaded image to.
+     * @deprecated The result is only cached in memory, for the same listener instance, use
+     *             {@link #loadImage(Object, ImageView, int, int, List, int)} with
+     *             {@link Transformation}s
      */
+    @Deprecated
     public void loadImage(Object data, ImageView imageView, int reqWidth, int reqHeight, Malevich.ImageDecodedListener imageDecodedListener) {
+        loadImage(data, imageView, reqWidth, reqHeight,
+                ListenerTransformation.wrap(data, imageDecodedListener),
+                FetchScheduler.PRIORITY_NORMAL);
+    }
+
+    /**
+     * Same as {@link #loadImage(Object, ImageView, int, int, Malevich.ImageDecodedListener)},
+     * the decoded bitmap goes through the transformations in order and the background work waits
+     * in the given priority lane of the {@link FetchScheduler}.
+     *
+     * @param transformations Applied in order, may be null
+     */
+    public void loadImage(Object data, ImageView imageView, int reqWidth, int reqHeight, List<Transformation> transformations, int priority) {
+        loadImage(data, imageView, reqWidth, reqHeight, transformations, priority, mDecodeFlags);
+    }
+
+    /**
+     * Same as {@link #loadImage(Object, ImageView, int, int, List, int)},
+     * decoded with the given Malevich.Utils.DECODE_* flags instead of {@link #getDecodeFlags()}.
+     */
+    public void loadImage(Object data, ImageView imageView, int reqWidth, int reqHeight, List<Transformation> transformations, int priority, int decodeFlags) {
         if (data == null) {
             return;
         }
+        recycleAnimation(imageView);
 
+        final RequestKey key =
+                mLookupKey.set(data, reqWidth, reqHeight, decodeFlags, transformations);
         BitmapDrawable value = null;
 
         // If bitmap setted, don't use cache
@@ -104,7 +194,7 @@ public class ImageWorker {
 
         // Check cache
         if (value == null && mImageCache != null) {
-            value = mImageCache.getBitmapFromMemCache(String.valueOf(data)+"#width"+reqWidth+"#height"+reqHeight);
+            value = mImageCache.getBitmapFromMemCache(key);
         }
 
         if (value == null && data instanceof BitmapDrawable) {
@@ -122,23 +212,222 @@ public class ImageWorker {
             imageView.setImageDrawable(value);
         } else {
             if (cancelPotentialWork(data, imageView)) {
+                // Same image with same size is already loading for another view, wait for it
+                final BitmapWorkerTask pendingTask = mPendingTasks.get(key);
+                if (pendingTask != null && !pendingTask.isCancelled()) {
+                    if (debug) {
+                        Log.d(TAG, "loadImage - attached to pending task " + key);
+                    }
+                    pendingTask.attachImageView(imageView);
+                    if (priority < pendingTask.mPriority) {
+                        pendingTask.mPriority = priority;
+                        mFetchScheduler.setPriority(pendingTask.mJob, priority);
+                    }
+                    imageView.setImageDrawable(
+                            new AsyncDrawable(mResources, mLoadingBitmap, pendingTask));
+                    return;
+                }
+
                 //BEGIN_INCLUDE(execute_background_task)
-                final BitmapWorkerTask task = new BitmapWorkerTask(data, imageView, reqWidth, reqHeight, imageDecodedListener);
+                final BitmapWorkerTask task = new BitmapWorkerTask(data, key.copy(), imageView, reqWidth, reqHeight, transformations);
+                task.mPriority = priority;
+                task.mDecodeFlags = decodeFlags;
+                task.mJob = mFetchScheduler.newJob(String.valueOf(data), priority);
                 final AsyncDrawable asyncDrawable =
                         new AsyncDrawable(mResources, mLoadingBitmap, task);
 
                 imageView.setImageDrawable(asyncDrawable);
+                mPendingTasks.put(task.mKey, task);
 
                 // NOTE: This uses a custom version of AsyncTask that has been pulled from the
                 // framework and slightly modified. Refer to the docs at the top of the class
                 // for more info on what was changed.
-                task.executeOnExecutor(AsyncTask.DUAL_THREAD_EXECUTOR);
+                task.executeOnExecutor(task.mJob);
                 //END_INCLUDE(execute_background_task)
             }
         }
     }
 
 
+    /**
+     * Loads images into the memory and disk cache of the {@link ImageCache} without showing them,
+     * so later loads with the same size are served from the cache. Prefetch work runs with
+     * {@link FetchScheduler#PRIORITY_LOW}. A visible load of the same image joins the
+     * prefetch and raises its priority. Must be called from the UI thread.
+     *
+     * @param urls The images to load
+     * @return A handle to cancel the prefetch
+     */
+    public Prefetch prefetch(Collection<String> urls, int reqWidth, int reqHeight) {
+        final Prefetch prefetch = new Prefetch();
+        for (String url : urls) {
+            if (url == null) {
+                continue;
+            }
+            final RequestKey key = mLookupKey.set(url, reqWidth, reqHeight, mDecodeFlags, null);
+            if (mPendingTasks.containsKey(key)
+                    || (mImageCache != null && mImageCache.getBitmapFromMemCache(key) != null)) {
+                continue;
+            }
+            final BitmapWorkerTask task =
+                    new BitmapWorkerTask(url, key.copy(), null, reqWidth, reqHeight, null);
+            task.mPrefetch = true;
+            task.mPriority = FetchScheduler.PRIORITY_LOW;
+            task.mDecodeFlags = mDecodeFlags;
+            task.mJob = mFetchScheduler.newJob(url, FetchScheduler.PRIORITY_LOW);
+            mPendingTasks.put(task.mKey, task);
+            prefetch.mTasks.add(task);
+            task.executeOnExecutor(task.mJob);
+        }
+        return prefetch;
+    }
+
+    /**
+     * Downloads images into the http disk cache only, without decoding them. Cheaper than
+     * {@link #prefetch(Collection, int, int)} when the display size is not known yet.
+     *
+     * @param urls The images to download
+     * @return A handle to cancel the prefetch
+     */
+    public Prefetch prefetchToDisk(Collection<String> urls) {
+        final Prefetch prefetch = new Prefetch();
+        for (String url : urls) {
+            if (url == null
+                    || !LocalSourceResolvers.isHttpScheme(LocalSourceResolvers.getScheme(url))) {
+                continue;
+            }
+            final DownloadTask task = new DownloadTask(url);
+            prefetch.mTasks.add(task);
+            task.executeOnExecutor(mFetchScheduler.newJob(url, FetchScheduler.PRIORITY_LOW));
+        }
+        return prefetch;
+    }
+
+    /**
+     * Opens a huge image for tiled viewing, only the visible region is decoded at the needed
+     * sample level. See {@link TiledImage}.
+     *
+     * @param data The uri of the image, JPEG or PNG
+     * @param previewSize The preview of the whole image is scaled down to about this size
+     * @param listener Told when the image is opened and when tiles are decoded
+     * @return The image, usable after {@link TiledImage.Listener#onReady(TiledImage, String)}
+     */
+    public TiledImage loadTiled(String data, int previewSize, TiledImage.Listener listener) {
+        final TiledImage image =
+                new TiledImage(this, mResources, data, previewSize, listener, debug);
+        image.open(mFetchScheduler.newJob(data, FetchScheduler.PRIORITY_HIGH));
+        return image;
+    }
+
+    /**
+     * Plays an animated GIF in the ImageView, see {@link GifDrawable}. The loading image is shown
+     * until the first frame is decoded. Other images are loaded as with
+     * {@link #loadImage(Object, ImageView, int, int, List, int)}, animated WebP shows its first
+     * frame, the platform can't decode its other frames. So does a GIF too large to animate in
+     * the heap at the requested size.
+     *
+     * @param data The uri of the image
+     * @param reqWidth Frames are sampled down to about this width
+     * @param reqHeight Frames are sampled down to about this height
+     */
+    public void loadAnimated(final Object data, ImageView imageView, final int reqWidth,
+                             final int reqHeight) {
+        if (!(data instanceof String)) {
+            loadImage(data, imageView, reqWidth, reqHeight, null, FetchScheduler.PRIORITY_NORMAL);
+            return;
+        }
+        cancelWork(imageView);
+        recycleAnimation(imageView);
+        // The view still waits for the animation while it shows this drawable
+        final BitmapDrawable placeholder = new BitmapDrawable(mResources, mLoadingBitmap);
+        imageView.setImageDrawable(placeholder);
+        final WeakReference<ImageView> imageViewReference = new WeakReference<ImageView>(imageView);
+
+        new AsyncTask<Void, Void, GifDrawable>() {
+            // Not a GIF, or too large to animate, loaded as a still image instead
+            private boolean mStill;
+
+            @Override
+            protected GifDrawable doInBackground(Void... params) {
+                try {
+                    return GifDrawable.open(ImageWorker.this, (String) data, reqWidth, reqHeight,
+                            debug, new StringBuffer());
+                } catch (ImageHeader.NotAnImageException e) {
+                    mStill = true;
+                } catch (GifDecoder.TooLargeException e) {
+                    if (debug) {
+                        Log.d(TAG, "loadAnimated - " + e);
+                    }
+                    mStill = true;
+                } catch (IOException e) {
+                    Log.e(TAG, "loadAnimated - " + e);
+                }
+                return null;
+            }
+
+            @Override
+            protected void onPostExecute(GifDrawable drawable) {
+                final ImageView imageView = imageViewReference.get();
+                if (imageView == null || imageView.getDrawable() != placeholder
+                        || mExitTasksEarly) {
+                    if (drawable != null) {
+                        drawable.recycle();
+                    }
+                    return;
+                }
+                if (drawable != null) {
+                    imageView.setImageDrawable(drawable);
+                    drawable.start();
+                } else if (mStill) {
+                    loadImage(data, imageView, reqWidth, reqHeight, null,
+                            FetchScheduler.PRIORITY_NORMAL);
+                }
+            }
+        }.executeOnExecutor(mFetchScheduler.newJob((String) data, FetchScheduler.PRIORITY_NORMAL));
+    }
+
+    /**
+     * Runs decode work of an animation on the workers. Only downloads wait for their host, so
+     * decodes are not held back by them.
+     */
+    void executeDecode(Runnable runnable) {
+        mFetchScheduler.newJob(null, FetchScheduler.PRIORITY_HIGH).execute(runnable);
+    }
+
+    /**
+     * Stops the animation the ImageView shows, if any, and gives its frames back to the pool.
+     * The view would not tell the drawable that it is replaced on older versions.
+     */
+    private static void recycleAnimation(ImageView imageView) {
+        final Drawable drawable = imageView.getDrawable();
+        if (drawable instanceof GifDrawable) {
+            ((GifDrawable) drawable).recycle();
+        }
+    }
+
+    /**
+     * Work started by one prefetch call.
+     */
+    public class Prefetch {
+        private final List<AsyncTask<Void, Void, ?>> mTasks = new ArrayList<AsyncTask<Void, Void, ?>>();
+
+        private Prefetch() {}
+
+        /**
+         * Cancels the prefetch. Images that visible loads are waiting for keep loading.
+         */
+        public void cancel() {
+            for (AsyncTask<Void, Void, ?> task : mTasks) {
+                if (task instanceof BitmapWorkerTask) {
+                    ((BitmapWorkerTask) task).cancelPrefetch();
+                } else {
+                    task.cancel(true);
+                }
+            }
+            mTasks.clear();
+        }
+    }
+
     /**
      * Set placeholder bitmap that shows when the the background thread is running.
      *
@@ -189,6 +478,100 @@ public class ImageWorker {
         mFadeInBitmap = fadeIn;
     }
 
+    /**
+     * If set to true, downloaded images are decoded while the response is still being written
+     * to the http disk cache, instead of being decoded from the cache file afterwards.
+     */
+    public void setStreamingDecode(boolean streamingDecode) {
+        mStreamingDecode = streamingDecode;
+    }
+
+    /**
+     * If set to true, images are decoded to exactly the requested size instead of the nearest
+     * power of two sample at or above 60% of it. Cached bitmaps are smaller and as sharp as
+     * requested. The exact scaling needs KitKat, before that only the sample changes.
+     */
+    public void setExactSize(boolean exactSize) {
+        setDecodeFlag(Malevich.Utils.DECODE_EXACT_SIZE, exactSize);
+    }
+
+    /**
+     * If set to true, images without alpha, like JPEG, are decoded to RGB_565 instead of
+     * ARGB_8888, which halves their memory. Loads may override it.
+     */
+    public void setRgb565IfOpaque(boolean rgb565IfOpaque) {
+        setDecodeFlag(Malevich.Utils.DECODE_RGB_565_IF_OPAQUE, rgb565IfOpaque);
+    }
+
+    /**
+     * If set to true, JPEGs are turned upright by their EXIF orientation while decoding, and
+     * the flag is part of the cache keys, so no bitmap decoded before is served turned wrong.
+     */
+    public void setExifOrientation(boolean exifOrientation) {
+        setDecodeFlag(Malevich.Utils.DECODE_EXIF_ORIENTATION, exifOrientation);
+    }
+
+    /**
+     * If set to true, small loads of local and cached JPEGs decode the thumbnail in the EXIF data
+     * when it covers the requested size.
+     */
+    public void setExifThumbnail(boolean exifThumbnail) {
+        setDecodeFlag(Malevich.Utils.DECODE_EXIF_THUMBNAIL, exifThumbnail);
+    }
+
+    /**
+     * @return The Malevich.Utils.DECODE_* flags used by loads that don't ask for others
+     */
+    public int getDecodeFlags() {
+        return mDecodeFlags;
+    }
+
+    private void setDecodeFlag(int flag, boolean set) {
+        mDecodeFlags = set ? mDecodeFlags | flag : mDecodeFlags & ~flag;
+    }
+
+    /**
+     * Set the {@link Fetcher} used to download images, {@link HttpUrlFetcher} by default.
+     */
+    public void setFetcher(Fetcher fetcher) {
+        if (fetcher == null) {
+            throw new IllegalArgumentException("Fetcher must not be null.");
+        }
+        mFetcher = fetcher;
+    }
+
+    /**
+     * Register a {@link SourceResolver} for an uri scheme, replacing the built-in one if any.
+     * Built-in are file (and plain paths), content, android.resource, asset and data. http and
+     * https always go through the http disk cache. Call it before loading images.
+     */
+    public void registerSourceResolver(String scheme, SourceResolver resolver) {
+        if (scheme == null || resolver == null) {
+            throw new IllegalArgumentException("Scheme and resolver must not be null.");
+        }
+        final String key = scheme.toLowerCase();
+        if (LocalSourceResolvers.isHttpScheme(key)) {
+            throw new IllegalArgumentException("http and https use the http disk cache.");
+        }
+        mSourceResolvers.put(key, resolver);
+    }
+
+    /**
+     * Large downloads are split into this many byte ranges fetched in parallel, if the server
+     * supports ranges. 1 by default, at most 4.
+     */
+    public void setParallelRanges(int parallelRanges) {
+        mResumableDownloader.setParallelRanges(parallelRanges);
+    }
+
+    /**
+     * Set how many images are loaded at once, and how many are downloaded at once from one host.
+     * Applies to loads started afterwards.
+     */
+    public void setFetchLimits(int maxConcurrent, int maxPerHost) {
+        mFetchScheduler = new FetchScheduler(maxConcurrent, maxPerHost);
+    }
+
     public void setExitTasksEarly(boolean exitTasksEarly) {
         mExitTasksEarly = exitTasksEarly;
         setPauseWork(false);
@@ -201,18 +584,135 @@ public class ImageWorker {
      * @param data The data to load the bitmap, in this case, a regular http URL
      * @return The downloaded and resized bitmap
      */
-    private Bitmap processBitmap(String data,int reqWidth, int reqHeight, Malevich.ImageDecodedListener imageDecodedListener) {
+    private Bitmap processBitmap(String data,int reqWidth, int reqHeight, int decodeFlags) {
 
         if (debug) {
             Log.d(TAG, "processBitmap - " + data);
         }
 
-        final String key = ImageCache.hashKeyForDisk(data);
-        FileDescriptor fileDescriptor = null;
-        FileInputStream fileInputStream = null;
-        DiskLruCache.Snapshot snapshot;
+        SourceResolver.Source source = null;
         StringBuffer error = new StringBuffer();
+        Bitmap bitmap = null;
+
+        try {
+            final StreamingDecode decode = mStreamingDecode
+                    ? new StreamingDecode(reqWidth, reqHeight, decodeFlags) : null;
+            source = openSource(data, decode, error);
+            if (decode != null) {
+                bitmap = decode.bitmap;
+            }
+            if (bitmap == null && source != null) {
+                if (source.fileDescriptor != null) {
+                    bitmap = Malevich.Utils.decodeSampledBitmapFromDescriptor(
+                            source.fileDescriptor, reqWidth, reqHeight, getImageCache(),
+                            decodeFlags);
+                } else {
+                    bitmap = Malevich.Utils.decodeSampledBitmapFromStream(source.inputStream,
+                            newReopener(data, error), reqWidth, reqHeight, getImageCache(),
+                            decodeFlags);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "processBitmap - " + e);
+            error.append(e.toString());
+        } finally {
+            if (source != null) {
+                source.close();
+            }
+        }
+
+        if (bitmap == null) {
+            /*
+            if (errorDecodingListener != null) {
+                errorDecodingListener.onImageDecodeError(this, data, error.toString());
+            }
+            */
+        }
+        return bitmap;
+    }
+    /**
+     * Opens the source of an image, the http disk cache entry of http and https urls, downloaded
+     * first if needed, or the local source of other uris.
+     *
+     * @param data The uri of the image
+     * @param decode If not null and the url is downloaded now, it is decoded on the fly into
+     *               decode.bitmap. In that case no source is returned.
+     * @param error Collects the description of failures
+     * @return The source, or null if there is none
+     */
+    SourceResolver.Source openSource(String data, StreamingDecode decode, StringBuffer error)
+            throws IOException {
+        final String scheme = LocalSourceResolvers.getScheme(data);
+        if (LocalSourceResolvers.isHttpScheme(scheme)) {
+            final DiskLruCache.Snapshot snapshot = getHttpCacheSnapshot(data, decode, error);
+            if (snapshot == null) {
+                return null;
+            }
+            return new SourceResolver.Source(((FileInputStream)
+                    snapshot.getInputStream(DISK_CACHE_INDEX)).getFD(), snapshot);
+        }
+        // Local sources are decoded directly, without the http cache and its locks
+        final SourceResolver resolver = mSourceResolvers.get(scheme);
+        if (resolver == null) {
+            error.append("No source resolver for scheme ").append(scheme);
+            return null;
+        }
+        return resolver.open(mContext, data);
+    }
+
+    /**
+     * @return Opens a stream-only source again, for images whose header is larger than the mark
+     *         limit of the stream decode
+     */
+    private Malevich.Utils.StreamOpener newReopener(final String data, final StringBuffer error) {
+        return new Malevich.Utils.StreamOpener() {
+            @Override
+            public InputStream open() throws IOException {
+                final SourceResolver.Source source = openSource(data, null, error);
+                if (source == null || source.inputStream == null) {
+                    if (source != null) {
+                        source.close();
+                    }
+                    throw new IOException("Can't open " + data + " again");
+                }
+                return source.inputStream;
+            }
+        };
+    }
+
+    /**
+     * @return The key of a loaded image in the disk cache of the {@link ImageCache}, the memory
+     *         cache key with the version of the source if its resolver knows it
+     */
+    private RequestKey getDiskCacheKey(Object data, RequestKey key) {
+        if (!(data instanceof String)) {
+            return key;
+        }
+        final SourceResolver resolver =
+                mSourceResolvers.get(LocalSourceResolvers.getScheme((String) data));
+        if (!(resolver instanceof SourceResolver.Versioned)) {
+            return key;
+        }
+        final String version =
+                ((SourceResolver.Versioned) resolver).getVersion(mContext, (String) data);
+        return version == null ? key : key.withVersion(version);
+    }
+
+    /**
+     * Get an url from the http disk cache, downloading it or revalidating a stale copy first.
+     *
+     * @param data The url
+     * @param decode If not null and the url is downloaded now, it is decoded on the fly into
+     *               decode.bitmap. In that case no snapshot is returned.
+     * @param error Collects the description of failures
+     * @return The snapshot of the cache entry, or null if there is none
+     */
+    private DiskLruCache.Snapshot getHttpCacheSnapshot(String data, StreamingDecode decode,
+                                                       StringBuffer error) {
+        final String key = ImageCache.hashKeyForDisk(data);
+        DiskLruCache.Snapshot snapshot = null;
 
+        DiskLruCache httpDiskCache;
         synchronized (mHttpDiskCacheLock) {
             // Wait for disk cache to initialize
             while (mHttpDiskCacheStarting) {
@@ -222,77 +722,84 @@ public class ImageWorker {
                     error.append(e.toString());
                 }
             }
+            httpDiskCache = mHttpDiskCache;
+        }
+        if (httpDiskCache == null) {
+            return null;
+        }
 
-            if (mHttpDiskCache != null) {
-                try {
-                    if (new File(data).exists()) {
-                        fileInputStream = new FileInputStream(new File(data));
-                        fileDescriptor = fileInputStream.getFD();
+        try {
+            // Only requests for the same key wait for each other here
+            synchronized (getHttpKeyLock(key)) {
+                snapshot = httpDiskCache.get(key);
+                if (snapshot == null) {
+                    if (debug) {
+                        Log.d(TAG, "processBitmap, not found in http cache, downloading...");
                     }
-                    else {
-                        snapshot = mHttpDiskCache.get(key);
-                        if (snapshot == null) {
-                            if (debug) {
-                                Log.d(TAG, "processBitmap, not found in http cache, downloading...");
-                            }
-                            DiskLruCache.Editor editor = mHttpDiskCache.edit(key);
-                            if (editor != null) {
-                                final String result = downloadUrlToStream(data,
-                                        editor.newOutputStream(DISK_CACHE_INDEX));
-                                if (result.equals("")) {
-                                    editor.commit();
-                                } else {
-                                    error.append(result);
-                                    editor.abort();
-                                }
-                            }
-                            snapshot = mHttpDiskCache.get(key);
-                        }
-                        if (snapshot != null) {
-                            fileInputStream =
-                                    (FileInputStream) snapshot.getInputStream(DISK_CACHE_INDEX);
-                            fileDescriptor = fileInputStream.getFD();
+                    DiskLruCache.Editor editor = httpDiskCache.edit(key);
+                    if (editor != null) {
+                        final String result = downloadFromHost(data, key, editor, null, decode);
+                        if (result.equals("")) {
+                            editor.commit();
+                        } else {
+                            error.append(result);
+                            editor.abort();
                         }
                     }
-                } catch (IOException e) {
-                    Log.e(TAG, "processBitmap - " + e);
-                    error.append(e.toString());
-                } catch (IllegalStateException e) {
-                    Log.e(TAG, "processBitmap - " + e);
-                    error.append(e.toString());
-                } finally {
-                    if (fileDescriptor == null && fileInputStream != null) {
-                        try {
-                            fileInputStream.close();
-                        } catch (IOException e) {}
+                    // Streaming decode done, the cache file is not needed right now
+                    if (decode == null || decode.bitmap == null) {
+                        snapshot = httpDiskCache.getUncounted(key);
+                    }
+                } else {
+                    final HttpMetadata metadata =
+                            HttpMetadata.parse(snapshot.getString(HTTP_METADATA_INDEX));
+                    if (metadata.isStale(System.currentTimeMillis())) {
+                        if (debug) {
+                            Log.d(TAG, "processBitmap, stale in http cache, revalidating...");
+                        }
+                        DiskLruCache.Editor editor = snapshot.edit();
+                        if (editor != null) {
+                            final String result = downloadFromHost(data, key, editor, metadata, null);
+                            if (result.equals("")) {
+                                editor.commit();
+                                snapshot.close();
+                                snapshot = httpDiskCache.getUncounted(key);
+                            } else {
+                                // Server is unreachable, the stale copy is better than nothing
+                                editor.abort();
+                            }
+                        }
                     }
                 }
             }
+        } catch (IOException e) {
+            Log.e(TAG, "processBitmap - " + e);
+            error.append(e.toString());
+            snapshot = closeSnapshot(snapshot);
+        } catch (IllegalStateException e) {
+            // The http cache may be closed or cleared by another thread while we download
+            Log.e(TAG, "processBitmap - " + e);
+            error.append(e.toString());
+            snapshot = closeSnapshot(snapshot);
         }
+        return snapshot;
+    }
 
-        Bitmap bitmap = null;
-        if (fileDescriptor != null) {
-            bitmap = Malevich.Utils.decodeSampledBitmapFromDescriptor(fileDescriptor, reqWidth,
-                    reqHeight, getImageCache());
-
-            if (imageDecodedListener != null) {
-                bitmap = imageDecodedListener.onImageDecoded(data, reqWidth, reqHeight, bitmap);
-            }
-        }
-        else {
-            /*
-            if (errorDecodingListener != null) {
-                errorDecodingListener.onImageDecodeError(this, data, error.toString());
-            }
-            */
+    private static DiskLruCache.Snapshot closeSnapshot(DiskLruCache.Snapshot snapshot) {
+        if (snapshot != null) {
+            snapshot.close();
         }
-        if (fileInputStream != null) {
-            try {
-                fileInputStream.close();
-            } catch (IOException e) {}
-        }
-        return bitmap;
+        return null;
+    }
+
+    /**
+     * @param key The http disk cache key
+     * @return The lock guarding downloads and commits of this key to the http disk cache
+     */
+    private Object getHttpKeyLock(String key) {
+        return mHttpKeyLocks[(key.hashCode() & 0x7fffffff) % HTTP_KEY_LOCK_STRIPES];
     }
+
     /**
      * @return The {@link ImageCache} object currently being used by this ImageWorker.
      */
@@ -301,13 +808,14 @@ public class ImageWorker {
     }
 
     /**
-     * Cancels any pending work attached to the provided ImageView.
+     * Cancels any pending work attached to the provided ImageView. Work shared with other
+     * views keeps running for them.
      * @param imageView
      */
     public static void cancelWork(ImageView imageView) {
         final BitmapWorkerTask bitmapWorkerTask = getBitmapWorkerTask(imageView);
         if (bitmapWorkerTask != null) {
-            bitmapWorkerTask.cancel(true);
+            bitmapWorkerTask.detachImageView(imageView);
         }
     }
 
@@ -324,7 +832,7 @@ public class ImageWorker {
         if (bitmapWorkerTask != null) {
             final Object bitmapData = bitmapWorkerTask.mData;
             if (bitmapData == null || !bitmapData.equals(data)) {
-                bitmapWorkerTask.cancel(true);
+                bitmapWorkerTask.detachImageView(imageView);
             } else {
                 // The same work is already in progress.
                 return false;
@@ -355,17 +863,122 @@ public class ImageWorker {
      */
     private class BitmapWorkerTask extends AsyncTask<Void, Void, BitmapDrawable> {
         private Object mData;
+        private final RequestKey mKey;
+        private FetchScheduler.Job mJob;
+        private int mPriority;
+        private int mDecodeFlags;
+        // Set while the task prefetches into the cache, then it works even without views
+        private volatile boolean mPrefetch;
         private int reqWidth;
         private int reqHeight;
-        private Malevich.ImageDecodedListener imageDecodedListener;
-        private final WeakReference<ImageView> imageViewReference;
+        private final List<Transformation> transformations;
+        private final List<WeakReference<ImageView>> imageViewReferences =
+                new ArrayList<WeakReference<ImageView>>(1);
 
-        public BitmapWorkerTask(Object data, ImageView imageView, int reqWidth, int reqHeight, Malevich.ImageDecodedListener imageDecodedListener) {
+        public BitmapWorkerTask(Object data, RequestKey key, ImageView imageView, int reqWidth, int reqHeight, List<Transformation> transformations) {
             mData = data;
+            mKey = key;
             this.reqWidth = reqWidth;
             this.reqHeight = reqHeight;
-            this.imageDecodedListener = imageDecodedListener;
-            imageViewReference = new WeakReference<ImageView>(imageView);
+            this.transformations = transformations;
+            if (imageView != null) {
+                imageViewReferences.add(new WeakReference<ImageView>(imageView));
+            }
+        }
+
+        /**
+         * Runs the chain on the plain decode of the image, shared by every transformation chain
+         * on it through the memory cache. The decode is pinned meanwhile, so neither an eviction
+         * nor the entry of another chain that decoded it at the same time pools it while it is
+         * read.
+         */
+        private Bitmap transformUntransformed() {
+            final ImageCache imageCache = mImageCache;
+            final RequestKey key = mKey.untransformed();
+            Bitmap source = null;
+            if (imageCache != null) {
+                final BitmapDrawable value = imageCache.pinBitmapFromMemCache(key);
+                if (value != null) {
+                    source = value.getBitmap();
+                }
+            }
+            if (source == null) {
+                source = processBitmap((String) mData, reqWidth, reqHeight, mDecodeFlags);
+                if (source == null) {
+                    return null;
+                }
+                if (imageCache != null) {
+                    imageCache.pinBitmap(source);
+                    imageCache.addBitmapToMemoryCache(key,
+                            new BitmapDrawable(mResources, source));
+                }
+            }
+            try {
+                return transform(source);
+            } finally {
+                if (imageCache != null) {
+                    imageCache.unpinBitmap(source);
+                }
+            }
+        }
+
+        /**
+         * Runs the chain. Intermediate bitmaps go back to the pool, the source stays as it is.
+         */
+        private Bitmap transform(Bitmap source) {
+            final BitmapPool pool = mImageCache != null ? mImageCache.getBitmapPool() : null;
+            Bitmap bitmap = source;
+            for (Transformation transformation : transformations) {
+                final Bitmap output =
+                        transformation.transform(pool, bitmap, reqWidth, reqHeight);
+                if (output != bitmap && bitmap != source && pool != null) {
+                    pool.put(bitmap);
+                }
+                bitmap = output;
+                if (bitmap == null) {
+                    return null;
+                }
+            }
+            // The result gets its own cache entry, which must not share the bitmap with the
+            // untransformed one, or evicting either would pool a bitmap still in use
+            return bitmap == source ? source.copy(source.getConfig(), true) : bitmap;
+        }
+
+        /**
+         * Adds one more ImageView waiting for the result of this task.
+         */
+        public void attachImageView(ImageView imageView) {
+            synchronized (imageViewReferences) {
+                imageViewReferences.add(new WeakReference<ImageView>(imageView));
+            }
+        }
+
+        /**
+         * Forgets the ImageView and cancels the task if no other ImageView waits for it.
+         */
+        public void detachImageView(ImageView imageView) {
+            synchronized (imageViewReferences) {
+                final Iterator<WeakReference<ImageView>> iterator = imageViewReferences.iterator();
+                while (iterator.hasNext()) {
+                    final ImageView item = iterator.next().get();
+                    if (item == null || item == imageView) {
+                        iterator.remove();
+                    }
+                }
+            }
+            if (!isWanted()) {
+                cancel(true);
+            }
+        }
+
+        /**
+         * Stops prefetching, the task is cancelled if no ImageView waits for it.
+         */
+        public void cancelPrefetch() {
+            mPrefetch = false;
+            if (!isWanted()) {
+                cancel(true);
+            }
         }
 
         /**
@@ -378,7 +991,6 @@ public class ImageWorker {
                 Log.d(TAG, "doInBackground - starting work");
             }
 
-            final String dataString = String.valueOf(mData)+"#width"+reqWidth+"#height"+reqHeight;
             Bitmap bitmap = null;
             BitmapDrawable drawable = null;
 
@@ -391,22 +1003,29 @@ public class ImageWorker {
                 }
             }
 
+            // Sources that change in place are cached on disk under their version. Results of
+            // legacy listeners are keyed by identity, which means nothing to a later process.
+            final RequestKey diskKey = ListenerTransformation.isIn(transformations)
+                    ? null : getDiskCacheKey(mData, mKey);
+
             // If the image cache is available and this task has not been cancelled by another
             // thread and the ImageView that was originally bound to this task is still bound back
             // to this task and our "exit early" flag is not set then try and fetch the bitmap from
             // the cache
-            if (mImageCache != null && !isCancelled() && getAttachedImageView() != null
+            if (mImageCache != null && diskKey != null && !isCancelled() && isWanted()
                     && !mExitTasksEarly) {
-                bitmap = mImageCache.getBitmapFromDiskCache(dataString);
+                bitmap = mImageCache.getBitmapFromDiskCache(diskKey, mDecodeFlags);
             }
 
             // If the bitmap was not found in the cache and this task has not been cancelled by
             // another thread and the ImageView that was originally bound to this task is still
             // bound back to this task and our "exit early" flag is not set, then call the main
             // process method (as implemented by a subclass)
-            if (bitmap == null && !isCancelled() && getAttachedImageView() != null
+            if (bitmap == null && !isCancelled() && isWanted()
                     && !mExitTasksEarly) {
-                bitmap = processBitmap((String) mData, reqWidth, reqHeight, imageDecodedListener);
+                bitmap = transformations == null
+                        ? processBitmap((String) mData, reqWidth, reqHeight, mDecodeFlags)
+                        : transformUntransformed();
             }
 
             // If the bitmap was processed and the image cache is available, then add the processed
@@ -418,8 +1037,10 @@ public class ImageWorker {
                 drawable = new BitmapDrawable(mResources, bitmap);
 
 
-                if (mImageCache != null) {
-                    mImageCache.addBitmapToCache(dataString, drawable);
+                if (mImageCache != null && diskKey != null) {
+                    mImageCache.addBitmapToCache(mKey, diskKey, drawable);
+                } else if (mImageCache != null) {
+                    mImageCache.addBitmapToMemoryCache(mKey, drawable);
                 }
             }
 
@@ -438,16 +1059,21 @@ public class ImageWorker {
         protected void onPostExecute(BitmapDrawable value) {
             //BEGIN_INCLUDE(complete_background_work)
             // if cancel was called on this task or the "exit early" flag is set then we're done
+            removePendingTask();
             if (isCancelled() || mExitTasksEarly) {
                 value = null;
             }
 
-            final ImageView imageView = getAttachedImageView();
-            if (value != null && imageView != null) {
-                if (debug) {
-                    Log.d(TAG, "onPostExecute - setting bitmap");
+            if (value != null) {
+                // Every view gets its own drawable, but they all share one decoded bitmap
+                BitmapDrawable drawable = value;
+                for (ImageView imageView : getAttachedImageViews()) {
+                    if (debug) {
+                        Log.d(TAG, "onPostExecute - setting bitmap");
+                    }
+                    setImageDrawable(imageView, drawable);
+                    drawable = new BitmapDrawable(mResources, value.getBitmap());
                 }
-                setImageDrawable(imageView, value);
             }
             //END_INCLUDE(complete_background_work)
         }
@@ -455,25 +1081,93 @@ public class ImageWorker {
         @Override
         protected void onCancelled(BitmapDrawable value) {
             super.onCancelled(value);
+            removePendingTask();
             synchronized (mPauseWorkLock) {
                 mPauseWorkLock.notifyAll();
             }
         }
 
+        private void removePendingTask() {
+            if (mPendingTasks.get(mKey) == this) {
+                mPendingTasks.remove(mKey);
+            }
+        }
+
+        /**
+         * Returns true while the task prefetches or any ImageView is bound to it.
+         */
+        private boolean isWanted() {
+            return mPrefetch || hasAttachedImageView();
+        }
+
+        /**
+         * Returns true while at least one ImageView is still bound to this task.
+         */
+        private boolean hasAttachedImageView() {
+            synchronized (imageViewReferences) {
+                for (WeakReference<ImageView> reference : imageViewReferences) {
+                    final ImageView imageView = reference.get();
+                    if (imageView != null && getBitmapWorkerTask(imageView) == this) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
         /**
-         * Returns the ImageView associated with this task as long as the ImageView's task still
-         * points to this task as well. Returns null otherwise.
+         * Returns the ImageViews associated with this task as long as the ImageView's task still
+         * points to this task as well.
          */
-        private ImageView getAttachedImageView() {
-            final ImageView imageView = imageViewReference.get();
-            final BitmapWorkerTask bitmapWorkerTask = getBitmapWorkerTask(imageView);
+        private List<ImageView> getAttachedImageViews() {
+            final List<ImageView> imageViews = new ArrayList<ImageView>(imageViewReferences.size());
+            synchronized (imageViewReferences) {
+                for (WeakReference<ImageView> reference : imageViewReferences) {
+                    final ImageView imageView = reference.get();
+                    if (imageView != null && getBitmapWorkerTask(imageView) == this
+                            && !imageViews.contains(imageView)) {
+                        imageViews.add(imageView);
+                    }
+                }
+            }
+            return imageViews;
+        }
+    }
+
+    /**
+     * Downloads an url into the http disk cache for {@link #prefetchToDisk(Collection)}.
+     */
+    private class DownloadTask extends AsyncTask<Void, Void, Void> {
+        private final String mUrl;
 
-            if (this == bitmapWorkerTask) {
-                return imageView;
+        public DownloadTask(String url) {
+            mUrl = url;
+        }
+
+        @Override
+        protected Void doInBackground(Void... params) {
+            // Wait here if work is paused and the task is not cancelled
+            synchronized (mPauseWorkLock) {
+                while (mPauseWork && !isCancelled()) {
+                    try {
+                        mPauseWorkLock.wait();
+                    } catch (InterruptedException e) {}
+                }
             }
 
+            if (!isCancelled() && !mExitTasksEarly) {
+                closeSnapshot(getHttpCacheSnapshot(mUrl, null, new StringBuffer()));
+            }
             return null;
         }
+
+        @Override
+        protected void onCancelled(Void value) {
+            super.onCancelled(value);
+            synchronized (mPauseWorkLock) {
+                mPauseWorkLock.notifyAll();
+            }
+        }
     }
 
     /**
@@ -576,10 +1270,13 @@ public class ImageWorker {
         if (!mHttpCacheDir.exists()) {
             mHttpCacheDir.mkdirs();
         }
+        mResumableDownloader.trim(false);
         synchronized (mHttpDiskCacheLock) {
             if (ImageCache.getUsableSpace(mHttpCacheDir) > HTTP_CACHE_SIZE) {
                 try {
-                    mHttpDiskCache = DiskLruCache.open(mHttpCacheDir, 1, 1, HTTP_CACHE_SIZE);
+                    mHttpDiskCache = DiskLruCache.open(mHttpCacheDir, HTTP_CACHE_VERSION,
+                            HTTP_CACHE_VALUE_COUNT, HTTP_CACHE_SIZE,
+                            mImageCacheParams != null && mImageCacheParams.tinyLfu);
                     if (debug) {
                         Log.d(TAG, "HTTP cache initialized");
                     }
@@ -608,6 +1305,7 @@ public class ImageWorker {
                 }
                 mHttpDiskCache = null;
                 mHttpDiskCacheStarting = true;
+                mResumableDownloader.trim(true);
                 initHttpDiskCache();
             }
         }
@@ -669,41 +1367,362 @@ public class ImageWorker {
      * Download a bitmap from a URL and write the content to an output stream.
      *
      * @param urlString The URL to fetch
-     * @return true if successful, false otherwise
+     * @return empty string if successful, error description otherwise
      */
     public String downloadUrlToStream(String urlString, OutputStream outputStream) {
-        Malevich.Utils.disableConnectionReuseIfNecessary();
-        HttpURLConnection urlConnection = null;
-        BufferedOutputStream out = null;
-        BufferedInputStream in = null;
+        Fetcher.Response response = null;
         String error = "";
         try {
-            final URL url = new URL(urlString);
-            urlConnection = (HttpURLConnection) url.openConnection();
-            in = new BufferedInputStream(urlConnection.getInputStream(), IO_BUFFER_SIZE);
-            out = new BufferedOutputStream(outputStream, IO_BUFFER_SIZE);
+            response = mFetcher.fetch(new Fetcher.Request(urlString));
 
-            int b;
-            while ((b = in.read()) != -1) {
-                out.write(b);
+            final byte[] buffer = sIoBuffer.get();
+            int read;
+            while ((read = response.body.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, read);
             }
             return error;
         } catch (final IOException e) {
             Log.e(TAG, "Error in downloadBitmap - " + e);
             error = "Error in downloadBitmap - " + e.toString();
         } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
+            if (response != null) {
+                response.close();
             }
             try {
-                if (out != null) {
-                    out.close();
+                outputStream.close();
+            } catch (final IOException e) {}
+        }
+        return error;
+    }
+
+    /**
+     * Same as {@link #downloadUrlToEditor}, within the per-host limit of the
+     * {@link FetchScheduler}.
+     */
+    private String downloadFromHost(String urlString, String key, DiskLruCache.Editor editor,
+                                    HttpMetadata cached, StreamingDecode decode) {
+        final FetchScheduler scheduler = mFetchScheduler;
+        final String host;
+        try {
+            host = scheduler.acquireHost(urlString);
+        } catch (InterruptedException e) {
+            // Cancelled while waiting for the host
+            Thread.currentThread().interrupt();
+            return "Interrupted - " + e;
+        }
+        try {
+            return downloadUrlToEditor(urlString, key, editor, cached, decode);
+        } finally {
+            scheduler.releaseHost(host);
+        }
+    }
+
+    /**
+     * Download a bitmap from a URL straight into the files of a http disk cache entry. If the
+     * entry is already cached, a conditional request is made with its validators and only the
+     * metadata is refreshed when the server answers 304 Not Modified. Plain downloads go through
+     * the {@link ResumableDownloader}, so a failed or cancelled download is resumed next time.
+     *
+     * @param urlString The URL to fetch
+     * @param key The http disk cache key
+     * @param editor The editor of the http disk cache entry
+     * @param cached The metadata of the stale cached entry or null if nothing is cached
+     * @param decode If not null, the body is decoded while it is written to the cache and the
+     *               result is stored in it
+     * @return empty string if successful, error description otherwise
+     */
+    private String downloadUrlToEditor(String urlString, String key, DiskLruCache.Editor editor,
+                                       HttpMetadata cached, StreamingDecode decode) {
+        Fetcher.Response response = null;
+        String error = "";
+        try {
+            if (cached == null && decode == null) {
+                response = mResumableDownloader.download(mFetcher, mFetchScheduler, urlString,
+                        key, editor, DISK_CACHE_INDEX);
+                editor.set(HTTP_METADATA_INDEX, HttpMetadata.fromResponse(response,
+                        System.currentTimeMillis(), null).toString());
+                return error;
+            }
+            final Fetcher.Request request = new Fetcher.Request(urlString);
+            if (cached != null) {
+                request.etag = cached.etag;
+                request.ifModifiedSince = cached.lastModified;
+            }
+            response = mFetcher.fetch(request);
+            final long now = System.currentTimeMillis();
+            if (cached != null && response.code == Fetcher.Response.HTTP_NOT_MODIFIED) {
+                if (debug) {
+                    Log.d(TAG, "downloadUrlToEditor - not modified " + urlString);
                 }
-                if (in != null) {
-                    in.close();
+                editor.set(HTTP_METADATA_INDEX,
+                        HttpMetadata.fromResponse(response, now, cached).toString());
+                return error;
+            }
+            if (response.body == null) {
+                throw new IOException("No body, response code " + response.code);
+            }
+            // Error pages served with a success code must not get into the cache
+            final InputStream body = new BufferedInputStream(response.body, IO_BUFFER_SIZE);
+            ImageHeader.checkNotMarkup(body);
+            if (decode != null) {
+                final TeeInputStream tee =
+                        new TeeInputStream(body, editor.newOutputStream(DISK_CACHE_INDEX));
+                Bitmap bitmap = null;
+                try {
+                    bitmap = Malevich.Utils.decodeSampledBitmapFromStream(tee,
+                            decode.reqWidth, decode.reqHeight, getImageCache(),
+                            decode.decodeFlags);
+                    // The decoder may stop before the end, the cache still needs the whole body
+                    tee.drain(sIoBuffer.get());
+                    decode.bitmap = bitmap;
+                    bitmap = null;
+                } finally {
+                    tee.closeBranch();
+                    // The body could not be cached and the bitmap is not used, reuse it
+                    final ImageCache cache = getImageCache();
+                    if (bitmap != null && cache != null && cache.getBitmapPool() != null) {
+                        cache.getBitmapPool().put(bitmap);
+                    }
                 }
-            } catch (final IOException e) {}
+            } else {
+                editor.transferFrom(DISK_CACHE_INDEX, body, sIoBuffer.get());
+            }
+            editor.set(HTTP_METADATA_INDEX,
+                    HttpMetadata.fromResponse(response, now, null).toString());
+            return error;
+        } catch (final IOException e) {
+            Log.e(TAG, "Error in downloadBitmap - " + e);
+            error = "Error in downloadBitmap - " + e.toString();
+        } finally {
+            if (response != null) {
+                response.close();
+            }
         }
         return error;
     }
+
+    /**
+     * Runs a {@link Malevich.ImageDecodedListener} as a transformation. The listener has no key
+     * of its own, so the identity of the instance stands for it: two instances of one class may
+     * transform differently. Results are only cached in memory, and only reused by loads with the
+     * same listener instance. Listeners may recycle their input, so they get a private copy of
+     * the shared untransformed bitmap.
+     */
+    @SuppressWarnings("deprecation")
+    static class ListenerTransformation implements Transformation {
+        private final Object data;
+        private final Malevich.ImageDecodedListener listener;
+
+        ListenerTransformation(Object data, Malevich.ImageDecodedListener listener) {
+            this.data = data;
+            this.listener = listener;
+        }
+
+        static List<Transformation> wrap(Object data, Malevich.ImageDecodedListener listener) {
+            if (listener == null) {
+                return null;
+            }
+            return Collections.<Transformation>singletonList(
+                    new ListenerTransformation(data, listener));
+        }
+
+        static boolean isIn(List<Transformation> transformations) {
+            if (transformations != null) {
+                for (int i = 0; i < transformations.size(); i++) {
+                    if (transformations.get(i) instanceof ListenerTransformation) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public String key() {
+            return listener.getClass().getName() + "@"
+                    + Integer.toHexString(System.identityHashCode(listener));
+        }
+
+        @Override
+        public Bitmap transform(BitmapPool pool, Bitmap source, int reqWidth, int reqHeight) {
+            final Bitmap copy = source.copy(source.getConfig() != null
+                    ? source.getConfig() : Bitmap.Config.ARGB_8888, true);
+            if (copy == null) {
+                return null;
+            }
+            return listener.onImageDecoded(String.valueOf(data), reqWidth, reqHeight, copy);
+        }
+    }
+
+    /**
+     * Requested size and result of a decode done while downloading.
+     */
+    private static class StreamingDecode {
+        final int reqWidth;
+        final int reqHeight;
+        final int decodeFlags;
+        Bitmap bitmap;
+
+        StreamingDecode(int reqWidth, int reqHeight, int decodeFlags) {
+            this.reqWidth = reqWidth;
+            this.reqHeight = reqHeight;
+            this.decodeFlags = decodeFlags;
+        }
+    }
+
+    /**
+     * Input stream that copies everything read from it to a second output stream, so a response
+     * may be decoded and written to the disk cache in one pass.
+     */
+    private static class TeeInputStream extends FilterInputStream {
+        private final OutputStream branch;
+
+        TeeInputStream(InputStream in, OutputStream branch) {
+            super(in);
+            this.branch = branch;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = in.read();
+            if (b != -1) {
+                branch.write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            final int read = in.read(buffer, offset, count);
+            if (read > 0) {
+                branch.write(buffer, offset, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            // Skipped bytes must reach the branch too
+            final byte[] buffer = sIoBuffer.get();
+            long skipped = 0;
+            while (skipped < count) {
+                final int read = read(buffer, 0, (int) Math.min(buffer.length, count - skipped));
+                if (read == -1) {
+                    break;
+                }
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        /**
+         * Reads the rest of the stream, copying it to the branch.
+         */
+        void drain(byte[] buffer) throws IOException {
+            while (read(buffer, 0, buffer.length) != -1) {}
+        }
+
+        void closeBranch() {
+            try {
+                branch.close();
+            } catch (IOException e) {}
+        }
+    }
+
+    /**
+     * Response validators and freshness of a http disk cache entry. Stored as a separate value
+     * of the entry, so a 304 Not Modified answer only rewrites this small file.
+     */
+    static class HttpMetadata {
+        // Without any freshness info a response with Last-Modified is fresh for 10% of its age
+        private static final float HEURISTIC_FRESHNESS = 0.1f;
+
+        final String etag;
+        final long lastModified;
+        final long expires;
+
+        HttpMetadata(String etag, long lastModified, long expires) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.expires = expires;
+        }
+
+        boolean isStale(long now) {
+            return now >= expires && (etag != null || lastModified > 0);
+        }
+
+        /**
+         * @param cached Metadata of the revalidated entry, its validators are kept when the
+         *               response does not repeat them
+         */
+        static HttpMetadata fromResponse(Fetcher.Response response, long now,
+                                         HttpMetadata cached) {
+            String etag = response.etag;
+            long lastModified = response.lastModified;
+            if (cached != null) {
+                if (etag == null) {
+                    etag = cached.etag;
+                }
+                if (lastModified <= 0) {
+                    lastModified = cached.lastModified;
+                }
+            }
+
+            long expires = Long.MAX_VALUE;
+            final long maxAge = parseMaxAge(response.cacheControl);
+            if (maxAge >= 0) {
+                expires = maxAge < (Long.MAX_VALUE - now) / 1000 ? now + maxAge * 1000 : expires;
+            } else if (response.expires > 0) {
+                expires = response.expires;
+            } else if (lastModified > 0 && lastModified < now) {
+                expires = now + (long) ((now - lastModified) * HEURISTIC_FRESHNESS);
+            }
+            return new HttpMetadata(etag, lastModified, expires);
+        }
+
+        /**
+         * @return max-age in seconds, 0 for no-cache and no-store, -1 if not specified
+         */
+        static long parseMaxAge(String cacheControl) {
+            if (cacheControl == null) {
+                return -1;
+            }
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim();
+                if (directive.equals("no-cache") || directive.equals("no-store")) {
+                    return 0;
+                }
+                if (directive.startsWith("max-age=")) {
+                    try {
+                        return Long.parseLong(directive.substring("max-age=".length()).trim());
+                    } catch (NumberFormatException e) {
+                        return -1;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        static HttpMetadata parse(String value) {
+            final String[] lines = value.split("\n", -1);
+            if (lines.length == 3) {
+                try {
+                    return new HttpMetadata(lines[0].length() == 0 ? null : lines[0],
+                            Long.parseLong(lines[1]), Long.parseLong(lines[2]));
+                } catch (NumberFormatException e) {}
+            }
+            // Unknown metadata, never revalidate
+            return new HttpMetadata(null, 0, Long.MAX_VALUE);
+        }
+
+        @Override
+        public String toString() {
+            return (etag == null ? "" : etag) + "\n" + lastModified + "\n" + expires;
+        }
+    }
 }
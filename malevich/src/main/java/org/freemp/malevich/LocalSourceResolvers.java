@@ -0,0 +1,208 @@
+package org.freemp.malevich;
+
+import android.content.Context;
+import android.media.MediaMetadataRetriever;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.util.Base64;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+/**
+ * The built-in {@link SourceResolver}s for local images.
+ */
+enum LocalSourceResolvers {;
+
+    private static final String ANDROID_ASSET = "/android_asset/";
+
+    /**
+     * Plain paths and file uris, file:///android_asset/ uris are read from the assets.
+     */
+    static final SourceResolver FILE = new SourceResolver() {
+        @Override
+        public Source open(Context context, String uri) throws IOException {
+            final String path = uri.startsWith("file://") ? uri.substring("file://".length()) : uri;
+            if (path.startsWith(ANDROID_ASSET)) {
+                return new Source(context.getAssets().open(path.substring(ANDROID_ASSET.length())));
+            }
+            final FileInputStream fileInputStream = new FileInputStream(path);
+            return new Source(fileInputStream.getFD(), fileInputStream);
+        }
+    };
+
+    /**
+     * Content provider uris, opened as a file descriptor when the provider supports it.
+     */
+    static final SourceResolver CONTENT = new SourceResolver() {
+        @Override
+        public Source open(Context context, String uri) throws IOException {
+            final Uri contentUri = Uri.parse(uri);
+            final ParcelFileDescriptor parcelFileDescriptor;
+            try {
+                parcelFileDescriptor = context.getContentResolver()
+                        .openFileDescriptor(contentUri, "r");
+            } catch (FileNotFoundException e) {
+                // Some providers only serve streams
+                return new Source(context.getContentResolver().openInputStream(contentUri));
+            }
+            if (parcelFileDescriptor != null) {
+                // ParcelFileDescriptor is Closeable only since API 16
+                return new Source(parcelFileDescriptor.getFileDescriptor(), new Closeable() {
+                    @Override
+                    public void close() throws IOException {
+                        parcelFileDescriptor.close();
+                    }
+                });
+            }
+            return new Source(context.getContentResolver().openInputStream(contentUri));
+        }
+    };
+
+    /**
+     * android.resource://package/type/name and android.resource://package/id uris.
+     */
+    static final SourceResolver ANDROID_RESOURCE = new SourceResolver() {
+        @Override
+        public Source open(Context context, String uri) throws IOException {
+            return new Source(context.getContentResolver().openInputStream(Uri.parse(uri)));
+        }
+    };
+
+    /**
+     * asset:///path uris.
+     */
+    static final SourceResolver ASSET = new SourceResolver() {
+        @Override
+        public Source open(Context context, String uri) throws IOException {
+            String path = uri.substring("asset:".length());
+            while (path.startsWith("/")) {
+                path = path.substring(1);
+            }
+            return new Source(context.getAssets().open(path));
+        }
+    };
+
+    /**
+     * data:[mediatype][;base64],data uris.
+     */
+    static final SourceResolver DATA = new SourceResolver() {
+        @Override
+        public Source open(Context context, String uri) throws IOException {
+            final int comma = uri.indexOf(',');
+            if (comma == -1) {
+                throw new IOException("Malformed data uri");
+            }
+            final String header = uri.substring(0, comma);
+            if (!header.endsWith(";base64")) {
+                throw new IOException("Only base64 data uris are supported");
+            }
+            try {
+                final byte[] bytes = Base64.decode(uri.substring(comma + 1), Base64.DEFAULT);
+                return new Source(new ByteArrayInputStream(bytes));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Malformed data uri - " + e);
+            }
+        }
+    };
+
+    /**
+     * audio:///path/to/track.mp3 and audio:content://... uris, the picture embedded in the tags
+     * of an audio file.
+     */
+    static final SourceResolver AUDIO = new AudioArtResolver();
+
+    /**
+     * Extracts embedded cover art with {@link MediaMetadataRetriever}. Files are versioned by
+     * their modification time and size, so the decoded art stays in the disk cache until the
+     * tags change. Files without art are remembered too, they are not parsed again on every bind.
+     */
+    private static class AudioArtResolver implements SourceResolver, SourceResolver.Versioned {
+        private static final int MAX_WITHOUT_ART = 1024;
+
+        // Versioned uris of files that have no embedded picture
+        private final LruCache<String, Boolean> mWithoutArt =
+                new LruCache<String, Boolean>(MAX_WITHOUT_ART);
+
+        @Override
+        public Source open(Context context, String uri) throws IOException {
+            final String target = getTarget(uri);
+            final String version = getVersion(context, uri);
+            final String key = version != null ? target + "#" + version : target;
+            if (mWithoutArt.get(key) != null) {
+                throw new FileNotFoundException("No embedded picture in " + target);
+            }
+            final MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+            final byte[] picture;
+            try {
+                if (target.startsWith("content:")) {
+                    retriever.setDataSource(context, Uri.parse(target));
+                } else {
+                    retriever.setDataSource(target);
+                }
+                picture = retriever.getEmbeddedPicture();
+            } catch (RuntimeException e) {
+                // setDataSource throws IllegalArgumentException for unreadable files
+                throw new IOException("Can't read tags of " + target + " - " + e);
+            } finally {
+                retriever.release();
+            }
+            if (picture == null) {
+                mWithoutArt.put(key, Boolean.TRUE);
+                throw new FileNotFoundException("No embedded picture in " + target);
+            }
+            return new Source(new ByteArrayInputStream(picture));
+        }
+
+        @Override
+        public String getVersion(Context context, String uri) {
+            final String target = getTarget(uri);
+            if (target.startsWith("content:")) {
+                return null;
+            }
+            final File file = new File(target);
+            final long lastModified = file.lastModified();
+            return lastModified == 0 ? null : lastModified + "-" + file.length();
+        }
+
+        /**
+         * @return The path or content uri of the audio file
+         */
+        private static String getTarget(String uri) {
+            final String target = uri.substring("audio:".length());
+            if (target.startsWith("content:")) {
+                return target;
+            }
+            // audio:///sdcard/a.mp3 and audio:/sdcard/a.mp3 are the same file
+            int start = 0;
+            while (start + 1 < target.length() && target.charAt(start + 1) == '/') {
+                start++;
+            }
+            return target.substring(start);
+        }
+    }
+
+    /**
+     * @return The lower case scheme of an uri, "file" for plain paths
+     */
+    static String getScheme(String uri) {
+        for (int i = 0; i < uri.length(); i++) {
+            final char c = uri.charAt(i);
+            if (c == ':') {
+                return i == 0 ? "file" : uri.substring(0, i).toLowerCase();
+            }
+            if (!(Character.isLetterOrDigit(c) || c == '+' || c == '-' || c == '.')) {
+                break;
+            }
+        }
+        return "file";
+    }
+
+    static boolean isHttpScheme(String scheme) {
+        return "http".equals(scheme) || "https".equals(scheme);
+    }
+}
@@ -7,10 +7,8 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.Matrix;
 import android.graphics.Paint;
-import android.graphics.PorterDuff;
-import android.graphics.PorterDuffXfermode;
-import android.graphics.Rect;
 import android.graphics.RectF;
 import android.media.ThumbnailUtils;
 import android.os.Build;
@@ -19,14 +17,17 @@ import android.util.Log;
 import android.widget.ImageView;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Created by recoilme on 12/06/15.
@@ -43,6 +44,10 @@ public class Malevich extends ImageWorker{
         void onImageDecodeError(Malevich malevich, String data, String error);
     }
 
+    /**
+     * @deprecated Use a {@link Transformation}, which has a key for the cache
+     */
+    @Deprecated
     public interface ImageDecodedListener {
         /**
          * Invoked when an image has  load. This is useful for transformayion image
@@ -52,6 +57,10 @@ public class Malevich extends ImageWorker{
 
     private static final String TAG = "Malevich";
 
+    private static final int IO_BUFFER_SIZE = 8 * 1024;
+    // How far the bounds pass may read into a stream before the real decode has to start over
+    private static final int STREAM_MARK_LIMIT = 512 * 1024;
+
     private final Context context;
     private final boolean debug;
     private final int maxSize;
@@ -62,7 +71,10 @@ public class Malevich extends ImageWorker{
     private Object data = null;
     private int reqWidth = 0;
     private int reqHeight = 0;
-    private ImageDecodedListener imageDecodedListener;
+    private int priority = FetchScheduler.PRIORITY_NORMAL;
+    private int decodeFlags = 0;
+    private List<Transformation> transformations;
+    private boolean animated;
 
     public static class Builder {
         // required params
@@ -73,6 +85,17 @@ public class Malevich extends ImageWorker{
         private ImageCache.ImageCacheParams cacheParams;
         private Bitmap loadingImage;
         private ErrorDecodingListener errorDecodingListener;
+        private boolean streamingDecode = false;
+        private boolean exactSize = false;
+        private boolean rgb565IfOpaque = false;
+        private boolean exifOrientation = false;
+        private boolean exifThumbnail = false;
+        private Fetcher fetcher;
+        private int parallelRanges = 1;
+        private int maxConcurrentFetches;
+        private int maxFetchesPerHost;
+        private final HashMap<String, SourceResolver> sourceResolvers =
+                new HashMap<String, SourceResolver>();
 
         public Builder (Context contextContainer) {
             if (contextContainer == null) {
@@ -133,6 +156,76 @@ public class Malevich extends ImageWorker{
             return this;
         }
 
+        /** Specify how images are downloaded, {@link HttpUrlFetcher} by default. */
+        public Builder fetcher (Fetcher fetcher) {
+            if (fetcher == null) {
+                throw new IllegalArgumentException("Fetcher must not be null.");
+            }
+            this.fetcher = fetcher;
+            return this;
+        }
+
+        /** Load uris of this scheme with an own resolver, see {@link SourceResolver}. */
+        public Builder sourceResolver (String scheme, SourceResolver resolver) {
+            if (scheme == null || resolver == null) {
+                throw new IllegalArgumentException("Scheme and resolver must not be null.");
+            }
+            this.sourceResolvers.put(scheme, resolver);
+            return this;
+        }
+
+        /** Limit how many images are loaded at once, and how many are downloaded from one host. */
+        public Builder fetchLimits (int maxConcurrent, int maxPerHost) {
+            if (maxConcurrent <= 0 || maxPerHost <= 0) {
+                throw new IllegalArgumentException("Limits must be positive.");
+            }
+            this.maxConcurrentFetches = maxConcurrent;
+            this.maxFetchesPerHost = maxPerHost;
+            return this;
+        }
+
+        /** Split large downloads into this many ranges fetched in parallel, at most 4. */
+        public Builder parallelRanges (int parallelRanges) {
+            this.parallelRanges = parallelRanges;
+            return this;
+        }
+
+        /** Decode images to exactly the requested size instead of a power of two sample. */
+        public Builder exactSize (boolean exactSize) {
+            this.exactSize = exactSize;
+            return this;
+        }
+
+        /** Decode images without alpha, like JPEG, to RGB_565, it halves their memory. */
+        public Builder rgb565IfOpaque (boolean rgb565IfOpaque) {
+            this.rgb565IfOpaque = rgb565IfOpaque;
+            return this;
+        }
+
+        /**
+         * Turn JPEGs upright by their EXIF orientation while decoding. Off by default, it is part
+         * of the cache keys, so images already in the disk cache are decoded again.
+         */
+        public Builder exifOrientation (boolean exifOrientation) {
+            this.exifOrientation = exifOrientation;
+            return this;
+        }
+
+        /**
+         * Decode the EXIF thumbnail of local and cached JPEGs for small sizes. Off by default, it
+         * is part of the cache keys, so images already in the disk cache are decoded again.
+         */
+        public Builder exifThumbnail (boolean exifThumbnail) {
+            this.exifThumbnail = exifThumbnail;
+            return this;
+        }
+
+        /** Decode downloaded images while they are written to the http cache. */
+        public Builder streamingDecode (boolean streamingDecode) {
+            this.streamingDecode = streamingDecode;
+            return this;
+        }
+
         /** Specify a listener for interesting events. */
         public Builder globalListener(ErrorDecodingListener errorDecodingListener) {
             if (errorDecodingListener == null) {
@@ -162,6 +255,21 @@ public class Malevich extends ImageWorker{
 
         // TODO reorginize it, loading image may change?
         setLoadingImage(loadingImage);
+        setStreamingDecode(builder.streamingDecode);
+        setExactSize(builder.exactSize);
+        setRgb565IfOpaque(builder.rgb565IfOpaque);
+        setExifOrientation(builder.exifOrientation);
+        setExifThumbnail(builder.exifThumbnail);
+        setParallelRanges(builder.parallelRanges);
+        if (builder.maxConcurrentFetches > 0) {
+            setFetchLimits(builder.maxConcurrentFetches, builder.maxFetchesPerHost);
+        }
+        if (builder.fetcher != null) {
+            setFetcher(builder.fetcher);
+        }
+        for (Map.Entry<String, SourceResolver> entry : builder.sourceResolvers.entrySet()) {
+            registerSourceResolver(entry.getKey(), entry.getValue());
+        }
         addImageCache(cacheParams);
     }
 
@@ -171,7 +279,10 @@ public class Malevich extends ImageWorker{
         // clear params to default for every new load
         this.reqWidth = maxSize;
         this.reqHeight = maxSize;
-        this.imageDecodedListener = null;
+        this.transformations = null;
+        this.animated = false;
+        this.priority = FetchScheduler.PRIORITY_NORMAL;
+        this.decodeFlags = getDecodeFlags();
         return this;
     }
 
@@ -185,14 +296,65 @@ public class Malevich extends ImageWorker{
         return this;
     }
 
+    /**
+     * @param priority One of FetchScheduler.PRIORITY_HIGH, PRIORITY_NORMAL or PRIORITY_LOW
+     */
+    public Malevich priority (int priority) {
+        this.priority = priority;
+        return this;
+    }
+
+    /**
+     * Overrides {@link Builder#rgb565IfOpaque(boolean)} for this load, for example to keep
+     * ARGB_8888 for a photo that is drawn with effects.
+     */
+    public Malevich rgb565IfOpaque (boolean rgb565IfOpaque) {
+        this.decodeFlags = rgb565IfOpaque ? decodeFlags | Utils.DECODE_RGB_565_IF_OPAQUE
+                : decodeFlags & ~Utils.DECODE_RGB_565_IF_OPAQUE;
+        return this;
+    }
+
+    /**
+     * Adds transformations for this load, applied in order after the decode. Transformed images
+     * are cached under keys that include the transformations.
+     */
+    public Malevich transform (Transformation... transformations) {
+        if (this.transformations == null) {
+            this.transformations = new ArrayList<Transformation>(transformations.length);
+        }
+        Collections.addAll(this.transformations, transformations);
+        return this;
+    }
+
+    /**
+     * @deprecated The result is only cached in memory and only for the same listener instance,
+     *             keep the listener in a field to reuse it. Use
+     *             {@link #transform(Transformation...)}
+     */
+    @Deprecated
     public Malevich imageDecodedListener(ImageDecodedListener imageDecodedListener) {
-        this.imageDecodedListener = imageDecodedListener;
+        if (imageDecodedListener != null) {
+            transform(new ListenerTransformation(data, imageDecodedListener));
+        }
+        return this;
+    }
+
+    /**
+     * Plays animated GIFs instead of showing their first frame, see {@link GifDrawable}.
+     * Transformations don't apply to animations.
+     */
+    public Malevich animated (boolean animated) {
+        this.animated = animated;
         return this;
     }
 
     // This is final method for every image loading
     public void into (ImageView imageView) {
-        loadImage(data, imageView, reqWidth, reqHeight, imageDecodedListener);
+        if (animated) {
+            loadAnimated(data, imageView, reqWidth, reqHeight);
+            return;
+        }
+        loadImage(data, imageView, reqWidth, reqHeight, transformations, priority, decodeFlags);
     }
 
 
@@ -200,6 +362,33 @@ public class Malevich extends ImageWorker{
 
     public enum Utils {;
 
+        /**
+         * Decode flag, scale to exactly the requested size, see {@link #setSampleSize}.
+         */
+        public static final int DECODE_EXACT_SIZE = 1;
+
+        /**
+         * Decode flag, use RGB_565 instead of ARGB_8888 for images without alpha, like JPEG.
+         * Halves the memory of the bitmap.
+         */
+        public static final int DECODE_RGB_565_IF_OPAQUE = 1 << 1;
+
+        /**
+         * Decode flag, turn JPEGs upright by their EXIF orientation. The sample size is picked
+         * for the turned image and the decoded bitmap is turned into one from the bitmap pool.
+         */
+        public static final int DECODE_EXIF_ORIENTATION = 1 << 2;
+
+        /**
+         * Decode flag, decode the JPEG thumbnail in the EXIF data of files instead of the image
+         * if it covers the requested size. Larger sizes have keys of their own and decode the
+         * image.
+         */
+        public static final int DECODE_EXIF_THUMBNAIL = 1 << 3;
+
+        // EXIF thumbnails fit into 64K, no need to read them for larger requests
+        private static final int MAX_EXIF_THUMBNAIL_REQUEST = 512;
+
         public static boolean hasHoneycomb() {
             return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
         }
@@ -275,14 +464,48 @@ public class Malevich extends ImageWorker{
          */
         public static Bitmap decodeSampledBitmapFromFile(String filename,
                                                          int reqWidth, int reqHeight, ImageCache cache) {
+            return decodeSampledBitmapFromFile(filename, reqWidth, reqHeight, cache, 0);
+        }
+
+        /**
+         * Same as {@link #decodeSampledBitmapFromFile(String, int, int, ImageCache)}.
+         *
+         * @param flags {@link #DECODE_EXACT_SIZE}, {@link #DECODE_RGB_565_IF_OPAQUE},
+         *              {@link #DECODE_EXIF_ORIENTATION} and {@link #DECODE_EXIF_THUMBNAIL}
+         */
+        public static Bitmap decodeSampledBitmapFromFile(String filename, int reqWidth,
+                int reqHeight, ImageCache cache, int flags) {
 
-            // First decode with inJustDecodeBounds=true to check dimensions
             final BitmapFactory.Options options = new BitmapFactory.Options();
-            options.inJustDecodeBounds = true;
-            BitmapFactory.decodeFile(filename, options);
+            ImageHeader header = null;
+            FileInputStream fileInputStream = null;
+            try {
+                fileInputStream = new FileInputStream(filename);
+                header = ImageHeader.read(fileInputStream.getChannel());
+                final Bitmap thumbnail = decodeExifThumbnail(fileInputStream.getChannel(),
+                        header, reqWidth, reqHeight, cache, flags);
+                if (thumbnail != null) {
+                    return thumbnail;
+                }
+                if (!readBounds(header, options)) {
+                    // Unknown header, ask the decoder for the dimensions
+                    options.inJustDecodeBounds = true;
+                    BitmapFactory.decodeFile(filename, options);
+                }
+            } catch (ImageHeader.NotAnImageException e) {
+                Log.w(TAG, "decodeSampledBitmapFromFile - " + e);
+                return null;
+            } catch (IOException e) {
+                return null;
+            } finally {
+                DiskLruCache.closeQuietly(fileInputStream);
+            }
 
             // Calculate inSampleSize
-            options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+            final int orientation = getOrientation(header, flags);
+            setSampleSize(options, reqWidth, reqHeight, orientation,
+                    (flags & DECODE_EXACT_SIZE) != 0);
+            setConfig(options, header, flags);
 
             // If we're running on Honeycomb or newer, try to use inBitmap
             if (hasHoneycomb()) {
@@ -291,7 +514,8 @@ public class Malevich extends ImageWorker{
 
             // Decode bitmap with inSampleSize set
             options.inJustDecodeBounds = false;
-            return BitmapFactory.decodeFile(filename, options);
+            return finishDecode(BitmapFactory.decodeFile(filename, options), options, orientation,
+                    cache);
         }
 
         /**
@@ -306,14 +530,47 @@ public class Malevich extends ImageWorker{
          */
         public static Bitmap decodeSampledBitmapFromDescriptor(
                 FileDescriptor fileDescriptor, int reqWidth, int reqHeight, ImageCache cache) {
+            return decodeSampledBitmapFromDescriptor(fileDescriptor, reqWidth, reqHeight, cache, 0);
+        }
+
+        /**
+         * Same as {@link #decodeSampledBitmapFromDescriptor(FileDescriptor, int, int, ImageCache)}.
+         *
+         * @param flags {@link #DECODE_EXACT_SIZE}, {@link #DECODE_RGB_565_IF_OPAQUE},
+         *              {@link #DECODE_EXIF_ORIENTATION} and {@link #DECODE_EXIF_THUMBNAIL}
+         */
+        public static Bitmap decodeSampledBitmapFromDescriptor(FileDescriptor fileDescriptor,
+                int reqWidth, int reqHeight, ImageCache cache, int flags) {
 
-            // First decode with inJustDecodeBounds=true to check dimensions
             final BitmapFactory.Options options = new BitmapFactory.Options();
-            options.inJustDecodeBounds = true;
-            BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
+            ImageHeader header = null;
+            try {
+                // A stream over a descriptor it did not open never closes it, and the positional
+                // reads of its channel leave the descriptor offset where the decoder expects it
+                final FileChannel channel = new FileInputStream(fileDescriptor).getChannel();
+                header = ImageHeader.read(channel);
+                final Bitmap thumbnail =
+                        decodeExifThumbnail(channel, header, reqWidth, reqHeight, cache, flags);
+                if (thumbnail != null) {
+                    return thumbnail;
+                }
+            } catch (ImageHeader.NotAnImageException e) {
+                Log.w(TAG, "decodeSampledBitmapFromDescriptor - " + e);
+                return null;
+            } catch (IOException e) {
+                // Not seekable, a pipe for example
+            }
+            if (!readBounds(header, options)) {
+                // Unknown header, ask the decoder for the dimensions
+                options.inJustDecodeBounds = true;
+                BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
+            }
 
             // Calculate inSampleSize
-            options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+            final int orientation = getOrientation(header, flags);
+            setSampleSize(options, reqWidth, reqHeight, orientation,
+                    (flags & DECODE_EXACT_SIZE) != 0);
+            setConfig(options, header, flags);
 
             // Decode bitmap with inSampleSize set
             options.inJustDecodeBounds = false;
@@ -323,7 +580,135 @@ public class Malevich extends ImageWorker{
                 addInBitmapOptions(options, cache);
             }
 
-            return BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
+            return finishDecode(BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options),
+                    options, orientation, cache);
+        }
+
+        /**
+         * Opens the stream of an image again, from its start.
+         */
+        public interface StreamOpener {
+            InputStream open() throws IOException;
+        }
+
+        /**
+         * Decode and sample down a bitmap from a stream to the requested width and height. The
+         * stream is read only once, the header is buffered for the second pass.
+         *
+         * @param inputStream The stream to read from, it is not closed
+         * @param reqWidth The requested width of the resulting bitmap
+         * @param reqHeight The requested height of the resulting bitmap
+         * @param cache The ImageCache used to find candidate bitmaps for use with inBitmap
+         * @return A bitmap sampled down from the original with the same aspect ratio and dimensions
+         *         that are equal to or greater than the requested width and height, or null if the
+         *         header did not fit into the mark limit
+         */
+        public static Bitmap decodeSampledBitmapFromStream(
+                InputStream inputStream, int reqWidth, int reqHeight, ImageCache cache) {
+            return decodeSampledBitmapFromStream(inputStream, reqWidth, reqHeight, cache, 0);
+        }
+
+        /**
+         * Same as {@link #decodeSampledBitmapFromStream(InputStream, int, int, ImageCache)}.
+         *
+         * @param flags {@link #DECODE_EXACT_SIZE}, {@link #DECODE_RGB_565_IF_OPAQUE} and
+         *              {@link #DECODE_EXIF_ORIENTATION}
+         */
+        public static Bitmap decodeSampledBitmapFromStream(InputStream inputStream,
+                int reqWidth, int reqHeight, ImageCache cache, int flags) {
+            return decodeSampledBitmapFromStream(inputStream, null, reqWidth, reqHeight, cache,
+                    flags);
+        }
+
+        /**
+         * Same as {@link #decodeSampledBitmapFromStream(InputStream, int, int, ImageCache, int)},
+         * for a source that can be opened again. When the header does not fit into the mark
+         * limit, like a JPEG with a large EXIF block, the bitmap is decoded from a second stream
+         * instead of giving up.
+         *
+         * @param reopener Opens the second stream, which is closed after the decode. May be null.
+         */
+        public static Bitmap decodeSampledBitmapFromStream(InputStream inputStream,
+                StreamOpener reopener, int reqWidth, int reqHeight, ImageCache cache, int flags) {
+            final BufferedInputStream in = new BufferedInputStream(inputStream, IO_BUFFER_SIZE);
+            in.mark(STREAM_MARK_LIMIT);
+
+            final BitmapFactory.Options options = new BitmapFactory.Options();
+            ImageHeader header = null;
+            InputStream decodeIn = in;
+            try {
+                header = ImageHeader.read(in);
+                final boolean known = readBounds(header, options);
+                in.reset();
+                if (!known) {
+                    // Unknown header, ask the decoder for the dimensions
+                    options.inJustDecodeBounds = true;
+                    BitmapFactory.decodeStream(in, null, options);
+                    decodeIn = resetOrReopen(in, reopener);
+                }
+            } catch (ImageHeader.NotAnImageException e) {
+                Log.w(TAG, "decodeSampledBitmapFromStream - " + e);
+                return null;
+            } catch (IOException e) {
+                return null;
+            }
+
+            try {
+                // Calculate inSampleSize
+                final int orientation = getOrientation(header, flags);
+                setSampleSize(options, reqWidth, reqHeight, orientation,
+                        (flags & DECODE_EXACT_SIZE) != 0);
+                setConfig(options, header, flags);
+
+                // Decode bitmap with inSampleSize set
+                options.inJustDecodeBounds = false;
+
+                // If we're running on Honeycomb or newer, try to use inBitmap
+                if (hasHoneycomb()) {
+                    addInBitmapOptions(options, cache);
+                }
+
+                return finishDecode(BitmapFactory.decodeStream(decodeIn, null, options), options,
+                        orientation, cache);
+            } finally {
+                if (decodeIn != in) {
+                    try {
+                        decodeIn.close();
+                    } catch (IOException e) {}
+                }
+            }
+        }
+
+        /**
+         * @return {@code in} reset to its mark, or a new stream of the image if the mark is gone
+         */
+        private static InputStream resetOrReopen(BufferedInputStream in, StreamOpener reopener)
+                throws IOException {
+            try {
+                in.reset();
+                return in;
+            } catch (IOException e) {
+                if (reopener == null) {
+                    throw e;
+                }
+                return new BufferedInputStream(reopener.open(), IO_BUFFER_SIZE);
+            }
+        }
+
+        /**
+         * Sets the out* dimensions of {@code options} from a header read by {@link ImageHeader},
+         * so the native bounds decode can be skipped.
+         *
+         * @return false if there is no header
+         */
+        private static boolean readBounds(ImageHeader header, BitmapFactory.Options options) {
+            if (header == null || header.width <= 0 || header.height <= 0) {
+                return false;
+            }
+            options.outWidth = header.width;
+            options.outHeight = header.height;
+            options.outMimeType = header.format.mimeType;
+            return true;
         }
 
         @TargetApi(Build.VERSION_CODES.HONEYCOMB)
@@ -344,6 +729,218 @@ public class Malevich extends ImageWorker{
             //END_INCLUDE(add_bitmap_options)
         }
 
+        /**
+         * Decodes the JPEG thumbnail in the EXIF data instead of the image, if it has the aspect
+         * ratio of the image and covers the requested size. Camera photos have one of about
+         * 160x120, which is enough for grid cells and decodes many times faster.
+         *
+         * @return The thumbnail sampled and turned like the image would be, or null to decode
+         *         the image
+         */
+        private static Bitmap decodeExifThumbnail(FileChannel channel, ImageHeader header,
+                int reqWidth, int reqHeight, ImageCache cache, int flags) {
+            if ((flags & DECODE_EXIF_THUMBNAIL) == 0 || header == null
+                    || header.thumbnailLength <= 0 || reqWidth <= 0 || reqHeight <= 0
+                    || Math.max(reqWidth, reqHeight) > MAX_EXIF_THUMBNAIL_REQUEST) {
+                return null;
+            }
+            final byte[] data = new byte[header.thumbnailLength];
+            final ImageHeader thumbnail;
+            try {
+                final ByteBuffer buffer = ByteBuffer.wrap(data);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, header.thumbnailOffset + buffer.position()) == -1) {
+                        return null;
+                    }
+                }
+                thumbnail = ImageHeader.parse(data, data.length);
+            } catch (IOException e) {
+                return null;
+            }
+            if (thumbnail == null || thumbnail.format != ImageHeader.Format.JPEG
+                    || thumbnail.width <= 0 || thumbnail.height <= 0) {
+                return null;
+            }
+            // Some cameras pad the thumbnail to 4:3 with black bars
+            final float aspect = (float) header.width / header.height;
+            if (Math.abs((float) thumbnail.width / thumbnail.height - aspect) > aspect / 50) {
+                return null;
+            }
+            final int orientation = getOrientation(header, flags);
+            final boolean transposed = orientation >= 5 && orientation <= 8;
+            if ((transposed ? thumbnail.height : thumbnail.width) < reqWidth
+                    || (transposed ? thumbnail.width : thumbnail.height) < reqHeight) {
+                return null;
+            }
+
+            final BitmapFactory.Options options = new BitmapFactory.Options();
+            readBounds(thumbnail, options);
+            setSampleSize(options, reqWidth, reqHeight, orientation,
+                    (flags & DECODE_EXACT_SIZE) != 0);
+            setConfig(options, thumbnail, flags);
+            if (hasHoneycomb()) {
+                addInBitmapOptions(options, cache);
+            }
+            return finishDecode(BitmapFactory.decodeByteArray(data, 0, data.length, options),
+                    options, orientation, cache);
+        }
+
+        /**
+         * @return The EXIF orientation to apply, {@link ImageHeader#ORIENTATION_NORMAL} without
+         *         {@link #DECODE_EXIF_ORIENTATION}
+         */
+        private static int getOrientation(ImageHeader header, int flags) {
+            return header != null && (flags & DECODE_EXIF_ORIENTATION) != 0
+                    ? header.orientation : ImageHeader.ORIENTATION_NORMAL;
+        }
+
+        /**
+         * Same as {@link #setSampleSize(BitmapFactory.Options, int, int, boolean)} for an image
+         * that is turned by {@code orientation} afterwards, the requested size applies to the
+         * turned image.
+         */
+        static void setSampleSize(BitmapFactory.Options options, int reqWidth, int reqHeight,
+                                  int orientation, boolean exactSize) {
+            if (orientation >= 5 && orientation <= 8) {
+                setSampleSize(options, reqHeight, reqWidth, exactSize);
+            } else {
+                setSampleSize(options, reqWidth, reqHeight, exactSize);
+            }
+        }
+
+        /**
+         * Sets the sampling of {@code options}, which already has the out* dimensions.
+         * <p>
+         * By default that is a power of two inSampleSize from
+         * {@link #calculateInSampleSize(BitmapFactory.Options, int, int)}. With
+         * {@code exactSize} the bitmap is decoded straight to the requested size in one pass:
+         * the largest power of two sample that stays at or above the requested size, and
+         * density scaling for the rest. The result covers the requested size with the same
+         * aspect ratio and one side exactly as requested. Smaller images are not scaled up.
+         * The decoder scales by density natively since KitKat, before only the sample is used.
+         */
+        static void setSampleSize(BitmapFactory.Options options, int reqWidth, int reqHeight,
+                                  boolean exactSize) {
+            if (!exactSize) {
+                options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+                return;
+            }
+            final int width = options.outWidth;
+            final int height = options.outHeight;
+            options.inSampleSize = 1;
+            if (width <= 0 || height <= 0 || reqWidth <= 0 || reqHeight <= 0) {
+                return;
+            }
+            // The side that needs the least scaling down decides, so both sides cover the request
+            final boolean byWidth = (long) reqWidth * height >= (long) reqHeight * width;
+            final int size = byWidth ? width : height;
+            final int reqSize = byWidth ? reqWidth : reqHeight;
+            int inSampleSize = 1;
+            while (size / (inSampleSize * 2) >= reqSize) {
+                inSampleSize *= 2;
+            }
+            options.inSampleSize = inSampleSize;
+            if (hasKitKat() && size / inSampleSize > reqSize) {
+                // Scales the sampled bitmap by inTargetDensity / inDensity
+                options.inScaled = true;
+                options.inDensity = size;
+                options.inTargetDensity = reqSize * inSampleSize;
+            }
+        }
+
+        /**
+         * Picks the bitmap config: RGB_565 for images without alpha with
+         * {@link #DECODE_RGB_565_IF_OPAQUE}, ARGB_8888 otherwise. Without a header the image is
+         * taken as opaque only if the decoder reported a JPEG.
+         */
+        static void setConfig(BitmapFactory.Options options, ImageHeader header, int flags) {
+            if ((flags & DECODE_RGB_565_IF_OPAQUE) == 0) {
+                return;
+            }
+            final boolean hasAlpha = header != null
+                    ? header.hasAlpha : !"image/jpeg".equals(options.outMimeType);
+            if (!hasAlpha) {
+                options.inPreferredConfig = Bitmap.Config.RGB_565;
+            }
+        }
+
+        /**
+         * A bitmap scaled by density carries the target density, which would make a
+         * BitmapDrawable scale it again. Give it the density of an unscaled decode. Then turns
+         * it by its orientation.
+         */
+        private static Bitmap finishDecode(Bitmap bitmap, BitmapFactory.Options options,
+                                           int orientation, ImageCache cache) {
+            if (bitmap != null && options.inDensity != 0) {
+                bitmap.setDensity(Resources.getSystem().getDisplayMetrics().densityDpi);
+            }
+            return orient(bitmap, orientation, cache);
+        }
+
+        /**
+         * Turns a bitmap upright by its EXIF orientation in one draw into a bitmap from the pool
+         * of {@code cache}. The decoded bitmap goes back to the pool, so no new full size bitmap
+         * is allocated when the pool has one.
+         *
+         * @param orientation 1 to 8 like ExifInterface.ORIENTATION_*
+         * @return The turned bitmap, or {@code bitmap} if it is upright already
+         */
+        public static Bitmap orient(Bitmap bitmap, int orientation, ImageCache cache) {
+            if (bitmap == null || orientation <= ImageHeader.ORIENTATION_NORMAL
+                    || orientation > 8) {
+                return bitmap;
+            }
+            final int width = bitmap.getWidth();
+            final int height = bitmap.getHeight();
+            final Matrix matrix = new Matrix();
+            switch (orientation) {
+                case 2: // Flip horizontal
+                    matrix.setScale(-1, 1);
+                    break;
+                case 3: // Rotate 180
+                    matrix.setRotate(180);
+                    break;
+                case 4: // Flip vertical
+                    matrix.setScale(1, -1);
+                    break;
+                case 5: // Transpose
+                    matrix.setRotate(90);
+                    matrix.postScale(-1, 1);
+                    break;
+                case 6: // Rotate 90
+                    matrix.setRotate(90);
+                    break;
+                case 7: // Transverse
+                    matrix.setRotate(-90);
+                    matrix.postScale(-1, 1);
+                    break;
+                default: // Rotate 270
+                    matrix.setRotate(-90);
+                    break;
+            }
+            // Move the turned image back to the origin
+            final RectF bounds = new RectF(0, 0, width, height);
+            matrix.mapRect(bounds);
+            matrix.postTranslate(-bounds.left, -bounds.top);
+
+            final boolean transposed = orientation >= 5;
+            final int targetWidth = transposed ? height : width;
+            final int targetHeight = transposed ? width : height;
+            final Bitmap.Config config = bitmap.getConfig() != null
+                    ? bitmap.getConfig() : Bitmap.Config.ARGB_8888;
+            final BitmapPool pool = cache != null ? cache.getBitmapPool() : null;
+            final Bitmap target = pool != null ? pool.get(targetWidth, targetHeight, config)
+                    : Bitmap.createBitmap(targetWidth, targetHeight, config);
+            // Right angles and flips map pixels exactly, no filtering
+            new Canvas(target).drawBitmap(bitmap, matrix, null);
+            target.setDensity(bitmap.getDensity());
+            target.setHasAlpha(bitmap.hasAlpha());
+            if (pool != null) {
+                pool.put(bitmap);
+            }
+            return target;
+        }
+
         /**
          * Calculate an inSampleSize for use in a {@link BitmapFactory.Options} object when decoding
          * bitmaps using the decode* methods from {@link BitmapFactory}. This implementation calculates
@@ -418,35 +1015,23 @@ public class Malevich extends ImageWorker{
         }
 
         /**
-         * Creates a circle bitmap
+         * Creates a circle bitmap, an oval for bitmaps that are not square
          *
-         * @param bitmap original bitmap source
+         * @param bitmap original bitmap source, it is recycled
+         * @deprecated Load with {@link ShapeTransformation#circle()} instead, the circle is cached
+         * and drawn into a bitmap from the pool
          */
+        @Deprecated
         public static Bitmap getCircleBitmap(Bitmap bitmap) {
-            final Bitmap output = Bitmap.createBitmap(bitmap.getWidth(),
-                    bitmap.getHeight(), Bitmap.Config.ARGB_8888);
-            final Canvas canvas = new Canvas(output);
-
-            final Paint paint = new Paint();
-            final Rect rect = new Rect(0, 0, bitmap.getWidth(), bitmap.getHeight());
-            final RectF rectF = new RectF(rect);
-            final int color = Color.RED;
-
-            paint.setAntiAlias(true);
-            canvas.drawARGB(0, 0, 0, 0);
-            paint.setColor(color);
-            canvas.drawOval(rectF, paint);
-
-            paint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC_IN));
-            canvas.drawBitmap(bitmap, rect, rect, paint);
-
+            final Bitmap output = ShapeTransformation.oval()
+                    .transform(null, bitmap, bitmap.getWidth(), bitmap.getHeight());
             bitmap.recycle();
             return output;
         }
 
-        // Get squared bitmap and transform it to circle
+        // Get squared bitmap and transform it to circle, the source is not changed
         public static Bitmap getSquaredCircleBitmap(Bitmap bitmap,int reqWidth) {
-            return getCircleBitmap(extractThumbnail(bitmap,reqWidth,reqWidth));
+            return ShapeTransformation.circle().transform(null, bitmap, reqWidth, reqWidth);
         }
 
         // Draw circle bitmap with text inside
@@ -0,0 +1,200 @@
+package org.freemp.malevich;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The key of a loaded image in the memory cache of the {@link ImageCache}: the data, the
+ * requested size, the decode flags and the transformations. The hash is computed once, so memory
+ * cache lookups don't build or hash strings. The disk cache key, the MD5 of {@link #toString()},
+ * is only derived when the disk cache is used and kept on the key.
+ * <p>
+ * Keys are immutable. The {@link ImageWorker} looks up with one reused probe on the UI thread and
+ * only creates a key when it starts loading, so a memory cache hit allocates nothing.
+ */
+public final class RequestKey {
+
+    private Object mData;
+    private int mWidth;
+    private int mHeight;
+    private int mFlags;
+    private List<Transformation> mTransformations;
+    private String mVersion;
+    private int mHash;
+
+    // Only the probe of a worker changes after construction
+    private final boolean mProbe;
+
+    // Racy single check like String.hashCode, a String is safe to publish without a lock
+    private String mDiskKey;
+
+    /**
+     * @param data The uri or other data of the image
+     * @param decodeFlags Malevich.Utils.DECODE_* flags
+     * @param transformations Applied in order, may be null. Copied.
+     */
+    public RequestKey(Object data, int reqWidth, int reqHeight, int decodeFlags,
+                      List<Transformation> transformations) {
+        this(data, reqWidth, reqHeight, decodeFlags, copyOf(transformations), null, false);
+    }
+
+    private RequestKey(Object data, int reqWidth, int reqHeight, int decodeFlags,
+                       List<Transformation> transformations, String version, boolean probe) {
+        mProbe = probe;
+        set(data, reqWidth, reqHeight, decodeFlags, transformations, version);
+    }
+
+    /**
+     * @return A probe for lookups that is changed with {@link #set}, never to be stored in a map
+     */
+    static RequestKey newProbe() {
+        return new RequestKey(null, 0, 0, 0, null, null, true);
+    }
+
+    /**
+     * Points the probe at another request, without copying the transformations.
+     *
+     * @return The probe
+     */
+    RequestKey set(Object data, int reqWidth, int reqHeight, int decodeFlags,
+                   List<Transformation> transformations) {
+        if (!mProbe) {
+            throw new IllegalStateException("RequestKey is immutable");
+        }
+        set(data, reqWidth, reqHeight, decodeFlags,
+                transformations == null || transformations.isEmpty() ? null : transformations,
+                null);
+        return this;
+    }
+
+    private void set(Object data, int reqWidth, int reqHeight, int decodeFlags,
+                     List<Transformation> transformations, String version) {
+        mData = data;
+        mWidth = reqWidth;
+        mHeight = reqHeight;
+        mFlags = decodeFlags;
+        mTransformations = transformations;
+        mVersion = version;
+        mDiskKey = null;
+
+        int hash = data != null ? data.hashCode() : 0;
+        hash = 31 * hash + reqWidth;
+        hash = 31 * hash + reqHeight;
+        hash = 31 * hash + decodeFlags;
+        if (transformations != null) {
+            for (int i = 0; i < transformations.size(); i++) {
+                hash = 31 * hash + transformations.get(i).key().hashCode();
+            }
+        }
+        if (version != null) {
+            hash = 31 * hash + version.hashCode();
+        }
+        mHash = hash;
+    }
+
+    /**
+     * @return An immutable copy of the probe, or this key if it is not a probe
+     */
+    RequestKey copy() {
+        return mProbe ? new RequestKey(mData, mWidth, mHeight, mFlags, mTransformations) : this;
+    }
+
+    /**
+     * @return The key of the same request for a version of its source, like a file that was
+     *         changed in place. Only the disk cache uses it.
+     */
+    public RequestKey withVersion(String version) {
+        return new RequestKey(mData, mWidth, mHeight, mFlags,
+                mProbe ? copyOf(mTransformations) : mTransformations, version, false);
+    }
+
+    /**
+     * @return The same request without transformations, the plain decode they start from
+     */
+    public RequestKey untransformed() {
+        if (mTransformations == null && !mProbe) {
+            return this;
+        }
+        return new RequestKey(mData, mWidth, mHeight, mFlags, null, mVersion, false);
+    }
+
+    /**
+     * @return The name of the image in the disk cache
+     */
+    public String getDiskKey() {
+        String diskKey = mDiskKey;
+        if (diskKey == null) {
+            diskKey = ImageCache.hashKeyForDisk(toString());
+            if (!mProbe) {
+                mDiskKey = diskKey;
+            }
+        }
+        return diskKey;
+    }
+
+    private static List<Transformation> copyOf(List<Transformation> transformations) {
+        if (transformations == null || transformations.isEmpty()) {
+            return null;
+        }
+        return Collections.unmodifiableList(new ArrayList<Transformation>(transformations));
+    }
+
+    @Override
+    public int hashCode() {
+        return mHash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof RequestKey)) {
+            return false;
+        }
+        final RequestKey other = (RequestKey) o;
+        if (mHash != other.mHash || mWidth != other.mWidth || mHeight != other.mHeight
+                || mFlags != other.mFlags
+                || (mData == null ? other.mData != null : !mData.equals(other.mData))
+                || (mVersion == null ? other.mVersion != null : !mVersion.equals(other.mVersion))) {
+            return false;
+        }
+        final List<Transformation> transformations = other.mTransformations;
+        if (mTransformations == null || transformations == null) {
+            return mTransformations == transformations;
+        }
+        if (mTransformations.size() != transformations.size()) {
+            return false;
+        }
+        for (int i = 0; i < transformations.size(); i++) {
+            if (!mTransformations.get(i).key().equals(transformations.get(i).key())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The key as the string that memory and disk cache keys used to be, so images stay
+     *         in disk caches written by earlier versions
+     */
+    @Override
+    public String toString() {
+        final StringBuilder key = new StringBuilder()
+                .append(mData).append("#width").append(mWidth).append("#height").append(mHeight);
+        // Loads without flags keep the keys they always had
+        if (mFlags != 0) {
+            key.append("#flags").append(mFlags);
+        }
+        if (mTransformations != null) {
+            for (int i = 0; i < mTransformations.size(); i++) {
+                key.append('#').append(mTransformations.get(i).key());
+            }
+        }
+        if (mVersion != null) {
+            key.append("#version").append(mVersion);
+        }
+        return key.toString();
+    }
+}
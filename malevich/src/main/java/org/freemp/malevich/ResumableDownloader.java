@@ -0,0 +1,419 @@
+package org.freemp.malevich;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Downloads http responses into partial files that outlive failed and cancelled attempts. The
+ * next attempt for the same key only asks for the missing bytes with a Range request, guarded by
+ * If-Range so a changed image is downloaded from the start. Large responses may also be split
+ * into byte ranges fetched in parallel.
+ *
+ * Calls for the same key must not overlap, {@link ImageWorker} holds the key lock around them.
+ */
+final class ResumableDownloader {
+    private static final String TAG = "Malevich: ResumableDownloader";
+
+    private static final String PARTIAL_SUFFIX = ".part";
+    private static final String VALIDATOR_SUFFIX = ".validator";
+    // Partial files which were not resumed for a day are deleted
+    private static final long PARTIAL_MAX_AGE = 24 * 60 * 60 * 1000L;
+    // Smaller responses are not worth extra connections
+    private static final long PARALLEL_MIN_SIZE = 2 * 1024 * 1024;
+    private static final int MAX_PARALLEL_RANGES = 4;
+
+    private static ThreadPoolExecutor sRangeExecutor;
+
+    private final File mPartialDir;
+    private final boolean debug;
+    private volatile int mParallelRanges = 1;
+
+    ResumableDownloader(File partialDir, boolean debug) {
+        mPartialDir = partialDir;
+        this.debug = debug;
+    }
+
+    /**
+     * @param parallelRanges How many ranges a large response is split into, 1 to disable
+     */
+    void setParallelRanges(int parallelRanges) {
+        mParallelRanges = Math.max(1, Math.min(parallelRanges, MAX_PARALLEL_RANGES));
+    }
+
+    /**
+     * Downloads {@code url} into a partial file, resuming a previous attempt if possible, and
+     * moves the complete file into the value at {@code index} of {@code editor}.
+     *
+     * @param scheduler Gives the host slots for the extra connections of parallel ranges, the
+     *                  caller already holds one for this download. Null for no limit.
+     * @return The response, already closed. On resume it describes the last range only.
+     * @throws IOException if the download failed, the partial file is kept if it can be resumed
+     */
+    Fetcher.Response download(Fetcher fetcher, FetchScheduler scheduler, String url, String key,
+                              DiskLruCache.Editor editor, int index) throws IOException {
+        if (!mPartialDir.exists()) {
+            mPartialDir.mkdirs();
+        }
+        final File partial = new File(mPartialDir, key + PARTIAL_SUFFIX);
+        final File validatorFile = new File(mPartialDir, key + VALIDATOR_SUFFIX);
+
+        long offset = partial.length();
+        final long[] total = {-1};
+        String validator = offset > 0 ? readValidator(validatorFile, total) : null;
+        if (validator == null) {
+            offset = 0;
+        }
+
+        final Fetcher.Request request = new Fetcher.Request(url);
+        if (offset > 0) {
+            request.rangeStart = offset;
+            request.ifRange = validator;
+        }
+        Fetcher.Response response = null;
+        try {
+            response = fetcher.fetch(request);
+        } catch (Fetcher.HttpException e) {
+            if (offset == 0) {
+                throw e;
+            }
+        }
+        if (offset > 0 && (response == null
+                || (response.code != Fetcher.Response.HTTP_PARTIAL_CONTENT
+                && response.code != Fetcher.Response.HTTP_OK)
+                || (response.code == Fetcher.Response.HTTP_PARTIAL_CONTENT
+                && !isRemainder(response, offset, total[0])))) {
+            // For example 416 for a partial file that is already complete, a server that lost
+            // the image or a range other than the one asked for. Asking for the same range again
+            // would fail the same way.
+            if (debug) {
+                Log.d(TAG, "download - resume of " + url + " failed, starting over");
+            }
+            if (response != null) {
+                response.close();
+            }
+            partial.delete();
+            validatorFile.delete();
+            offset = 0;
+            validator = null;
+            response = fetcher.fetch(new Fetcher.Request(url));
+        }
+        RandomAccessFile file = null;
+        try {
+            if (response.body == null) {
+                throw new IOException("No body, response code " + response.code);
+            }
+            if (offset > 0 && response.code == Fetcher.Response.HTTP_PARTIAL_CONTENT) {
+                if (debug) {
+                    Log.d(TAG, "download - resuming " + url + " at " + offset);
+                }
+            } else {
+                // Nothing to resume or the image has changed, start over
+                offset = 0;
+                validator = getValidator(response);
+                total[0] = response.contentLength;
+                writeValidator(validatorFile, validator, total[0]);
+            }
+
+            file = new RandomAccessFile(partial, "rw");
+            file.setLength(offset);
+            final FileChannel channel = file.getChannel();
+            if (offset == 0 && validator != null && mParallelRanges > 1
+                    && response.acceptRanges && response.contentLength >= PARALLEL_MIN_SIZE) {
+                downloadRanges(fetcher, scheduler, url, validator, response, channel);
+            } else {
+                copy(response.body, channel, offset, -1, new long[1], 0, null);
+            }
+            if (total[0] >= 0 && channel.size() != total[0]) {
+                throw new IOException("Downloaded " + channel.size() + " of " + total[0]
+                        + " bytes");
+            }
+            // Error pages served with a success code must not get into the cache
+            ImageHeader.read(channel);
+        } catch (ImageHeader.NotAnImageException e) {
+            partial.delete();
+            validatorFile.delete();
+            throw e;
+        } catch (IOException e) {
+            if (validator == null) {
+                // Can't tell later if the partial file is still the same image
+                partial.delete();
+                validatorFile.delete();
+            }
+            throw e;
+        } finally {
+            DiskLruCache.closeQuietly(file);
+            response.close();
+        }
+
+        editor.adoptFile(index, partial);
+        validatorFile.delete();
+        return response;
+    }
+
+    /**
+     * Reads the first range from the body of the full response and fetches the others on the
+     * range executor, as many as the host has free slots for. On failure the partial file is cut
+     * to the bytes that are complete from the start, so the next attempt resumes from there.
+     */
+    private void downloadRanges(final Fetcher fetcher, final FetchScheduler scheduler,
+                                final String url, final String validator,
+                                Fetcher.Response response, final FileChannel channel)
+            throws IOException {
+        final List<String> hosts = new ArrayList<String>();
+        if (scheduler != null) {
+            for (int i = 1; i < mParallelRanges; i++) {
+                final String host = scheduler.tryAcquireHost(url);
+                if (host == null) {
+                    break;
+                }
+                hosts.add(host);
+            }
+        }
+        final int ranges = scheduler != null ? 1 + hosts.size() : mParallelRanges;
+        if (ranges == 1) {
+            copy(response.body, channel, 0, -1, new long[1], 0, null);
+            return;
+        }
+
+        final long total = response.contentLength;
+        final long rangeSize = total / ranges;
+        final long[] written = new long[ranges];
+        final AtomicBoolean failed = new AtomicBoolean();
+        if (debug) {
+            Log.d(TAG, "downloadRanges - " + url + " in " + ranges + " ranges");
+        }
+
+        final List<Future<Void>> futures = new ArrayList<Future<Void>>(ranges - 1);
+        for (int i = 1; i < ranges; i++) {
+            final int range = i;
+            final long start = range * rangeSize;
+            final long end = range == ranges - 1 ? total - 1 : start + rangeSize - 1;
+            final String host = scheduler != null ? hosts.get(range - 1) : null;
+            futures.add(getRangeExecutor().submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    final Fetcher.Request request = new Fetcher.Request(url);
+                    request.rangeStart = start;
+                    request.rangeEnd = end;
+                    request.ifRange = validator;
+                    Fetcher.Response rangeResponse = null;
+                    try {
+                        rangeResponse = fetcher.fetch(request);
+                        if (rangeResponse.code != Fetcher.Response.HTTP_PARTIAL_CONTENT
+                                || rangeResponse.body == null) {
+                            throw new IOException("Range not served, response code "
+                                    + rangeResponse.code);
+                        }
+                        if (rangeResponse.rangeStart != start || rangeResponse.rangeEnd != end
+                                || rangeResponse.rangeTotal != total) {
+                            throw new IOException("Asked for bytes " + start + "-" + end + "/"
+                                    + total + ", got " + rangeResponse.rangeStart + "-"
+                                    + rangeResponse.rangeEnd + "/" + rangeResponse.rangeTotal);
+                        }
+                        copy(rangeResponse.body, channel, start, end - start + 1,
+                                written, range, failed);
+                    } catch (IOException e) {
+                        failed.set(true);
+                        throw e;
+                    } finally {
+                        if (rangeResponse != null) {
+                            rangeResponse.close();
+                        }
+                        if (host != null) {
+                            scheduler.releaseHost(host);
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+
+        IOException error = null;
+        try {
+            copy(response.body, channel, 0, rangeSize, written, 0, failed);
+        } catch (IOException e) {
+            failed.set(true);
+            error = e;
+        }
+        // Wait for every range, nothing may write to the file after it is cut below
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (error == null) {
+                    error = e.getCause() instanceof IOException
+                            ? (IOException) e.getCause() : new IOException(e.toString());
+                }
+            } catch (InterruptedException e) {
+                failed.set(true);
+                if (error == null) {
+                    error = new IOException(e.toString());
+                }
+            }
+        }
+
+        if (error != null) {
+            long complete = 0;
+            for (int i = 0; i < ranges; i++) {
+                complete += written[i];
+                final long size = i == ranges - 1 ? total - i * rangeSize : rangeSize;
+                if (written[i] < size) {
+                    break;
+                }
+            }
+            channel.truncate(complete);
+            throw error;
+        }
+    }
+
+    /**
+     * Copies {@code in} to {@code channel} at {@code position}, counting progress in
+     * {@code written[slot]} as it goes.
+     *
+     * @param count How many bytes to copy, -1 for all
+     * @param failed Stops the copy early once another range failed, may be null
+     */
+    private static void copy(InputStream in, FileChannel channel, long position, long count,
+                             long[] written, int slot, AtomicBoolean failed) throws IOException {
+        final byte[] buffer = ImageWorker.getIoBuffer();
+        final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+        while (count < 0 || written[slot] < count) {
+            if (failed != null && failed.get()) {
+                throw new IOException("Another range failed");
+            }
+            final int length = count < 0
+                    ? buffer.length : (int) Math.min(buffer.length, count - written[slot]);
+            final int read = in.read(buffer, 0, length);
+            if (read == -1) {
+                if (count < 0) {
+                    return;
+                }
+                throw new IOException("Unexpected end of range");
+            }
+            byteBuffer.clear();
+            byteBuffer.limit(read);
+            while (byteBuffer.hasRemaining()) {
+                channel.write(byteBuffer, position + written[slot] + byteBuffer.position());
+            }
+            written[slot] += read;
+        }
+    }
+
+    /**
+     * @param total The length of the whole response, -1 if unknown
+     * @return True if a 206 response is the rest of the response from {@code offset} on
+     */
+    private static boolean isRemainder(Fetcher.Response response, long offset, long total) {
+        if (response.rangeStart != offset) {
+            return false;
+        }
+        if (total >= 0 && response.rangeTotal != total) {
+            return false;
+        }
+        return response.rangeTotal < 0 || response.rangeEnd == response.rangeTotal - 1;
+    }
+
+    /**
+     * @return Value for If-Range, a strong ETag or the Last-Modified date, null if none
+     */
+    private static String getValidator(Fetcher.Response response) {
+        if (response.etag != null && !response.etag.startsWith("W/")) {
+            return response.etag;
+        }
+        if (response.lastModified > 0) {
+            final SimpleDateFormat format =
+                    new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            return format.format(new Date(response.lastModified));
+        }
+        return null;
+    }
+
+    /**
+     * @param total Receives the length of the whole response, -1 if unknown
+     */
+    private static String readValidator(File validatorFile, long[] total) {
+        if (!validatorFile.exists()) {
+            return null;
+        }
+        try {
+            String validator = DiskLruCache.readFully(new InputStreamReader(
+                    new FileInputStream(validatorFile), "UTF-8"));
+            // The length follows on a second line
+            final int newline = validator.lastIndexOf('\n');
+            if (newline != -1) {
+                total[0] = Long.parseLong(validator.substring(newline + 1));
+                validator = validator.substring(0, newline);
+            }
+            return validator.length() == 0 ? null : validator;
+        } catch (IOException e) {
+            return null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static void writeValidator(File validatorFile, String validator, long total)
+            throws IOException {
+        if (validator == null) {
+            validatorFile.delete();
+            return;
+        }
+        final Writer writer = new OutputStreamWriter(
+                new FileOutputStream(validatorFile), "UTF-8");
+        try {
+            writer.write(validator + "\n" + total);
+        } finally {
+            DiskLruCache.closeQuietly(writer);
+        }
+    }
+
+    /**
+     * Deletes partial files older than a day, or all of them.
+     */
+    void trim(boolean all) {
+        final File[] files = mPartialDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        final long oldest = System.currentTimeMillis() - PARTIAL_MAX_AGE;
+        for (File file : files) {
+            if (all || file.lastModified() < oldest) {
+                file.delete();
+            }
+        }
+    }
+
+    private static synchronized ThreadPoolExecutor getRangeExecutor() {
+        if (sRangeExecutor == null) {
+            sRangeExecutor = new ThreadPoolExecutor(MAX_PARALLEL_RANGES, MAX_PARALLEL_RANGES,
+                    30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+            sRangeExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sRangeExecutor;
+    }
+}
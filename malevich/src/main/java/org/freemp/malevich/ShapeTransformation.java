@@ -0,0 +1,149 @@
+package org.freemp.malevich;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.graphics.Shader;
+
+/**
+ * Built in transformations that center crop an image into a shape: a circle, a rectangle with
+ * rounded corners or a square. The source is drawn once through a {@link BitmapShader} whose
+ * matrix scales and crops it, into a bitmap from the {@link BitmapPool}. Paint, Canvas and
+ * Matrix are kept per thread, so the only allocation of a transform is the shader.
+ * <p>
+ * Images are scaled down to the requested size, never up.
+ */
+public class ShapeTransformation implements Transformation {
+
+    private enum Shape {
+        CIRCLE("circle"), OVAL("oval"), ROUNDED("rounded-"), SQUARE("square");
+
+        final String key;
+
+        Shape(String key) {
+            this.key = key;
+        }
+    }
+
+    private static final ShapeTransformation CIRCLE = new ShapeTransformation(Shape.CIRCLE, 0);
+    private static final ShapeTransformation OVAL = new ShapeTransformation(Shape.OVAL, 0);
+    private static final ShapeTransformation SQUARE = new ShapeTransformation(Shape.SQUARE, 0);
+
+    // Drawing objects of a worker thread, reused for every transform on it
+    private static final ThreadLocal<Drawing> sDrawing = new ThreadLocal<Drawing>() {
+        @Override
+        protected Drawing initialValue() {
+            return new Drawing();
+        }
+    };
+
+    private static class Drawing {
+        final Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG | Paint.FILTER_BITMAP_FLAG);
+        final Canvas canvas = new Canvas();
+        final Matrix matrix = new Matrix();
+        final RectF rect = new RectF();
+    }
+
+    private final Shape mShape;
+    private final float mRadius;
+    private final String mKey;
+
+    private ShapeTransformation(Shape shape, float radius) {
+        mShape = shape;
+        mRadius = radius;
+        mKey = shape == Shape.ROUNDED ? shape.key + radius : shape.key;
+    }
+
+    /**
+     * @return A circle of the smaller requested dimension, cropped from the center
+     */
+    public static ShapeTransformation circle() {
+        return CIRCLE;
+    }
+
+    /**
+     * @return An oval filling the requested size, for {@link Malevich.Utils#getCircleBitmap}
+     */
+    static ShapeTransformation oval() {
+        return OVAL;
+    }
+
+    /**
+     * @return A square of the smaller requested dimension, cropped from the center
+     */
+    public static ShapeTransformation centerCropSquare() {
+        return SQUARE;
+    }
+
+    /**
+     * @param radius The corner radius in pixels of the output
+     * @return The requested size, cropped from the center, with rounded corners
+     */
+    public static ShapeTransformation roundedCorners(float radius) {
+        return new ShapeTransformation(Shape.ROUNDED, radius);
+    }
+
+    @Override
+    public String key() {
+        return mKey;
+    }
+
+    @Override
+    public Bitmap transform(BitmapPool pool, Bitmap source, int reqWidth, int reqHeight) {
+        final int sourceWidth = source.getWidth();
+        final int sourceHeight = source.getHeight();
+        int width = reqWidth > 0 ? reqWidth : sourceWidth;
+        int height = reqHeight > 0 ? reqHeight : sourceHeight;
+        if (mShape == Shape.CIRCLE || mShape == Shape.SQUARE) {
+            width = height = Math.min(width, height);
+        }
+
+        // Fill the output, the overflowing part of the source is cropped
+        float scale = Math.max((float) width / sourceWidth, (float) height / sourceHeight);
+        if (scale > 1) {
+            // Don't scale up, make the output smaller instead
+            width = Math.max(1, Math.round(width / scale));
+            height = Math.max(1, Math.round(height / scale));
+            scale = Math.max((float) width / sourceWidth, (float) height / sourceHeight);
+        }
+        if (mShape == Shape.SQUARE && width == sourceWidth && height == sourceHeight) {
+            return source;
+        }
+
+        // A square of an opaque image stays opaque and may keep a smaller config
+        final Bitmap.Config config = mShape == Shape.SQUARE && source.getConfig() != null
+                ? source.getConfig() : Bitmap.Config.ARGB_8888;
+        final Bitmap output = pool != null ? pool.get(width, height, config)
+                : Bitmap.createBitmap(width, height, config);
+
+        final Drawing drawing = sDrawing.get();
+        drawing.matrix.setScale(scale, scale);
+        drawing.matrix.postTranslate((width - sourceWidth * scale) / 2,
+                (height - sourceHeight * scale) / 2);
+        final BitmapShader shader =
+                new BitmapShader(source, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+        shader.setLocalMatrix(drawing.matrix);
+        drawing.paint.setShader(shader);
+        drawing.rect.set(0, 0, width, height);
+        drawing.canvas.setBitmap(output);
+        switch (mShape) {
+            case CIRCLE:
+            case OVAL:
+                drawing.canvas.drawOval(drawing.rect, drawing.paint);
+                break;
+            case ROUNDED:
+                drawing.canvas.drawRoundRect(drawing.rect, mRadius, mRadius, drawing.paint);
+                break;
+            default:
+                drawing.canvas.drawRect(drawing.rect, drawing.paint);
+                break;
+        }
+        // Don't keep the bitmaps alive from the thread
+        drawing.canvas.setBitmap(null);
+        drawing.paint.setShader(null);
+        return output;
+    }
+}
@@ -0,0 +1,71 @@
+package org.freemp.malevich;
+
+import android.content.Context;
+
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Opens local image sources of one uri scheme, for example content or file. Local sources are
+ * decoded directly and never go through the http disk cache. Register own resolvers with
+ * {@link ImageWorker#registerSourceResolver(String, SourceResolver)}, http and https are always
+ * loaded through the http disk cache.
+ */
+public interface SourceResolver {
+
+    /**
+     * @param context The application context
+     * @param uri The uri to open, its scheme is the one this resolver is registered for
+     * @return The opened source, the caller closes it
+     * @throws IOException if the source can't be opened
+     */
+    Source open(Context context, String uri) throws IOException;
+
+    /**
+     * Implemented by resolvers whose sources change in place, like files. The version is part of
+     * the disk cache key, so an image is decoded again when its source changed.
+     */
+    interface Versioned {
+        /**
+         * Called on a worker thread before the disk cache lookup, keep it cheap.
+         *
+         * @return The version of the source, for example its modification time and size, or
+         *         null if it is unknown
+         */
+        String getVersion(Context context, String uri);
+    }
+
+    /**
+     * An opened image source. Either a file descriptor, which is cheapest to decode, or a stream.
+     */
+    class Source implements Closeable {
+        public final FileDescriptor fileDescriptor;
+        public final InputStream inputStream;
+        private final Closeable owner;
+
+        /**
+         * @param fileDescriptor Descriptor positioned at the start of the image
+         * @param owner Closes the descriptor
+         */
+        public Source(FileDescriptor fileDescriptor, Closeable owner) {
+            this.fileDescriptor = fileDescriptor;
+            this.inputStream = null;
+            this.owner = owner;
+        }
+
+        public Source(InputStream inputStream) {
+            this.fileDescriptor = null;
+            this.inputStream = inputStream;
+            this.owner = inputStream;
+        }
+
+        @Override
+        public void close() {
+            try {
+                owner.close();
+            } catch (IOException e) {}
+        }
+    }
+}
@@ -0,0 +1,385 @@
+package org.freemp.malevich;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.graphics.drawable.BitmapDrawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A huge image, for example a panorama or a 50 megapixel photo, decoded in tiles with
+ * {@link BitmapRegionDecoder}. Only the visible region is decoded, at the sample level the
+ * current zoom needs, so full resolution viewing works without loading the whole image.
+ * Get one with {@link ImageWorker#loadTiled(String, int, Listener)}.
+ * <p>
+ * Tiles go to the memory cache under region keys and are decoded in parallel, with one region
+ * decoder per worker because a decoder decodes one region at a time.
+ */
+public class TiledImage {
+    private static final String TAG = "TiledImage";
+
+    // Tile edge in decoded pixels, so a tile is never bigger than 1MB in ARGB_8888
+    private static final int TILE_SIZE = 512;
+    private static final int MAX_DECODERS =
+            Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), 4));
+
+    // Newest requests first, the visible region changes faster than tiles decode
+    private static ThreadPoolExecutor sTileExecutor;
+
+    /**
+     * Callbacks on the UI thread.
+     */
+    public interface Listener {
+        /**
+         * The image is opened and its size and preview are known.
+         *
+         * @param error Empty on success, the description of the failure otherwise
+         */
+        void onReady(TiledImage image, String error);
+
+        /**
+         * A tile of the region last passed to {@link #getTiles(Rect, float)} is decoded, get the
+         * tiles again and redraw.
+         */
+        void onTileLoaded(TiledImage image);
+    }
+
+    /**
+     * A decoded part of the image.
+     */
+    public static class Tile {
+        /** The part of the image in full resolution pixels. */
+        public final Rect region;
+        /** The sample level, the bitmap is region scaled down by it. */
+        public final int sample;
+        public final Bitmap bitmap;
+
+        Tile(Rect region, int sample, Bitmap bitmap) {
+            this.region = region;
+            this.sample = sample;
+            this.bitmap = bitmap;
+        }
+    }
+
+    private final ImageWorker mImageWorker;
+    private final String mData;
+    private final int mPreviewSize;
+    private final Listener mListener;
+    private final Resources mResources;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final boolean debug;
+
+    private volatile boolean mRecycled;
+    private int mWidth;
+    private int mHeight;
+    private Bitmap mPreview;
+
+    // Idle decoders and how many exist, guarded by mIdleDecoders
+    private final ArrayDeque<BitmapRegionDecoder> mIdleDecoders =
+            new ArrayDeque<BitmapRegionDecoder>();
+    private int mDecoderCount;
+
+    // Keys of the tiles last asked for, replaced on every getTiles() and read by the workers
+    private volatile Set<String> mWantedTiles = Collections.emptySet();
+    // Only touched from the UI thread
+    private final HashSet<String> mPendingTiles = new HashSet<String>();
+    private final HashMap<String, Bitmap> mVisibleTiles = new HashMap<String, Bitmap>();
+
+    TiledImage(ImageWorker imageWorker, Resources resources, String data, int previewSize,
+               Listener listener, boolean debug) {
+        mImageWorker = imageWorker;
+        mResources = resources;
+        mData = data;
+        mPreviewSize = previewSize;
+        mListener = listener;
+        this.debug = debug;
+    }
+
+    /**
+     * Opens the image and decodes the preview on {@code executor}.
+     */
+    void open(Executor executor) {
+        new AsyncTask<Void, Void, String>() {
+            @Override
+            protected String doInBackground(Void... params) {
+                final StringBuffer error = new StringBuffer();
+                final BitmapRegionDecoder decoder = newDecoder(error);
+                if (decoder == null) {
+                    return error.length() == 0 ? "Can't open " + mData : error.toString();
+                }
+                mWidth = decoder.getWidth();
+                mHeight = decoder.getHeight();
+                int sample = 1;
+                while (Math.max(mWidth, mHeight) / sample > mPreviewSize) {
+                    sample *= 2;
+                }
+                final BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inSampleSize = sample;
+                mPreview = decoder.decodeRegion(new Rect(0, 0, mWidth, mHeight), options);
+                // The first decoder serves tiles afterwards
+                synchronized (mIdleDecoders) {
+                    mDecoderCount++;
+                }
+                releaseDecoder(decoder);
+                return "";
+            }
+
+            @Override
+            protected void onPostExecute(String error) {
+                if (!mRecycled) {
+                    mListener.onReady(TiledImage.this, error);
+                }
+            }
+        }.executeOnExecutor(executor);
+    }
+
+    /**
+     * @return The full resolution width, 0 before {@link Listener#onReady(TiledImage, String)}
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * @return The full resolution height, 0 before {@link Listener#onReady(TiledImage, String)}
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return The whole image scaled down to about the preview size, draw it below the tiles
+     *         so missing tiles show a blurred version instead of a hole
+     */
+    public Bitmap getPreview() {
+        return mPreview;
+    }
+
+    /**
+     * Returns the decoded tiles covering {@code visible} and starts decoding the missing ones.
+     * Tiles of earlier calls that are not decoded yet are dropped. Call from the UI thread.
+     *
+     * @param visible The visible region in full resolution pixels
+     * @param scale Screen pixels per full resolution pixel
+     * @return The tiles available now
+     */
+    public List<Tile> getTiles(Rect visible, float scale) {
+        final List<Tile> tiles = new ArrayList<Tile>();
+        if (mRecycled || mWidth == 0) {
+            return tiles;
+        }
+        int sample = 1;
+        while (sample * 2 <= 1 / scale) {
+            sample *= 2;
+        }
+        final int tileSize = TILE_SIZE * sample;
+        final int left = Math.max(0, visible.left) / tileSize;
+        final int top = Math.max(0, visible.top) / tileSize;
+        final int right = (Math.min(mWidth, visible.right) - 1) / tileSize;
+        final int bottom = (Math.min(mHeight, visible.bottom) - 1) / tileSize;
+
+        final HashSet<String> wanted = new HashSet<String>();
+        final ImageCache imageCache = mImageWorker.getImageCache();
+        for (int row = top; row <= bottom; row++) {
+            for (int col = left; col <= right; col++) {
+                final String key = getTileKey(sample, col, row);
+                final Rect region = new Rect(col * tileSize, row * tileSize,
+                        Math.min(mWidth, (col + 1) * tileSize),
+                        Math.min(mHeight, (row + 1) * tileSize));
+                wanted.add(key);
+                Bitmap bitmap = mVisibleTiles.get(key);
+                if (bitmap == null && imageCache != null) {
+                    final BitmapDrawable value = imageCache.getBitmapFromMemCache(key);
+                    if (value != null) {
+                        bitmap = value.getBitmap();
+                        mVisibleTiles.put(key, bitmap);
+                    }
+                }
+                if (bitmap != null) {
+                    tiles.add(new Tile(region, sample, bitmap));
+                } else if (mPendingTiles.add(key)) {
+                    getTileExecutor().execute(new TileTask(key, region, sample));
+                }
+            }
+        }
+        // Tiles that went off screen stay only in the memory cache
+        mVisibleTiles.keySet().retainAll(wanted);
+        mWantedTiles = wanted;
+        return tiles;
+    }
+
+    /**
+     * Releases the decoders. Tiles stay in the memory cache for the next time.
+     */
+    public void recycle() {
+        mRecycled = true;
+        mWantedTiles = Collections.emptySet();
+        mVisibleTiles.clear();
+        synchronized (mIdleDecoders) {
+            for (BitmapRegionDecoder decoder : mIdleDecoders) {
+                decoder.recycle();
+            }
+            mDecoderCount -= mIdleDecoders.size();
+            mIdleDecoders.clear();
+            mIdleDecoders.notifyAll();
+        }
+    }
+
+    private String getTileKey(int sample, int col, int row) {
+        return mData + "#tile" + sample + "#" + col + "#" + row;
+    }
+
+    /**
+     * Opens one more region decoder. The data is copied into the decoder, so the source is
+     * closed right away and every decoder is independent of the others.
+     */
+    private BitmapRegionDecoder newDecoder(StringBuffer error) {
+        SourceResolver.Source source = null;
+        try {
+            source = mImageWorker.openSource(mData, null, error);
+            if (source == null) {
+                return null;
+            }
+            if (source.fileDescriptor != null) {
+                return BitmapRegionDecoder.newInstance(source.fileDescriptor, false);
+            }
+            return BitmapRegionDecoder.newInstance(source.inputStream, false);
+        } catch (IOException e) {
+            Log.e(TAG, "newDecoder - " + e);
+            error.append(e.toString());
+            return null;
+        } finally {
+            if (source != null) {
+                source.close();
+            }
+        }
+    }
+
+    /**
+     * @return An idle decoder or a new one while there are less than the maximum, waits for one
+     *         otherwise. null if the image is recycled or can't be opened.
+     */
+    private BitmapRegionDecoder acquireDecoder() {
+        synchronized (mIdleDecoders) {
+            while (!mRecycled) {
+                if (!mIdleDecoders.isEmpty()) {
+                    return mIdleDecoders.poll();
+                }
+                if (mDecoderCount < MAX_DECODERS) {
+                    mDecoderCount++;
+                    break;
+                }
+                try {
+                    mIdleDecoders.wait();
+                } catch (InterruptedException e) {
+                    return null;
+                }
+            }
+            if (mRecycled) {
+                return null;
+            }
+        }
+        final BitmapRegionDecoder decoder = newDecoder(new StringBuffer());
+        if (decoder == null) {
+            synchronized (mIdleDecoders) {
+                mDecoderCount--;
+                mIdleDecoders.notifyAll();
+            }
+        }
+        return decoder;
+    }
+
+    private void releaseDecoder(BitmapRegionDecoder decoder) {
+        synchronized (mIdleDecoders) {
+            if (mRecycled) {
+                mDecoderCount--;
+                decoder.recycle();
+            } else {
+                mIdleDecoders.add(decoder);
+            }
+            mIdleDecoders.notifyAll();
+        }
+    }
+
+    private static synchronized ThreadPoolExecutor getTileExecutor() {
+        if (sTileExecutor == null) {
+            sTileExecutor = new ThreadPoolExecutor(MAX_DECODERS, MAX_DECODERS,
+                    30, TimeUnit.SECONDS, new LinkedBlockingDeque<Runnable>() {
+                        @Override
+                        public boolean offer(Runnable runnable) {
+                            return offerFirst(runnable);
+                        }
+                    });
+            sTileExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sTileExecutor;
+    }
+
+    /**
+     * Decodes one tile, unless it went off screen while it was waiting.
+     */
+    private class TileTask implements Runnable {
+        private final String mKey;
+        private final Rect mRegion;
+        private final int mSample;
+
+        TileTask(String key, Rect region, int sample) {
+            mKey = key;
+            mRegion = region;
+            mSample = sample;
+        }
+
+        @Override
+        public void run() {
+            Bitmap bitmap = null;
+            if (mWantedTiles.contains(mKey)) {
+                final BitmapRegionDecoder decoder = acquireDecoder();
+                if (decoder != null) {
+                    final BitmapFactory.Options options = new BitmapFactory.Options();
+                    options.inSampleSize = mSample;
+                    try {
+                        bitmap = decoder.decodeRegion(mRegion, options);
+                    } finally {
+                        releaseDecoder(decoder);
+                    }
+                }
+            } else if (debug) {
+                Log.d(TAG, "skipping tile off screen - " + mKey);
+            }
+            if (bitmap != null) {
+                final ImageCache imageCache = mImageWorker.getImageCache();
+                if (imageCache != null) {
+                    imageCache.addBitmapToMemoryCache(mKey, new BitmapDrawable(mResources, bitmap));
+                }
+            }
+            final Bitmap result = bitmap;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mPendingTiles.remove(mKey);
+                    if (result != null && !mRecycled && mWantedTiles.contains(mKey)) {
+                        mVisibleTiles.put(mKey, result);
+                        mListener.onTileLoaded(TiledImage.this);
+                    }
+                }
+            });
+        }
+    }
+}
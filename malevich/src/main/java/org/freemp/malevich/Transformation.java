@@ -0,0 +1,31 @@
+package org.freemp.malevich;
+
+import android.graphics.Bitmap;
+
+/**
+ * One step of the processing of a decoded image, like cropping or rounding corners. Loads apply
+ * their transformations in order, and the keys of the chain are part of the memory and disk cache
+ * keys, so differently transformed bitmaps of one image never mix up. The untransformed decode is
+ * kept in the memory cache, other chains on the same image start from it without decoding again.
+ */
+public interface Transformation {
+
+    /**
+     * @return A key that is the same for every instance that transforms the same way, including
+     *         its parameters, like "round-8dp". Never an identity hash.
+     */
+    String key();
+
+    /**
+     * Transforms a bitmap on a background thread.
+     *
+     * @param pool Draw into a bitmap from {@link BitmapPool#get(int, int, Bitmap.Config)} instead
+     *             of allocating one. May be null if there is no pool.
+     * @param source The input, it may be cached or used by other chains, so never change or
+     *               recycle it
+     * @param reqWidth The requested width of the load
+     * @param reqHeight The requested height of the load
+     * @return The output, or {@code source} if there is nothing to do
+     */
+    Bitmap transform(BitmapPool pool, Bitmap source, int reqWidth, int reqHeight);
+}
@@ -0,0 +1,258 @@
+package org.freemp.malevich;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ConcurrentLruCacheTest {
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        final RecordingCache cache = new RecordingCache(3, false);
+        cache.put("a", "A");
+        cache.put("b", "B");
+        cache.put("c", "C");
+        assertEquals("A", cache.get("a"));
+        cache.put("d", "D");
+
+        assertNull(cache.get("b"));
+        assertEquals(Arrays.asList("c", "a", "d"),
+                new ArrayList<String>(cache.snapshot().keySet()));
+        assertEquals(Arrays.asList("evicted b=B"), cache.removed);
+        assertEquals(1, cache.evictionCount());
+        assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void replaceAndRemoveNotifyWithoutEviction() {
+        final RecordingCache cache = new RecordingCache(3, false);
+        cache.put("a", "A");
+        assertEquals("A", cache.put("a", "A2"));
+        assertEquals("A2", cache.remove("a"));
+        assertNull(cache.remove("a"));
+
+        assertEquals(Arrays.asList("removed a=A for A2", "removed a=A2"), cache.removed);
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.evictionCount());
+    }
+
+    @Test
+    public void sizeOfCountsTowardsMaxSize() {
+        final RecordingCache cache = new RecordingCache(10, false) {
+            @Override
+            protected int sizeOf(String key, String value) {
+                return value.length();
+            }
+        };
+        cache.put("a", "aaaa");
+        cache.put("b", "bbbb");
+        cache.put("c", "cccc");
+
+        assertEquals(8, cache.size());
+        assertNull(cache.get("a"));
+        cache.put("b", "b");
+        assertEquals(5, cache.size());
+        cache.trimToSize(-1);
+        assertEquals(0, cache.size());
+        assertTrue(cache.snapshot().isEmpty());
+    }
+
+    @Test
+    public void countsHitsMissesAndCreates() {
+        final ConcurrentLruCache<String, String> cache =
+                new ConcurrentLruCache<String, String>(10) {
+                    @Override
+                    protected String create(String key) {
+                        return key.startsWith("new") ? key.toUpperCase() : null;
+                    }
+                };
+        cache.put("a", "A");
+        cache.get("a");
+        cache.get("a");
+        assertNull(cache.get("missing"));
+        assertEquals("NEW", cache.get("new"));
+        assertEquals("NEW", cache.get("new"));
+
+        assertEquals(3, cache.hitCount());
+        assertEquals(2, cache.missCount());
+        assertEquals(1, cache.createCount());
+        assertEquals(1, cache.putCount());
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void evictAllNotifiesEveryEntry() {
+        final RecordingCache cache = new RecordingCache(10, true);
+        for (int i = 0; i < 5; i++) {
+            cache.put("k" + i, "v" + i);
+        }
+        cache.evictAll();
+
+        assertEquals(0, cache.size());
+        assertEquals(5, cache.removed.size());
+    }
+
+    @Test
+    public void resizeTrims() {
+        final RecordingCache cache = new RecordingCache(10, false);
+        for (int i = 0; i < 10; i++) {
+            cache.put("k" + i, "v" + i);
+        }
+        cache.resize(4);
+
+        assertEquals(4, cache.size());
+        assertEquals(4, cache.maxSize());
+        assertNotNull(cache.get("k9"));
+        assertNull(cache.get("k0"));
+    }
+
+    @Test
+    public void rejectsNull() {
+        final RecordingCache cache = new RecordingCache(10, false);
+        try {
+            cache.put("a", null);
+            fail();
+        } catch (NullPointerException expected) {
+        }
+        try {
+            cache.get(null);
+            fail();
+        } catch (NullPointerException expected) {
+        }
+    }
+
+    @Test
+    public void lruLosesHotEntriesToAScan() {
+        assertEquals(0, hotEntriesAfterScan(false));
+    }
+
+    @Test
+    public void tinyLfuKeepsHotEntriesDuringAScan() {
+        assertEquals(10, hotEntriesAfterScan(true));
+    }
+
+    /**
+     * Uses ten entries often, then adds many entries that are used once.
+     *
+     * @return How many of the ten are still cached
+     */
+    private static int hotEntriesAfterScan(boolean tinyLfu) {
+        final RecordingCache cache = new RecordingCache(100, tinyLfu);
+        for (int i = 0; i < 100; i++) {
+            cache.put("hot" + i, "value");
+        }
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 10; i++) {
+                cache.get("hot" + i);
+            }
+            // Writers replay the recorded reads
+            cache.trimToSize(cache.maxSize());
+        }
+        for (int i = 0; i < 1000; i++) {
+            cache.put("cold" + i, "value");
+        }
+
+        int hot = 0;
+        final Map<String, String> snapshot = cache.snapshot();
+        for (int i = 0; i < 10; i++) {
+            if (snapshot.containsKey("hot" + i)) {
+                hot++;
+            }
+        }
+        assertTrue(cache.size() <= 100);
+        return hot;
+    }
+
+    @Test
+    public void staysConsistentUnderConcurrentUse() throws InterruptedException {
+        for (final boolean tinyLfu : new boolean[]{false, true}) {
+            final AtomicInteger removedSize = new AtomicInteger();
+            final AtomicInteger addedSize = new AtomicInteger();
+            final ConcurrentLruCache<Integer, Integer> cache =
+                    new ConcurrentLruCache<Integer, Integer>(500, tinyLfu) {
+                        @Override
+                        protected int sizeOf(Integer key, Integer value) {
+                            return 1 + value % 5;
+                        }
+
+                        @Override
+                        protected void entryRemoved(boolean evicted, Integer key,
+                                                    Integer oldValue, Integer newValue) {
+                            removedSize.addAndGet(sizeOf(key, oldValue));
+                        }
+                    };
+            final List<Thread> threads = new ArrayList<Thread>();
+            final List<Throwable> errors = new ArrayList<Throwable>();
+            for (int t = 0; t < 4; t++) {
+                final Random random = new Random(t);
+                threads.add(new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int i = 0; i < 20000; i++) {
+                                final int key = random.nextInt(1000);
+                                if (random.nextInt(4) == 0) {
+                                    final int value = random.nextInt(100);
+                                    addedSize.addAndGet(1 + value % 5);
+                                    cache.put(key, value);
+                                } else if (random.nextInt(50) == 0) {
+                                    cache.remove(key);
+                                } else {
+                                    cache.get(key);
+                                }
+                            }
+                        } catch (Throwable e) {
+                            synchronized (errors) {
+                                errors.add(e);
+                            }
+                        }
+                    }
+                }));
+            }
+            for (Thread thread : threads) {
+                thread.start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            assertTrue(errors.toString(), errors.isEmpty());
+            int size = 0;
+            for (Map.Entry<Integer, Integer> entry : cache.snapshot().entrySet()) {
+                size += 1 + entry.getValue() % 5;
+            }
+            assertEquals(size, cache.size());
+            assertTrue(cache.size() <= 500);
+            // Every value that was put is either cached or was passed to entryRemoved
+            assertEquals(addedSize.get(), size + removedSize.get());
+        }
+    }
+
+    private static class RecordingCache extends ConcurrentLruCache<String, String> {
+        final List<String> removed = new ArrayList<String>();
+
+        RecordingCache(int maxSize, boolean tinyLfu) {
+            super(maxSize, tinyLfu);
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, String key, String oldValue,
+                                    String newValue) {
+            synchronized (removed) {
+                removed.add((evicted ? "evicted " : "removed ") + key + "=" + oldValue
+                        + (newValue != null ? " for " + newValue : ""));
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package org.freemp.malevich;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DiskLruCacheTest {
+
+    // Entries of 100 bytes, 100 of them fit
+    private static final int ENTRY_SIZE = 100;
+    private static final long MAX_SIZE = 100 * ENTRY_SIZE;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void lruLosesHotEntriesToAScan() throws IOException {
+        assertEquals(0, hotEntriesAfterScan(false, false));
+    }
+
+    @Test
+    public void tinyLfuKeepsHotEntriesDuringAScan() throws IOException {
+        assertEquals(10, hotEntriesAfterScan(true, false));
+    }
+
+    @Test
+    public void tinyLfuKeepsHotEntriesAfterReopening() throws IOException {
+        assertEquals(10, hotEntriesAfterScan(true, true));
+    }
+
+    @Test
+    public void uncountedReadsDoNotAdmit() throws IOException {
+        final DiskLruCache cache = DiskLruCache.open(mFolder.newFolder(), 1, 1, MAX_SIZE, true);
+        try {
+            for (int i = 0; i < 100; i++) {
+                put(cache, "old" + i);
+            }
+            // Probing before each write, like the image cache does, is not a use of the key
+            for (int i = 0; i < 200; i++) {
+                assertFalse(contains(cache, "new" + i));
+                put(cache, "new" + i);
+                assertTrue(contains(cache, "new" + i));
+                cache.flush();
+            }
+
+            int old = 0;
+            for (int i = 0; i < 100; i++) {
+                if (contains(cache, "old" + i)) {
+                    old++;
+                }
+            }
+            // New entries with as few uses as the old ones are not admitted
+            assertTrue("old " + old, old > 80);
+            assertTrue(cache.size() <= MAX_SIZE);
+        } finally {
+            cache.close();
+        }
+    }
+
+    /**
+     * Reads ten entries now and then, and adds many entries in between that are each read once
+     * before they are written, like images loaded during a long scroll.
+     *
+     * @return How many of the ten are still cached
+     */
+    private int hotEntriesAfterScan(boolean tinyLfu, boolean reopen) throws IOException {
+        final File directory = mFolder.newFolder();
+        DiskLruCache cache = DiskLruCache.open(directory, 1, 1, MAX_SIZE, tinyLfu);
+        for (int i = 0; i < 100; i++) {
+            put(cache, "hot" + i);
+        }
+        readHotEntries(cache, 10);
+        if (reopen) {
+            cache.close();
+            cache = DiskLruCache.open(directory, 1, 1, MAX_SIZE, tinyLfu);
+            // The counts are gone, read the hot entries again
+            readHotEntries(cache, 10);
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertNull(cache.get("cold" + i));
+            put(cache, "cold" + i);
+            cache.flush();
+            assertTrue(cache.size() <= MAX_SIZE);
+            // More than a cache full of cold entries comes between two reads
+            if (i % 200 == 199) {
+                readHotEntries(cache, 1);
+            }
+        }
+
+        int hot = 0;
+        for (int i = 0; i < 10; i++) {
+            if (contains(cache, "hot" + i)) {
+                hot++;
+            }
+        }
+        cache.close();
+        return hot;
+    }
+
+    private static void readHotEntries(DiskLruCache cache, int rounds) throws IOException {
+        for (int round = 0; round < rounds; round++) {
+            for (int i = 0; i < 10; i++) {
+                final DiskLruCache.Snapshot snapshot = cache.get("hot" + i);
+                if (snapshot != null) {
+                    snapshot.close();
+                }
+            }
+        }
+    }
+
+    private static boolean contains(DiskLruCache cache, String key) throws IOException {
+        final DiskLruCache.Snapshot snapshot = cache.getUncounted(key);
+        if (snapshot == null) {
+            return false;
+        }
+        snapshot.close();
+        return true;
+    }
+
+    private static void put(DiskLruCache cache, String key) throws IOException {
+        final DiskLruCache.Editor editor = cache.edit(key);
+        editor.set(0, new String(new char[ENTRY_SIZE]).replace('\0', 'x'));
+        editor.commit();
+    }
+}
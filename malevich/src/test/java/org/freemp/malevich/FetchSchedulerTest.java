@@ -0,0 +1,141 @@
+package org.freemp.malevich;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FetchSchedulerTest {
+
+    private static final String SLOW = "http://slow.example.com/image";
+    private static final String FAST = "http://fast.example.com/image";
+
+    @Test
+    public void hostOf() {
+        assertEquals("example.com:8080", FetchScheduler.hostOf("http://example.com:8080/a?b"));
+        assertEquals("example.com", FetchScheduler.hostOf("https://example.com#a"));
+        assertEquals("", FetchScheduler.hostOf("/sdcard/image.jpg"));
+        assertEquals("", FetchScheduler.hostOf(null));
+    }
+
+    @Test
+    public void higherLaneStartsFirst() throws InterruptedException {
+        final FetchScheduler scheduler = new FetchScheduler(1, 1);
+        final CountDownLatch blocker = new CountDownLatch(1);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(4);
+        scheduler.newJob(FAST, FetchScheduler.PRIORITY_LOW).execute(new Runnable() {
+            @Override
+            public void run() {
+                await(blocker);
+                done.countDown();
+            }
+        });
+        submit(scheduler, FAST, FetchScheduler.PRIORITY_LOW, "low", order, done);
+        submit(scheduler, FAST, FetchScheduler.PRIORITY_NORMAL, "normal", order, done);
+        submit(scheduler, FAST, FetchScheduler.PRIORITY_HIGH, "high", order, done);
+        blocker.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(order.toString(), "[high, normal, low]", order.toString());
+    }
+
+    @Test
+    public void slowHostBoundsThreads() throws InterruptedException {
+        final int maxConcurrent = 3;
+        final int maxPerHost = 2;
+        final int jobs = 50;
+        final FetchScheduler scheduler = new FetchScheduler(maxConcurrent, maxPerHost);
+        final Semaphore downloads = new Semaphore(0);
+        final AtomicInteger downloading = new AtomicInteger();
+        final AtomicInteger maxDownloading = new AtomicInteger();
+        final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+        final CountDownLatch done = new CountDownLatch(jobs);
+        for (int i = 0; i < jobs; i++) {
+            scheduler.newJob(SLOW, FetchScheduler.PRIORITY_NORMAL).execute(new Runnable() {
+                @Override
+                public void run() {
+                    threads.add(Thread.currentThread());
+                    try {
+                        final String host = scheduler.acquireHost(SLOW);
+                        try {
+                            final int now = downloading.incrementAndGet();
+                            synchronized (maxDownloading) {
+                                maxDownloading.set(Math.max(maxDownloading.get(), now));
+                            }
+                            downloads.acquire();
+                            downloading.decrementAndGet();
+                        } finally {
+                            scheduler.releaseHost(host);
+                        }
+                    } catch (InterruptedException e) {
+                        throw new AssertionError(e);
+                    }
+                    done.countDown();
+                }
+            });
+        }
+
+        // The slow host doesn't hold back work for other hosts
+        final CountDownLatch fast = new CountDownLatch(1);
+        scheduler.newJob(FAST, FetchScheduler.PRIORITY_NORMAL).execute(new Runnable() {
+            @Override
+            public void run() {
+                threads.add(Thread.currentThread());
+                fast.countDown();
+            }
+        });
+        assertTrue(fast.await(5, TimeUnit.SECONDS));
+
+        for (int i = 0; i < jobs; i++) {
+            downloads.release();
+            Thread.sleep(i % 10 == 0 ? 5 : 0);
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertTrue("downloading " + maxDownloading, maxDownloading.get() <= maxPerHost);
+        assertTrue("threads " + threads.size(), threads.size() <= 2 * maxConcurrent);
+    }
+
+    @Test
+    public void tryAcquireHostDoesNotWait() throws InterruptedException {
+        final FetchScheduler scheduler = new FetchScheduler(2, 1);
+        final String host = scheduler.acquireHost(SLOW);
+        assertNull(scheduler.tryAcquireHost(SLOW));
+        final String other = scheduler.tryAcquireHost(FAST);
+        assertEquals("fast.example.com", other);
+        scheduler.releaseHost(other);
+        scheduler.releaseHost(host);
+        assertEquals("slow.example.com", scheduler.tryAcquireHost(SLOW));
+    }
+
+    private static void submit(FetchScheduler scheduler, String url, int priority,
+                               final String name, final List<String> order,
+                               final CountDownLatch done) {
+        scheduler.newJob(url, priority).execute(new Runnable() {
+            @Override
+            public void run() {
+                order.add(name);
+                done.countDown();
+            }
+        });
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
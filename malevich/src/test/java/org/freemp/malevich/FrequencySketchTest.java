@@ -0,0 +1,75 @@
+package org.freemp.malevich;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FrequencySketchTest {
+
+    @Test
+    public void countsUpToFifteen() {
+        final FrequencySketch sketch = new FrequencySketch();
+        assertEquals(0, sketch.frequency("key"));
+        for (int i = 1; i <= 20; i++) {
+            sketch.increment("key");
+            assertEquals(Math.min(i, 15), sketch.frequency("key"));
+        }
+    }
+
+    @Test
+    public void neverUnderestimates() {
+        final FrequencySketch sketch = new FrequencySketch();
+        sketch.ensureCapacity(1000);
+        for (int i = 0; i < 1000; i++) {
+            for (int n = 0; n < i % 4; n++) {
+                sketch.increment(i);
+            }
+        }
+        int exact = 0;
+        for (int i = 0; i < 1000; i++) {
+            final int frequency = sketch.frequency(i);
+            assertTrue(frequency >= i % 4);
+            if (frequency == i % 4) {
+                exact++;
+            }
+        }
+        // Four counters per key keep collisions rare
+        assertTrue("exact " + exact, exact > 900);
+    }
+
+    @Test
+    public void halvesCountsAfterTheSample() {
+        final FrequencySketch sketch = new FrequencySketch();
+        for (int i = 0; i < 15; i++) {
+            sketch.increment("hot");
+        }
+        // The sample of the smallest sketch is 640 counted uses
+        int others = 0;
+        while (sketch.frequency("hot") == 15 && others < 10000) {
+            sketch.increment(others++);
+        }
+
+        assertEquals(7, sketch.frequency("hot"));
+        assertTrue("reset after " + others, others <= 640 - 15);
+    }
+
+    @Test
+    public void growingKeepsCounts() {
+        final FrequencySketch sketch = new FrequencySketch();
+        for (int i = 0; i < 64; i++) {
+            for (int n = 0; n < i % 4; n++) {
+                sketch.increment(i);
+            }
+        }
+        final int[] before = new int[64];
+        for (int i = 0; i < 64; i++) {
+            before[i] = sketch.frequency(i);
+        }
+
+        sketch.ensureCapacity(100000);
+        for (int i = 0; i < 64; i++) {
+            assertEquals(before[i], sketch.frequency(i));
+        }
+    }
+}
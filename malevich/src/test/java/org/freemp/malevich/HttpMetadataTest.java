@@ -0,0 +1,116 @@
+package org.freemp.malevich;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HttpMetadataTest {
+
+    private static final long NOW = 1430000000000L;
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+
+    @Test
+    public void maxAge() {
+        final ImageWorker.HttpMetadata metadata = fromResponse("public, max-age=60", 0, "\"v1\"",
+                0);
+
+        assertEquals(NOW + 60 * 1000, metadata.expires);
+        assertFalse(metadata.isStale(NOW + 59 * 1000));
+        assertTrue(metadata.isStale(NOW + 60 * 1000));
+    }
+
+    @Test
+    public void maxAgeWinsOverExpires() {
+        final ImageWorker.HttpMetadata metadata =
+                fromResponse("max-age=60", NOW + DAY, "\"v1\"", 0);
+        assertEquals(NOW + 60 * 1000, metadata.expires);
+    }
+
+    @Test
+    public void noCacheIsStaleAtOnce() {
+        assertTrue(fromResponse("no-cache", 0, "\"v1\"", 0).isStale(NOW));
+        assertTrue(fromResponse("private, no-store", 0, "\"v1\"", 0).isStale(NOW));
+    }
+
+    @Test
+    public void expires() {
+        final ImageWorker.HttpMetadata metadata = fromResponse(null, NOW + DAY, "\"v1\"", 0);
+        assertEquals(NOW + DAY, metadata.expires);
+    }
+
+    @Test
+    public void heuristicFreshnessFromLastModified() {
+        // Fresh for a tenth of the time since the last change
+        final ImageWorker.HttpMetadata metadata = fromResponse(null, 0, null, NOW - 10 * DAY);
+        assertEquals(NOW + DAY, metadata.expires);
+        assertFalse(metadata.isStale(NOW + DAY - 1));
+        assertTrue(metadata.isStale(NOW + DAY));
+    }
+
+    @Test
+    public void withoutValidatorsNeverStale() {
+        final ImageWorker.HttpMetadata metadata = fromResponse("max-age=0", 0, null, 0);
+        assertFalse(metadata.isStale(NOW + DAY));
+
+        // Nothing known about freshness, the entry is kept as it is
+        final ImageWorker.HttpMetadata unknown = fromResponse(null, 0, "\"v1\"", 0);
+        assertEquals(Long.MAX_VALUE, unknown.expires);
+        assertFalse(unknown.isStale(NOW + 1000 * DAY));
+    }
+
+    @Test
+    public void invalidAndHugeMaxAge() {
+        assertEquals(Long.MAX_VALUE, fromResponse("max-age=abc", 0, "\"v1\"", 0).expires);
+        assertEquals(Long.MAX_VALUE,
+                fromResponse("max-age=" + Long.MAX_VALUE, 0, "\"v1\"", 0).expires);
+    }
+
+    @Test
+    public void revalidationKeepsValidators() {
+        final ImageWorker.HttpMetadata cached =
+                new ImageWorker.HttpMetadata("\"v1\"", NOW - DAY, NOW);
+        final Fetcher.Response notModified =
+                new Fetcher.Response(Fetcher.Response.HTTP_NOT_MODIFIED, null);
+        notModified.cacheControl = "max-age=600";
+
+        final ImageWorker.HttpMetadata metadata =
+                ImageWorker.HttpMetadata.fromResponse(notModified, NOW, cached);
+        assertEquals("\"v1\"", metadata.etag);
+        assertEquals(NOW - DAY, metadata.lastModified);
+        assertEquals(NOW + 600 * 1000, metadata.expires);
+    }
+
+    @Test
+    public void roundTrip() {
+        final ImageWorker.HttpMetadata metadata =
+                ImageWorker.HttpMetadata.parse(
+                        new ImageWorker.HttpMetadata("\"v1\"", NOW - DAY, NOW).toString());
+        assertEquals("\"v1\"", metadata.etag);
+        assertEquals(NOW - DAY, metadata.lastModified);
+        assertEquals(NOW, metadata.expires);
+
+        final ImageWorker.HttpMetadata noEtag = ImageWorker.HttpMetadata.parse(
+                new ImageWorker.HttpMetadata(null, NOW - DAY, NOW).toString());
+        assertNull(noEtag.etag);
+    }
+
+    @Test
+    public void unknownMetadataIsNeverRevalidated() {
+        final ImageWorker.HttpMetadata metadata = ImageWorker.HttpMetadata.parse("garbage");
+        assertNull(metadata.etag);
+        assertFalse(metadata.isStale(NOW));
+    }
+
+    private static ImageWorker.HttpMetadata fromResponse(String cacheControl, long expires,
+                                                         String etag, long lastModified) {
+        final Fetcher.Response response = new Fetcher.Response(Fetcher.Response.HTTP_OK, null);
+        response.cacheControl = cacheControl;
+        response.expires = expires;
+        response.etag = etag;
+        response.lastModified = lastModified;
+        return ImageWorker.HttpMetadata.fromResponse(response, NOW, null);
+    }
+}
@@ -0,0 +1,166 @@
+package org.freemp.malevich;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HttpUrlFetcherTest {
+
+    private LoopbackServer mServer;
+    private final HttpUrlFetcher mFetcher = new HttpUrlFetcher();
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new LoopbackServer();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.close();
+    }
+
+    @Test
+    public void fetchReadsBodyAndHeaders() throws Exception {
+        final byte[] body = bytes(1000);
+        mServer.enqueue(new LoopbackServer.Response(200, body)
+                .header("Content-Type", "image/png")
+                .header("ETag", "\"v1\"")
+                .header("Cache-Control", "max-age=60")
+                .header("Accept-Ranges", "bytes")
+                .header("Last-Modified", "Sun, 06 Nov 1994 08:49:37 GMT"));
+
+        final Fetcher.Response response = mFetcher.fetch(
+                new Fetcher.Request(mServer.url("/image.png")));
+        try {
+            assertEquals(Fetcher.Response.HTTP_OK, response.code);
+            assertEquals(1000, response.contentLength);
+            assertEquals("image/png", response.contentType);
+            assertEquals("\"v1\"", response.etag);
+            assertEquals("max-age=60", response.cacheControl);
+            assertEquals(784111777000L, response.lastModified);
+            assertTrue(response.acceptRanges);
+            assertArrayEquals(body, readFully(response.body));
+        } finally {
+            response.close();
+        }
+
+        final LoopbackServer.Request request = mServer.takeRequest();
+        assertEquals("GET", request.method);
+        assertEquals("/image.png", request.path);
+        assertNull(request.header("Range"));
+    }
+
+    @Test
+    public void conditionalFetchSendsValidators() throws Exception {
+        mServer.enqueue(new LoopbackServer.Response(304, null).header("ETag", "\"v1\""));
+
+        final Fetcher.Request request = new Fetcher.Request(mServer.url("/image.png"));
+        request.etag = "\"v1\"";
+        request.ifModifiedSince = 784111777000L;
+        final Fetcher.Response response = mFetcher.fetch(request);
+        response.close();
+
+        assertEquals(Fetcher.Response.HTTP_NOT_MODIFIED, response.code);
+        assertNull(response.body);
+        final LoopbackServer.Request sent = mServer.takeRequest();
+        assertEquals("\"v1\"", sent.header("If-None-Match"));
+        assertEquals("Sun, 06 Nov 1994 08:49:37 GMT", sent.header("If-Modified-Since"));
+    }
+
+    @Test
+    public void rangeFetchSendsRangeAndIfRange() throws Exception {
+        final byte[] body = bytes(10);
+        mServer.enqueue(new LoopbackServer.Response(206, body)
+                .header("Content-Range", "bytes 10-19/100"));
+
+        final Fetcher.Request request = new Fetcher.Request(mServer.url("/image.png"));
+        request.rangeStart = 10;
+        request.rangeEnd = 19;
+        request.ifRange = "\"v1\"";
+        final Fetcher.Response response = mFetcher.fetch(request);
+        try {
+            assertEquals(Fetcher.Response.HTTP_PARTIAL_CONTENT, response.code);
+            assertEquals(10, response.rangeStart);
+            assertEquals(19, response.rangeEnd);
+            assertEquals(100, response.rangeTotal);
+            assertArrayEquals(body, readFully(response.body));
+        } finally {
+            response.close();
+        }
+
+        final LoopbackServer.Request sent = mServer.takeRequest();
+        assertEquals("bytes=10-19", sent.header("Range"));
+        assertEquals("\"v1\"", sent.header("If-Range"));
+    }
+
+    @Test
+    public void openRangeHasNoEnd() throws Exception {
+        mServer.enqueue(new LoopbackServer.Response(206, bytes(90)));
+
+        final Fetcher.Request request = new Fetcher.Request(mServer.url("/image.png"));
+        request.rangeStart = 10;
+        mFetcher.fetch(request).close();
+
+        final LoopbackServer.Request sent = mServer.takeRequest();
+        assertNotNull(sent);
+        assertEquals("bytes=10-", sent.header("Range"));
+        assertNull(sent.header("If-Range"));
+    }
+
+    @Test
+    public void parsesContentRange() {
+        final Fetcher.Response response = new Fetcher.Response(206, null);
+        response.setContentRange("bytes 0-99/*");
+        assertEquals(0, response.rangeStart);
+        assertEquals(99, response.rangeEnd);
+        assertEquals(-1, response.rangeTotal);
+
+        for (String invalid : new String[]{null, "bytes */100", "bytes 10-5/100",
+                "bytes 0-100/100", "items 0-9/10", "bytes a-b/c"}) {
+            response.setContentRange(invalid);
+            assertEquals(invalid, -1, response.rangeStart);
+            assertEquals(invalid, -1, response.rangeEnd);
+            assertEquals(invalid, -1, response.rangeTotal);
+        }
+    }
+
+    @Test
+    public void errorCodeThrows() throws Exception {
+        mServer.enqueue(new LoopbackServer.Response(404, null));
+        try {
+            mFetcher.fetch(new Fetcher.Request(mServer.url("/missing.png"))).close();
+            fail("No exception for 404");
+        } catch (Fetcher.HttpException e) {
+            assertEquals(404, e.code);
+        }
+    }
+
+    static byte[] bytes(int length) {
+        final byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (i * 31 + 7);
+        }
+        return bytes;
+    }
+
+    static byte[] readFully(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
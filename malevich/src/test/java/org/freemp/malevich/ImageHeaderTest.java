@@ -0,0 +1,363 @@
+package org.freemp.malevich;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ImageHeaderTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void jpegSizeFromFrameHeader() throws IOException {
+        final byte[] jpeg = new Bytes()
+                .u8(0xff, 0xd8)
+                .segment(0xe0, new Bytes().ascii("JFIF").u8(0, 1, 1, 0).u16be(1).u16be(1)
+                        .u8(0, 0).toByteArray())
+                .segment(0xdb, new byte[65])
+                .segment(0xc4, new byte[30])
+                .segment(0xc0, sof(640, 480))
+                .u8(0xff, 0xda)
+                .toByteArray();
+
+        final ImageHeader header = parse(jpeg);
+        assertEquals(ImageHeader.Format.JPEG, header.format);
+        assertEquals(640, header.width);
+        assertEquals(480, header.height);
+        assertFalse(header.hasAlpha);
+        assertEquals(ImageHeader.ORIENTATION_NORMAL, header.orientation);
+        assertEquals(0, header.thumbnailLength);
+    }
+
+    @Test
+    public void progressiveJpeg() throws IOException {
+        final byte[] jpeg = new Bytes().u8(0xff, 0xd8).segment(0xc2, sof(100, 200)).toByteArray();
+
+        final ImageHeader header = parse(jpeg);
+        assertEquals(100, header.width);
+        assertEquals(200, header.height);
+    }
+
+    @Test
+    public void jpegExifOrientationAndThumbnail() throws IOException {
+        final byte[] thumbnail = new byte[40];
+        for (boolean little : new boolean[]{false, true}) {
+            final byte[] jpeg = new Bytes()
+                    .u8(0xff, 0xd8)
+                    .segment(0xe1, exif(little, 6, thumbnail))
+                    .segment(0xc0, sof(640, 480))
+                    .toByteArray();
+
+            final ImageHeader header = parse(jpeg);
+            assertEquals(6, header.orientation);
+            assertTrue(header.isTransposed());
+            assertEquals(640, header.width);
+            assertEquals(thumbnail.length, header.thumbnailLength);
+            // The thumbnail ends the data of the APP1 segment, which starts at 6
+            assertEquals(6 + exif(little, 6, thumbnail).length - thumbnail.length,
+                    header.thumbnailOffset);
+        }
+    }
+
+    @Test
+    public void jpegFromStreamAndFile() throws IOException {
+        final byte[] jpeg = new Bytes()
+                .u8(0xff, 0xd8)
+                .segment(0xe1, exif(false, 3, new byte[0]))
+                // Large application data is skipped, not read
+                .segment(0xe2, new byte[60000])
+                .segment(0xc0, sof(3000, 2000))
+                .toByteArray();
+
+        final ImageHeader fromStream = ImageHeader.read(new ByteArrayInputStream(jpeg));
+        assertEquals(3000, fromStream.width);
+        assertEquals(2000, fromStream.height);
+        assertEquals(3, fromStream.orientation);
+
+        final File file = mFolder.newFile("image.jpg");
+        final FileOutputStream out = new FileOutputStream(file);
+        out.write(jpeg);
+        out.close();
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            final ImageHeader fromFile = ImageHeader.read(in.getChannel());
+            assertEquals(3000, fromFile.width);
+            assertEquals(3, fromFile.orientation);
+            assertEquals(0, in.getChannel().position());
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void truncatedJpeg() throws IOException {
+        final byte[] jpeg = new Bytes().u8(0xff, 0xd8).segment(0xe0, new byte[14]).toByteArray();
+        assertNull(ImageHeader.parse(jpeg, jpeg.length - 4));
+        assertNull(ImageHeader.read(new ByteArrayInputStream(jpeg)));
+    }
+
+    @Test
+    public void pngAlphaFromColorType() throws IOException {
+        final ImageHeader rgba = parse(png(6).toByteArray());
+        assertEquals(ImageHeader.Format.PNG, rgba.format);
+        assertEquals(320, rgba.width);
+        assertEquals(240, rgba.height);
+        assertTrue(rgba.hasAlpha);
+
+        final ImageHeader rgb = parse(png(2).chunk("IDAT", new byte[10]).toByteArray());
+        assertFalse(rgb.hasAlpha);
+    }
+
+    @Test
+    public void pngAlphaFromTransparencyChunk() throws IOException {
+        final byte[] palette = png(3)
+                .chunk("PLTE", new byte[12])
+                .chunk("tRNS", new byte[4])
+                .chunk("IDAT", new byte[10])
+                .toByteArray();
+        assertTrue(parse(palette).hasAlpha);
+
+        // A tRNS chunk after the image data does not count
+        final byte[] late = png(3)
+                .chunk("PLTE", new byte[12])
+                .chunk("IDAT", new byte[10])
+                .chunk("tRNS", new byte[4])
+                .toByteArray();
+        assertFalse(parse(late).hasAlpha);
+    }
+
+    @Test
+    public void gif() throws IOException {
+        final byte[] gif = new Bytes().ascii("GIF89a").u16le(500).u16le(300).u8(0, 0, 0)
+                .toByteArray();
+
+        final ImageHeader header = parse(gif);
+        assertEquals(ImageHeader.Format.GIF, header.format);
+        assertEquals(500, header.width);
+        assertEquals(300, header.height);
+    }
+
+    @Test
+    public void webpLossy() throws IOException {
+        final byte[] webp = riff("VP8 ", new Bytes()
+                .u8(0x10, 0x02, 0x00)
+                .u8(0x9d, 0x01, 0x2a)
+                // The upper two bits of each size are the scale
+                .u16le(0x4000 | 1024).u16le(768)
+                .toByteArray());
+
+        final ImageHeader header = parse(webp);
+        assertEquals(ImageHeader.Format.WEBP, header.format);
+        assertEquals(1024, header.width);
+        assertEquals(768, header.height);
+        assertFalse(header.hasAlpha);
+    }
+
+    @Test
+    public void webpLossless() throws IOException {
+        final int bits = (400 - 1) | (300 - 1) << 14 | 1 << 28;
+        final byte[] webp = riff("VP8L", new Bytes()
+                .u8(0x2f)
+                .u8(bits & 0xff, (bits >>> 8) & 0xff, (bits >>> 16) & 0xff, bits >>> 24)
+                .u8(0, 0, 0, 0, 0)
+                .toByteArray());
+
+        final ImageHeader header = parse(webp);
+        assertEquals(400, header.width);
+        assertEquals(300, header.height);
+        assertTrue(header.hasAlpha);
+    }
+
+    @Test
+    public void webpExtended() throws IOException {
+        final byte[] webp = riff("VP8X", new Bytes()
+                .u8(0x10, 0, 0, 0)
+                .u24le(5000 - 1).u24le(70000 - 1)
+                .toByteArray());
+
+        final ImageHeader header = parse(webp);
+        assertEquals(5000, header.width);
+        assertEquals(70000, header.height);
+        assertTrue(header.hasAlpha);
+    }
+
+    @Test
+    public void invalidWebp() throws IOException {
+        final byte[] webp = riff("VP8 ", new byte[10]);
+        assertNull(parse(webp));
+    }
+
+    @Test
+    public void unknownFormat() throws IOException {
+        assertNull(parse(new byte[]{0, 0, 1, 0, 1, 0, 16, 16, 0, 0, 0, 0}));
+        assertNull(parse(new byte[]{(byte) 0xff}));
+    }
+
+    @Test
+    public void markupIsRejected() throws IOException {
+        final String[] pages = {
+                "<!DOCTYPE html><html><body>Not found</body></html>",
+                "  \r\n<?xml version=\"1.0\"?><error/>",
+                "\ufeff<html>",
+                "{\"error\": \"not found\"}",
+                "[1, 2]"
+        };
+        for (String page : pages) {
+            final byte[] data = page.getBytes("UTF-8");
+            try {
+                ImageHeader.parse(data, data.length);
+                fail("Markup accepted: " + page);
+            } catch (ImageHeader.NotAnImageException expected) {
+            }
+            try {
+                ImageHeader.read(new ByteArrayInputStream(data));
+                fail("Markup accepted: " + page);
+            } catch (ImageHeader.NotAnImageException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void checkNotMarkupResetsTheStream() throws IOException {
+        final byte[] gif = new Bytes().ascii("GIF89a").u16le(1).u16le(1).toByteArray();
+        final InputStream in = new BufferedInputStream(new ByteArrayInputStream(gif));
+        ImageHeader.checkNotMarkup(in);
+        assertNotNull(ImageHeader.read(in));
+
+        try {
+            ImageHeader.checkNotMarkup(new BufferedInputStream(
+                    new ByteArrayInputStream("<html>".getBytes("UTF-8"))));
+            fail("Markup accepted");
+        } catch (ImageHeader.NotAnImageException expected) {
+        }
+    }
+
+    private static ImageHeader parse(byte[] data) throws IOException {
+        return ImageHeader.parse(data, data.length);
+    }
+
+    /**
+     * @return The data of a baseline or progressive frame header with three components
+     */
+    private static byte[] sof(int width, int height) {
+        return new Bytes().u8(8).u16be(height).u16be(width).u8(3)
+                .u8(1, 0x22, 0).u8(2, 0x11, 1).u8(3, 0x11, 1)
+                .toByteArray();
+    }
+
+    /**
+     * @return The data of an APP1 segment with the orientation in IFD0 and the thumbnail in IFD1
+     */
+    private static byte[] exif(boolean little, int orientation, byte[] thumbnail) {
+        final Bytes tiff = new Bytes().little(little);
+        tiff.ascii(little ? "II" : "MM").u16(42).u32(8);
+        // IFD0 at 8 with one entry, IFD1 right after it
+        tiff.u16(1).u16(0x0112).u16(3).u32(1).u16(orientation).u16(0).u32(8 + 2 + 12 + 4);
+        // IFD1 with two entries, the thumbnail after it
+        final int thumbnailOffset = 26 + 2 + 2 * 12 + 4;
+        tiff.u16(2)
+                .u16(0x0201).u16(4).u32(1).u32(thumbnailOffset)
+                .u16(0x0202).u16(4).u32(1).u32(thumbnail.length)
+                .u32(0);
+        tiff.bytes(thumbnail);
+        return new Bytes().ascii("Exif").u8(0, 0).bytes(tiff.toByteArray()).toByteArray();
+    }
+
+    private static Bytes png(int colorType) {
+        return new Bytes()
+                .u8(0x89).ascii("PNG").u8(0x0d, 0x0a, 0x1a, 0x0a)
+                .chunk("IHDR", new Bytes().u32(320).u32(240).u8(8, colorType, 0, 0, 0)
+                        .toByteArray());
+    }
+
+    private static byte[] riff(String chunk, byte[] data) {
+        return new Bytes().ascii("RIFF").u32le(4 + 8 + data.length).ascii("WEBP")
+                .ascii(chunk).u32le(data.length).bytes(data)
+                .toByteArray();
+    }
+
+    /**
+     * Writes test images, big endian unless told otherwise.
+     */
+    private static class Bytes extends ByteArrayOutputStream {
+        private boolean mLittle;
+
+        Bytes little(boolean little) {
+            mLittle = little;
+            return this;
+        }
+
+        Bytes u8(int... values) {
+            for (int value : values) {
+                write(value);
+            }
+            return this;
+        }
+
+        Bytes u16(int value) {
+            return mLittle ? u16le(value) : u16be(value);
+        }
+
+        Bytes u32(int value) {
+            return mLittle ? u32le(value) : u32be(value);
+        }
+
+        Bytes u16be(int value) {
+            return u8(value >>> 8 & 0xff, value & 0xff);
+        }
+
+        Bytes u16le(int value) {
+            return u8(value & 0xff, value >>> 8 & 0xff);
+        }
+
+        Bytes u24le(int value) {
+            return u8(value & 0xff, value >>> 8 & 0xff, value >>> 16 & 0xff);
+        }
+
+        Bytes u32be(int value) {
+            return u16be(value >>> 16).u16be(value & 0xffff);
+        }
+
+        Bytes u32le(int value) {
+            return u16le(value & 0xffff).u16le(value >>> 16);
+        }
+
+        Bytes ascii(String value) {
+            for (int i = 0; i < value.length(); i++) {
+                write(value.charAt(i));
+            }
+            return this;
+        }
+
+        Bytes bytes(byte[] value) {
+            write(value, 0, value.length);
+            return this;
+        }
+
+        Bytes segment(int marker, byte[] data) {
+            return u8(0xff, marker).u16be(2 + data.length).bytes(data);
+        }
+
+        Bytes chunk(String type, byte[] data) {
+            // The CRC is not checked
+            return u32be(data.length).ascii(type).bytes(data).u32be(0);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package org.freemp.malevich;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Http server on the loopback interface for the fetch tests. Each connection gets the next
+ * queued response and is closed after it, the requests are recorded in order.
+ */
+final class LoopbackServer implements Closeable {
+
+    /**
+     * A queued response. The Content-Length is added.
+     */
+    static final class Response {
+        final int code;
+        final byte[] body;
+        final Map<String, String> headers = new LinkedHashMap<String, String>();
+
+        Response(int code, byte[] body) {
+            this.code = code;
+            this.body = body != null ? body : new byte[0];
+        }
+
+        Response header(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+    }
+
+    /**
+     * A recorded request.
+     */
+    static final class Request {
+        final String method;
+        final String path;
+        private final Map<String, String> headers;
+
+        Request(String method, String path, Map<String, String> headers) {
+            this.method = method;
+            this.path = path;
+            this.headers = headers;
+        }
+
+        /**
+         * @return The value of the header, or null if it was not sent
+         */
+        String header(String name) {
+            return headers.get(name.toLowerCase(Locale.US));
+        }
+    }
+
+    private final ServerSocket mServerSocket;
+    private final LinkedBlockingQueue<Response> mResponses = new LinkedBlockingQueue<Response>();
+    private final LinkedBlockingQueue<Request> mRequests = new LinkedBlockingQueue<Request>();
+
+    LoopbackServer() throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, "LoopbackServer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return The url of {@code path} on this server
+     */
+    String url(String path) {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + path;
+    }
+
+    void enqueue(Response response) {
+        mResponses.add(response);
+    }
+
+    /**
+     * @return The next recorded request, or null if none came within a few seconds
+     */
+    Request takeRequest() throws InterruptedException {
+        return mRequests.poll(5, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mServerSocket.close();
+    }
+
+    private void serve() {
+        while (true) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                // Closed
+                return;
+            }
+            try {
+                handle(socket);
+            } catch (IOException e) {
+                // The client went away, the next one may still come
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {}
+            }
+        }
+    }
+
+    private void handle(Socket socket) throws IOException {
+        final InputStream in = new BufferedInputStream(socket.getInputStream());
+        final String requestLine = readLine(in);
+        if (requestLine == null) {
+            return;
+        }
+        final String[] parts = requestLine.split(" ");
+        final Map<String, String> headers = new HashMap<String, String>();
+        String line;
+        while ((line = readLine(in)) != null && line.length() > 0) {
+            final int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US),
+                        line.substring(colon + 1).trim());
+            }
+        }
+        mRequests.add(new Request(parts[0], parts.length > 1 ? parts[1] : "/", headers));
+
+        Response response = mResponses.poll();
+        if (response == null) {
+            response = new Response(404, null);
+        }
+        final StringBuilder head = new StringBuilder()
+                .append("HTTP/1.1 ").append(response.code).append(' ')
+                .append(reasonPhrase(response.code)).append("\r\n");
+        for (Map.Entry<String, String> header : response.headers.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        head.append("Content-Length: ").append(response.body.length).append("\r\n")
+                .append("Connection: close\r\n\r\n");
+        final OutputStream out = socket.getOutputStream();
+        out.write(head.toString().getBytes("ISO-8859-1"));
+        if (!"HEAD".equals(parts[0])) {
+            out.write(response.body);
+        }
+        out.flush();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                break;
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        return line.toString("ISO-8859-1");
+    }
+
+    private static String reasonPhrase(int code) {
+        switch (code) {
+            case 200:
+                return "OK";
+            case 206:
+                return "Partial Content";
+            case 304:
+                return "Not Modified";
+            case 404:
+                return "Not Found";
+            default:
+                return "Status";
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package org.freemp.malevich;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.freemp.malevich.HttpUrlFetcherTest.bytes;
+import static org.freemp.malevich.HttpUrlFetcherTest.readFully;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class ResumableDownloaderTest {
+
+    private static final String KEY = "image";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private LoopbackServer mServer;
+    private DiskLruCache mCache;
+    private ResumableDownloader mDownloader;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new LoopbackServer();
+        mCache = DiskLruCache.open(mFolder.newFolder("cache"), 1, 1, 8 * 1024 * 1024);
+        mDownloader = new ResumableDownloader(mFolder.newFolder("partial"), false);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mCache.close();
+        mServer.close();
+    }
+
+    @Test
+    public void downloadsIntoEditor() throws Exception {
+        final byte[] body = bytes(20000);
+        mServer.enqueue(new LoopbackServer.Response(200, body).header("ETag", "\"v1\""));
+
+        download(new HttpUrlFetcher());
+
+        assertArrayEquals(body, cached());
+        assertNull(mServer.takeRequest().header("Range"));
+    }
+
+    @Test
+    public void resumesAfterFailure() throws Exception {
+        final byte[] body = bytes(20000);
+        mServer.enqueue(new LoopbackServer.Response(200, body).header("ETag", "\"v1\""));
+        try {
+            download(new FailingFetcher(5000));
+            fail("The download did not fail");
+        } catch (IOException expected) {
+        }
+        mServer.takeRequest();
+
+        mServer.enqueue(new LoopbackServer.Response(206, Arrays.copyOfRange(body, 5000, 20000))
+                .header("ETag", "\"v1\"")
+                .header("Content-Range", "bytes 5000-19999/20000"));
+        download(new HttpUrlFetcher());
+
+        final LoopbackServer.Request request = mServer.takeRequest();
+        assertEquals("bytes=5000-", request.header("Range"));
+        assertEquals("\"v1\"", request.header("If-Range"));
+        assertArrayEquals(body, cached());
+    }
+
+    @Test
+    public void startsOverWhenImageChanged() throws Exception {
+        mServer.enqueue(new LoopbackServer.Response(200, bytes(20000)).header("ETag", "\"v1\""));
+        try {
+            download(new FailingFetcher(5000));
+            fail("The download did not fail");
+        } catch (IOException expected) {
+        }
+
+        // The If-Range validator no longer matches, so the server sends the whole new image
+        final byte[] changed = bytes(12000);
+        changed[0] = 1;
+        mServer.enqueue(new LoopbackServer.Response(200, changed).header("ETag", "\"v2\""));
+        download(new HttpUrlFetcher());
+
+        assertArrayEquals(changed, cached());
+    }
+
+    @Test
+    public void startsOverWhenResumeFails() throws Exception {
+        final byte[] body = bytes(20000);
+        mServer.enqueue(new LoopbackServer.Response(200, body).header("ETag", "\"v1\""));
+        try {
+            download(new FailingFetcher(5000));
+            fail("The download did not fail");
+        } catch (IOException expected) {
+        }
+        mServer.takeRequest();
+
+        mServer.enqueue(new LoopbackServer.Response(416, null));
+        mServer.enqueue(new LoopbackServer.Response(200, body).header("ETag", "\"v1\""));
+        download(new HttpUrlFetcher());
+
+        assertEquals("bytes=5000-", mServer.takeRequest().header("Range"));
+        // Retried once without the failing range
+        assertNull(mServer.takeRequest().header("Range"));
+        assertArrayEquals(body, cached());
+    }
+
+    @Test
+    public void startsOverOnWrongRange() throws Exception {
+        final byte[] body = bytes(20000);
+        mServer.enqueue(new LoopbackServer.Response(200, body).header("ETag", "\"v1\""));
+        try {
+            download(new FailingFetcher(5000));
+            fail("The download did not fail");
+        } catch (IOException expected) {
+        }
+        mServer.takeRequest();
+
+        // A resized image with the same validator
+        mServer.enqueue(new LoopbackServer.Response(206, Arrays.copyOfRange(body, 5000, 20000))
+                .header("ETag", "\"v1\"")
+                .header("Content-Range", "bytes 5000-19999/25000"));
+        mServer.enqueue(new LoopbackServer.Response(200, body).header("ETag", "\"v1\""));
+        download(new HttpUrlFetcher());
+
+        assertEquals("bytes=5000-", mServer.takeRequest().header("Range"));
+        assertNull(mServer.takeRequest().header("Range"));
+        assertArrayEquals(body, cached());
+    }
+
+    @Test
+    public void downloadsParallelRanges() throws Exception {
+        final MemoryFetcher fetcher = new MemoryFetcher(bytes(3 * 1024 * 1024));
+        mDownloader.setParallelRanges(4);
+        download(fetcher);
+
+        assertArrayEquals(fetcher.mBody, cached());
+        assertEquals(4, fetcher.mRequests.get());
+    }
+
+    @Test
+    public void parallelRangesStayWithinHostLimit() throws Exception {
+        final MemoryFetcher fetcher = new MemoryFetcher(bytes(3 * 1024 * 1024));
+        mDownloader.setParallelRanges(4);
+        final FetchScheduler scheduler = new FetchScheduler(4, 2);
+        // Held by the download itself, leaves one slot for an extra range
+        final String host = scheduler.acquireHost(mServer.url("/image"));
+        download(fetcher, scheduler);
+        scheduler.releaseHost(host);
+
+        assertArrayEquals(fetcher.mBody, cached());
+        assertEquals(2, fetcher.mRequests.get());
+        // Every slot is free again
+        assertNotNull(scheduler.tryAcquireHost(mServer.url("/image")));
+        assertNotNull(scheduler.tryAcquireHost(mServer.url("/image")));
+    }
+
+    @Test
+    public void rejectsWrongParallelRange() throws Exception {
+        final MemoryFetcher fetcher = new MemoryFetcher(bytes(3 * 1024 * 1024));
+        mDownloader.setParallelRanges(4);
+        fetcher.mShift = 1;
+        try {
+            download(fetcher);
+            fail("A wrong range was written");
+        } catch (IOException expected) {
+        }
+
+        // Resumes after the complete first range
+        fetcher.mShift = 0;
+        download(fetcher);
+        assertArrayEquals(fetcher.mBody, cached());
+    }
+
+    @Test
+    public void withoutValidatorNothingIsResumed() throws Exception {
+        mServer.enqueue(new LoopbackServer.Response(200, bytes(20000)));
+        try {
+            download(new FailingFetcher(5000));
+            fail("The download did not fail");
+        } catch (IOException expected) {
+        }
+        mServer.takeRequest();
+
+        final byte[] body = bytes(20000);
+        mServer.enqueue(new LoopbackServer.Response(200, body));
+        download(new HttpUrlFetcher());
+
+        assertNull(mServer.takeRequest().header("Range"));
+        assertArrayEquals(body, cached());
+    }
+
+    @Test
+    public void rejectsMarkup() throws Exception {
+        mServer.enqueue(new LoopbackServer.Response(200,
+                "<html><body>Not found</body></html>".getBytes("UTF-8"))
+                .header("ETag", "\"v1\""));
+        try {
+            download(new HttpUrlFetcher());
+            fail("Markup was cached");
+        } catch (ImageHeader.NotAnImageException expected) {
+        }
+        mServer.takeRequest();
+
+        // The error page is not resumed
+        mServer.enqueue(new LoopbackServer.Response(200, bytes(100)).header("ETag", "\"v1\""));
+        download(new HttpUrlFetcher());
+        assertNull(mServer.takeRequest().header("Range"));
+    }
+
+    private void download(Fetcher fetcher) throws IOException {
+        download(fetcher, null);
+    }
+
+    private void download(Fetcher fetcher, FetchScheduler scheduler) throws IOException {
+        final DiskLruCache.Editor editor = mCache.edit(KEY);
+        try {
+            mDownloader.download(fetcher, scheduler, mServer.url("/image"), KEY, editor, 0);
+            editor.commit();
+        } catch (IOException e) {
+            editor.abort();
+            throw e;
+        }
+    }
+
+    private byte[] cached() throws IOException {
+        final DiskLruCache.Snapshot snapshot = mCache.get(KEY);
+        try {
+            return readFully(snapshot.getInputStream(0));
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    /**
+     * Serves a body from memory, with ranges.
+     */
+    private static class MemoryFetcher implements Fetcher {
+        final byte[] mBody;
+        final AtomicInteger mRequests = new AtomicInteger();
+        // Added to the range in Content-Range, like a server that sends other bytes
+        volatile long mShift;
+
+        MemoryFetcher(byte[] body) {
+            mBody = body;
+        }
+
+        @Override
+        public Response fetch(Request request) throws IOException {
+            mRequests.incrementAndGet();
+            final Response response;
+            if (request.rangeStart < 0) {
+                response = new Response(Response.HTTP_OK, new ByteArrayInputStream(mBody));
+                response.contentLength = mBody.length;
+            } else {
+                final long end = request.rangeEnd < 0 ? mBody.length - 1 : request.rangeEnd;
+                response = new Response(Response.HTTP_PARTIAL_CONTENT, new ByteArrayInputStream(
+                        mBody, (int) request.rangeStart, (int) (end - request.rangeStart + 1)));
+                response.contentLength = end - request.rangeStart + 1;
+                response.setContentRange("bytes " + (request.rangeStart + mShift) + "-"
+                        + (end + mShift) + "/" + mBody.length);
+            }
+            response.etag = "\"v1\"";
+            response.acceptRanges = true;
+            return response;
+        }
+    }
+
+    /**
+     * Fetches with {@link HttpUrlFetcher}, but the body breaks off after some bytes like a lost
+     * connection.
+     */
+    private static class FailingFetcher extends HttpUrlFetcher {
+        private final int mFailAfter;
+
+        FailingFetcher(int failAfter) {
+            mFailAfter = failAfter;
+        }
+
+        @Override
+        public Response fetch(Request request) throws IOException {
+            final Response response = super.fetch(request);
+            final InputStream failing = new FilterInputStream(response.body) {
+                private int mRead;
+
+                @Override
+                public int read() throws IOException {
+                    final byte[] b = new byte[1];
+                    return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int count) throws IOException {
+                    if (mRead >= mFailAfter) {
+                        throw new IOException("Connection lost");
+                    }
+                    final int read =
+                            super.read(buffer, offset, Math.min(count, mFailAfter - mRead));
+                    if (read > 0) {
+                        mRead += read;
+                    }
+                    return read;
+                }
+            };
+            final Response failingResponse = new Response(response.code, failing) {
+                @Override
+                public void close() {
+                    response.close();
+                }
+            };
+            failingResponse.contentLength = response.contentLength;
+            failingResponse.etag = response.etag;
+            failingResponse.lastModified = response.lastModified;
+            failingResponse.acceptRanges = response.acceptRanges;
+            return failingResponse;
+        }
+    }
+}